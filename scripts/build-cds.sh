@@ -0,0 +1,25 @@
+#!/bin/sh
+# Builds build/defend.jar and an AppCDS archive (build/defend.jsa) of the classes a typical
+# interactive session loads, so later launches map them instead of loading and verifying them.
+# Run with:  java -XX:SharedArchiveFile=build/defend.jsa -jar build/defend.jar
+# The archive only works with the JDK that created it; rerun this after upgrading Java.
+set -e
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BUILD="$ROOT/build"
+
+rm -rf "$BUILD/classes" "$BUILD/cds-work"
+mkdir -p "$BUILD/classes" "$BUILD/cds-work"
+# -XDstringConcat=inline compiles string concatenation to StringBuilder calls instead of
+# invokedynamic, whose bootstrap costs tens of milliseconds before the first prompt
+javac -encoding UTF-8 -XDstringConcat=inline -d "$BUILD/classes" "$ROOT"/src/java/*.java
+# AppCDS archives classes from jars only, not from class directories
+jar --create --file "$BUILD/defend.jar" --main-class DefendYourCodeJava -C "$BUILD/classes" .
+
+# Training run: one scripted session, including a rejected entry so the error log path is archived too
+cd "$BUILD/cds-work"
+printf 'training input\n' > training-input.txt
+printf 'Ada\nLovelace\n12345\nnot-a-number\n-6789\ntraining-input.txt\ntraining-output.txt\nTrain1ng!Pass\nTrain1ng!Pass\n' \
+    | java -XX:ArchiveClassesAtExit="$BUILD/defend.jsa" -jar "$BUILD/defend.jar" > training.log 2>&1
+
+echo "Wrote $BUILD/defend.jar and $BUILD/defend.jsa"
@@ -0,0 +1,18 @@
+#!/bin/sh
+# Compiles the Java sources with the benchmark suite and runs it.
+# Results go to build/benchmarks.json unless --out is given; extra arguments are passed through,
+# e.g. scripts/run-benchmarks.sh --filter processFiles --maxFileSize 1073741824
+# This is a quick check without dependencies; for comparable numbers use the JMH suite in
+# src/benchmarks/jmh (mvn -B package -DskipTests, then java -jar build/maven/benchmarks/benchmarks.jar).
+set -e
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BUILD="$ROOT/build"
+
+rm -rf "$BUILD/bench-classes"
+mkdir -p "$BUILD/bench-classes" "$BUILD/bench-work"
+javac -encoding UTF-8 -d "$BUILD/bench-classes" "$ROOT"/src/java/*.java "$ROOT"/src/benchmarks/*.java
+
+# Benchmarks create input files and error_log.txt in the working directory
+cd "$BUILD/bench-work"
+exec java -cp "$BUILD/bench-classes" Benchmarks --out "$BUILD/benchmarks.json" "$@"
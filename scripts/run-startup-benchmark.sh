@@ -0,0 +1,19 @@
+#!/bin/sh
+# Builds the jar and AppCDS archive, then times interactive-session startup with and without it.
+# Results go to build/startup.json unless --out is given; extra arguments are passed through,
+# e.g. scripts/run-startup-benchmark.sh --runs 20
+set -e
+
+ROOT=$(cd "$(dirname "$0")/.." && pwd)
+BUILD="$ROOT/build"
+
+"$ROOT/scripts/build-cds.sh"
+
+rm -rf "$BUILD/startup-classes" "$BUILD/startup-work"
+mkdir -p "$BUILD/startup-classes" "$BUILD/startup-work"
+javac -encoding UTF-8 -d "$BUILD/startup-classes" "$ROOT/src/benchmarks/StartupBenchmark.java"
+
+# Sessions create input, output and log files in the working directory
+cd "$BUILD/startup-work"
+exec java -cp "$BUILD/startup-classes" StartupBenchmark --jar "$BUILD/defend.jar" --archive "$BUILD/defend.jsa" \
+    --out "$BUILD/startup.json" "$@"
@@ -0,0 +1,460 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmark suite for the hot paths of the Java program.
+ *
+ * Each benchmark is warmed up, then measured over several timed iterations. Results are
+ * written as a JSON array shaped like JMH's -rf json output (benchmark, mode, threads,
+ * params, primaryMetric.score/scoreError/scoreUnit/rawData) so runs can be diffed.
+ *
+ * Usage: java Benchmarks [--out file.json] [--filter regex] [--maxFileSize bytes]
+ *                        [--warmup n] [--iterations n] [--iterationMillis ms]
+ * Run it from a scratch directory: it creates input files and error_log.txt there.
+ */
+public class Benchmarks {
+
+    private static final long[] FILE_SIZES = {
+            1024L, 1024L * 1024, 64L * 1024 * 1024, 1024L * 1024 * 1024
+    };
+
+    private static final PrintStream realOut = System.out;
+    private static final PrintStream realErr = System.err;
+    private static final PrintStream nullStream = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    // Results are folded in here so the JIT cannot drop the measured work
+    private static volatile long sink;
+
+    private String outFile = "benchmarks.json";
+    private Pattern filter = Pattern.compile(".*");
+    private long maxFileSize = 64L * 1024 * 1024;
+    private int warmupIterations = 3;
+    private int measureIterations = 5;
+    private long iterationMillis = 1000;
+
+    private final List<String> results = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Benchmarks benchmarks = new Benchmarks();
+        benchmarks.parseArgs(args);
+        benchmarks.runAll();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--out":
+                    outFile = args[i + 1];
+                    break;
+                case "--filter":
+                    filter = Pattern.compile(args[i + 1]);
+                    break;
+                case "--maxFileSize":
+                    maxFileSize = Long.parseLong(args[i + 1]);
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterations":
+                    measureIterations = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--iterationMillis":
+                    iterationMillis = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void runAll() throws Exception {
+        String salt = PasswordManager.bytesToHex(randomBytes(16));
+        byte[] digest = randomBytes(32);
+
+        // Password hashing and hex encoding
+        for (PasswordKdf kdf : new PasswordKdf[] {PasswordKdf.legacy(), PasswordKdf.pbkdf2(10_000)}) {
+            measure("PasswordManager.hashPassword", params("kdf", kdf.encode()), ops -> {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += PasswordManager.hashPassword("Passw0rd!" + (i & 7), salt, kdf).length();
+                }
+                return acc;
+            });
+        }
+        measure("DefendYourCodeJava.bytesToHex", params("bytes", "32"), ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += DefendYourCodeJava.bytesToHex(digest).length();
+            }
+            return acc;
+        });
+        measure("PasswordManager.bytesToHex", params("bytes", "32"), ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += PasswordManager.bytesToHex(digest).length();
+            }
+            return acc;
+        });
+
+        // Salt generation under a registration burst: the old new-SecureRandom-per-salt against the pool
+        for (int threads : new int[] {1, 8}) {
+            measureThreaded("salt.newSecureRandom", threads, ops -> {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    byte[] bytes = new byte[SaltProvider.SALT_LENGTH];
+                    new SecureRandom().nextBytes(bytes);
+                    acc += bytes[0];
+                }
+                return acc;
+            });
+            measureThreaded("SaltProvider.next", threads, ops -> {
+                long acc = 0;
+                for (int i = 0; i < ops; i++) {
+                    acc += SaltProvider.shared().next()[0];
+                }
+                return acc;
+            });
+        }
+
+        // Validation rules
+        String[] names = {"Jay", "Mary-Anne O'Neil", "Bad N4me", "", "Averyveryveryverylongnamethatgoesonandonandonandonandon"};
+        measure("InputValidator.name", params(), ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += ValidationRules.NAME.check(names[i % names.length]).getViolation().ordinal();
+            }
+            return acc;
+        });
+        String[] fileNames = {"input.txt", "report_2024-01.csv", "../etc/passwd", "", "a b.txt"};
+        measure("InputValidator.fileName", params(), ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                acc += ValidationRules.FILE_NAME.check(fileNames[i % fileNames.length]).getViolation().ordinal();
+            }
+            return acc;
+        });
+        // The same names as UTF-8 bytes, as the bulk CSV validation checks its cells
+        byte[][] nameBytes = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            nameBytes[i] = names[i].getBytes(StandardCharsets.UTF_8);
+        }
+        measure("ValidationRule.checkBytes", params("input", "decoded"), ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                byte[] name = nameBytes[i % nameBytes.length];
+                acc += ValidationRules.NAME.check(new String(name, StandardCharsets.UTF_8)).getViolation().ordinal();
+            }
+            return acc;
+        });
+        measure("ValidationRule.checkBytes", params("input", "bytes"), ops -> {
+            long acc = 0;
+            for (int i = 0; i < ops; i++) {
+                byte[] name = nameBytes[i % nameBytes.length];
+                acc += ValidationRules.NAME.check(name, 0, name.length).getViolation().ordinal();
+            }
+            return acc;
+        });
+
+        // File processing, both copy modes, across input sizes
+        for (long size : FILE_SIZES) {
+            if (size > maxFileSize) {
+                continue;
+            }
+            File input = createInputFile(size);
+            for (ProcessingOptions.CopyMode mode : ProcessingOptions.CopyMode.values()) {
+                ProcessingOptions options = ProcessingOptions.defaults().setCopyMode(mode);
+                measureBytes("FileProcessor.processFiles", params("size", Long.toString(size), "mode", mode.name()),
+                        size, ops -> {
+                            for (int i = 0; i < ops; i++) {
+                                FileProcessor.processFiles("First", "Last", 12345, -6789,
+                                        input.getPath(), "bench-output.txt", "hash", options);
+                            }
+                            return new File("bench-output.txt").length();
+                        });
+            }
+            for (ProcessingOptions.OutputFormat format : ProcessingOptions.OutputFormat.values()) {
+                for (boolean gzip : new boolean[] {false, true}) {
+                    if (format == ProcessingOptions.OutputFormat.TEXT && !gzip) {
+                        continue;
+                    }
+                    ProcessingOptions options = ProcessingOptions.defaults().setOutputFormat(format).setGzip(gzip);
+                    measureBytes("FileProcessor.processFiles", params("size", Long.toString(size),
+                            "format", format.name(), "gzip", Boolean.toString(gzip)), size, ops -> {
+                                for (int i = 0; i < ops; i++) {
+                                    FileProcessor.processFiles("First", "Last", 12345, -6789,
+                                            input.getPath(), "bench-output.txt", "hash", options);
+                                }
+                                return new File("bench-output.txt").length();
+                            });
+                }
+            }
+        }
+
+        // Error logging with several callers at once
+        for (int threads : new int[] {1, 4, 8}) {
+            measureThreaded("ErrorLogger.logError", threads, ops -> {
+                for (int i = 0; i < ops; i++) {
+                    ErrorLogger.logError("benchmark error " + i);
+                }
+                return ops;
+            });
+        }
+        ErrorLogger.flush();
+
+        // The batch pipeline end to end, with one and several workers per stage
+        File pipelineInput = createInputFile(1024);
+        for (int threads : new int[] {1, 4}) {
+            Pipeline pipeline = PipelineStages.standard(threads);
+            measure("Pipeline.run", params("threads", Integer.toString(threads)), ops -> {
+                int[] next = {0};
+                return pipeline.run(() -> next[0] < ops ? pipelineSubmission(next[0]++, pipelineInput) : null,
+                        submission -> sink += submission.getStatus().ordinal());
+            });
+        }
+
+        writeResults();
+        realOut.println("Wrote " + results.size() + " results to " + outFile);
+    }
+
+    /**
+     * A benchmark body that performs the given number of operations
+     */
+    private interface Body {
+        long run(int ops) throws Exception;
+    }
+
+    /**
+     * Measures average time per operation
+     */
+    private void measure(String name, Map<String, String> params, Body body) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        double[] scores = runIterations(name, body, 1);
+        record(name, "avgt", 1, params, scores, "ns/op");
+    }
+
+    /**
+     * Measures throughput in MB/s for a body that processes bytesPerOp per operation
+     */
+    private void measureBytes(String name, Map<String, String> params, long bytesPerOp, Body body) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        double[] nanosPerOp = runIterations(name + " " + params, body, 1);
+        double[] scores = new double[nanosPerOp.length];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = bytesPerOp / (nanosPerOp[i] / 1_000_000_000.0) / (1024 * 1024);
+        }
+        record(name, "thrpt", 1, params, scores, "MB/s");
+    }
+
+    /**
+     * Measures aggregate operations per second with several threads running the body
+     */
+    private void measureThreaded(String name, int threads, Body body) throws Exception {
+        if (!filter.matcher(name).find()) {
+            return;
+        }
+        double[] nanosPerOp = runIterations(name + " threads=" + threads, body, threads);
+        double[] scores = new double[nanosPerOp.length];
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = 1_000_000_000.0 / nanosPerOp[i];
+        }
+        record(name, "thrpt", threads, params("threads", Integer.toString(threads)), scores, "ops/s");
+    }
+
+    /**
+     * Runs warmup and measurement iterations; each iteration grows the batch size until it
+     * lasts at least iterationMillis
+     * @return Nanoseconds per operation for each measured iteration (aggregate over threads)
+     */
+    private double[] runIterations(String label, Body body, int threads) throws Exception {
+        realOut.println("# " + label);
+        System.setOut(nullStream);
+        System.setErr(nullStream);
+        try {
+            int ops = 1;
+            double[] scores = new double[measureIterations];
+            for (int iteration = 0; iteration < warmupIterations + measureIterations; iteration++) {
+                long elapsed;
+                while (true) {
+                    elapsed = timeBatch(body, ops, threads);
+                    if (elapsed >= iterationMillis * 1_000_000L || ops >= Integer.MAX_VALUE / 2) {
+                        break;
+                    }
+                    ops = elapsed <= 0 ? ops * 2
+                            : (int) Math.min(Integer.MAX_VALUE / 2, Math.max(ops * 2L, ops * (iterationMillis * 1_100_000L / elapsed)));
+                }
+                if (iteration >= warmupIterations) {
+                    scores[iteration - warmupIterations] = (double) elapsed / ((long) ops * threads);
+                }
+            }
+            return scores;
+        } finally {
+            System.setOut(realOut);
+            System.setErr(realErr);
+        }
+    }
+
+    private long timeBatch(Body body, int ops, int threads) throws Exception {
+        if (threads == 1) {
+            long start = System.nanoTime();
+            sink += body.run(ops);
+            return System.nanoTime() - start;
+        }
+
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        Exception[] failure = new Exception[1];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                    sink += body.run(ops);
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            });
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return elapsed;
+    }
+
+    private void record(String name, String mode, int threads, Map<String, String> params, double[] scores, String unit) {
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? 2 * Math.sqrt(variance / (scores.length - 1)) / Math.sqrt(scores.length) : 0;
+
+        StringBuilder json = new StringBuilder();
+        json.append("  {\"benchmark\": \"").append(name).append("\", \"mode\": \"").append(mode)
+                .append("\", \"threads\": ").append(threads)
+                .append(", \"warmupIterations\": ").append(warmupIterations)
+                .append(", \"measurementIterations\": ").append(measureIterations)
+                .append(", \"params\": {");
+        boolean first = true;
+        for (Map.Entry<String, String> param : params.entrySet()) {
+            if (!first) {
+                json.append(", ");
+            }
+            json.append('"').append(param.getKey()).append("\": \"").append(param.getValue()).append('"');
+            first = false;
+        }
+        json.append("}, \"primaryMetric\": {\"score\": ").append(mean)
+                .append(", \"scoreError\": ").append(error)
+                .append(", \"scoreUnit\": \"").append(unit).append("\", \"rawData\": [[");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append(scores[i]);
+        }
+        json.append("]]}}");
+        results.add(json.toString());
+
+        realOut.println(String.format("  %s %s: %.3f +/- %.3f %s", name, params, mean, error, unit));
+    }
+
+    private void writeResults() throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile))) {
+            writer.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                writer.write(results.get(i));
+                writer.write(i + 1 < results.size() ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        }
+    }
+
+    private static Map<String, String> params(String... keyValues) {
+        Map<String, String> params = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < keyValues.length; i += 2) {
+            params.put(keyValues[i], keyValues[i + 1]);
+        }
+        return params;
+    }
+
+    // A valid batch record; at most a few are written at once, so 64 output files never collide
+    private static Submission pipelineSubmission(int i, File input) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("firstName", "First");
+        fields.put("lastName", "Last");
+        fields.put("num1", Integer.toString(i));
+        fields.put("num2", "-6789");
+        fields.put("inputFile", input.getPath());
+        fields.put("outputFile", "pipeline-output-" + (i % 64) + ".txt");
+        fields.put("password", "Passw0rd!");
+        return new Submission(i + 1, fields);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Creates (or reuses) a text input of the given size made of 80 character lines
+     */
+    private static File createInputFile(long size) throws IOException {
+        File file = new File("bench-input-" + size + ".txt");
+        if (file.length() == size) {
+            return file;
+        }
+        String line = "The quick brown fox jumps over the lazy dog 0123456789 abcdefghijklmnopqrstuvw\n";
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            long written = 0;
+            while (written + line.length() <= size) {
+                writer.write(line);
+                written += line.length();
+            }
+            for (long i = written; i < size - 1; i++) {
+                writer.write('x');
+            }
+            if (written < size) {
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+}
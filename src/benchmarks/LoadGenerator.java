@@ -0,0 +1,122 @@
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drives a DefendService with many concurrent callers and reports throughput and latency.
+ *
+ * Requests cycle through the given paths, with at most --concurrency outstanding at a time.
+ * With --start the service is started in this JVM on a free port first, so a single command
+ * measures the whole stack.
+ *
+ * Usage: java LoadGenerator [--url http://127.0.0.1:8080] [--start true] [--concurrency n]
+ *                           [--requests n] [--paths /a?x=1,/b?y=2]
+ */
+public class LoadGenerator {
+
+    private static final String DEFAULT_PATHS = "/validate/name?value=Mary-Anne,/validate/name?value=B4d,"
+            + "/validate/int?value=2147483647,/validate/int?value=12x,/validate/filename?value=report.txt";
+
+    private String url = "http://127.0.0.1:8080";
+    private boolean start;
+    private int concurrency = 256;
+    private int requests = 20_000;
+    private String[] paths = DEFAULT_PATHS.split(",");
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parseArgs(args);
+        generator.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--url":
+                    url = args[i + 1];
+                    break;
+                case "--start":
+                    start = Boolean.parseBoolean(args[i + 1]);
+                    break;
+                case "--concurrency":
+                    concurrency = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--requests":
+                    requests = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--paths":
+                    paths = args[i + 1].split(",");
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        DefendService service = null;
+        if (start) {
+            ErrorLogger.setConsoleEcho(false);
+            service = new DefendService(0);
+            service.start();
+            url = "http://127.0.0.1:" + service.getAddress().getPort();
+        }
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+        HttpRequest[] prepared = new HttpRequest[paths.length];
+        for (int i = 0; i < paths.length; i++) {
+            prepared[i] = HttpRequest.newBuilder(URI.create(url + paths[i])).timeout(Duration.ofSeconds(60)).build();
+        }
+
+        System.out.println("Sending " + requests + " requests to " + url + " with " + concurrency + " in flight");
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(requests);
+        LatencyHistogram latency = new LatencyHistogram();
+        Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+        AtomicInteger failures = new AtomicInteger();
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            inFlight.acquire();
+            long sent = System.nanoTime();
+            client.sendAsync(prepared[i % prepared.length], HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, error) -> {
+                        latency.recordSince(sent);
+                        String outcome = error != null ? error.getClass().getSimpleName() : Integer.toString(response.statusCode());
+                        if (error != null) {
+                            failures.incrementAndGet();
+                        }
+                        outcomes.computeIfAbsent(outcome, k -> new LongAdder()).increment();
+                        inFlight.release();
+                        done.countDown();
+                    });
+        }
+        done.await();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+        System.out.printf("%d requests in %.3fs: %.0f requests/s%n", requests, seconds, requests / seconds);
+        System.out.printf("latency ms: p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f%n",
+                latency.getValueAtQuantile(0.5) / 1e6, latency.getValueAtQuantile(0.9) / 1e6,
+                latency.getValueAtQuantile(0.99) / 1e6, latency.getValueAtQuantile(0.999) / 1e6,
+                latency.getMax() / 1e6);
+        System.out.println("outcomes: " + new TreeMap<>(outcomes));
+
+        if (service != null) {
+            service.stop();
+        }
+        ErrorLogger.flush();
+        System.exit(failures.get() == 0 ? 0 : 1);
+    }
+}
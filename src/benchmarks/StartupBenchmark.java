@@ -0,0 +1,181 @@
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how long the interactive program takes to start, with and without an AppCDS archive.
+ *
+ * Each run launches a fresh JVM on the application jar, feeds it one scripted session on stdin
+ * and records two times from the launch: until the first prompt appears on stdout, and until
+ * the process exits. Runs alternate between the configurations so both see the same machine
+ * state. Build the jar and archive first with scripts/build-cds.sh.
+ *
+ * Usage: java StartupBenchmark --jar build/defend.jar [--archive build/defend.jsa] [--runs n]
+ *                              [--out startup.json]
+ * Run it from a scratch directory: the sessions create files there.
+ */
+public class StartupBenchmark {
+
+    private static final String FIRST_PROMPT = "Enter your first name";
+    private static final String SESSION = "Ada\nLovelace\n12345\n-6789\nstartup-input.txt\nstartup-output.txt\n"
+            + "Start1ng!Up\nStart1ng!Up\n";
+
+    private String jar;
+    private String archive;
+    private int runs = 10;
+    private String outFile = "startup.json";
+
+    public static void main(String[] args) throws Exception {
+        StartupBenchmark benchmark = new StartupBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--jar":
+                    jar = args[i + 1];
+                    break;
+                case "--archive":
+                    archive = args[i + 1];
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--out":
+                    outFile = args[i + 1];
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (jar == null) {
+            throw new IllegalArgumentException("--jar is required");
+        }
+    }
+
+    private void run() throws Exception {
+        Files.write(Paths.get("startup-input.txt"), "one line of input\n".getBytes(Charset.defaultCharset()));
+
+        List<String> names = new ArrayList<>();
+        List<List<String>> commands = new ArrayList<>();
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        names.add("default");
+        commands.add(Arrays.asList(java, "-jar", jar));
+        if (archive != null) {
+            if (!new File(archive).isFile()) {
+                throw new IllegalArgumentException("No archive at " + archive + "; run scripts/build-cds.sh");
+            }
+            names.add("appcds");
+            commands.add(Arrays.asList(java, "-XX:SharedArchiveFile=" + archive, "-Xshare:auto", "-jar", jar));
+        }
+
+        // One untimed run each warms the OS file cache
+        for (List<String> command : commands) {
+            launch(command);
+        }
+
+        long[][] firstPrompt = new long[commands.size()][runs];
+        long[][] total = new long[commands.size()][runs];
+        for (int run = 0; run < runs; run++) {
+            for (int c = 0; c < commands.size(); c++) {
+                long[] times = launch(commands.get(c));
+                firstPrompt[c][run] = times[0];
+                total[c][run] = times[1];
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+        System.out.printf("%-10s %22s %22s%n", "config", "first prompt ms (med)", "total ms (med)");
+        for (int c = 0; c < commands.size(); c++) {
+            System.out.printf(Locale.ROOT, "%-10s %22.1f %22.1f%n", names.get(c),
+                    median(firstPrompt[c]) / 1e6, median(total[c]) / 1e6);
+            results.add(result("startup.firstPrompt", names.get(c), firstPrompt[c]));
+            results.add(result("startup.total", names.get(c), total[c]));
+        }
+
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(outFile))) {
+            writer.write("[\n" + String.join(",\n", results) + "\n]\n");
+        }
+        System.out.println("Wrote " + results.size() + " results to " + outFile);
+    }
+
+    /**
+     * @return Nanoseconds from launch to the first prompt and to exit
+     */
+    private static long[] launch(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true);
+        long start = System.nanoTime();
+        Process process = builder.start();
+        try (OutputStream stdin = process.getOutputStream()) {
+            stdin.write(SESSION.getBytes(Charset.defaultCharset()));
+        }
+
+        long firstPrompt = -1;
+        ByteArrayOutputStream seen = new ByteArrayOutputStream();
+        byte[] marker = FIRST_PROMPT.getBytes(Charset.defaultCharset());
+        byte[] buffer = new byte[8192];
+        InputStream stdout = process.getInputStream();
+        int read;
+        while ((read = stdout.read(buffer)) != -1) {
+            if (firstPrompt < 0) {
+                seen.write(buffer, 0, read);
+                if (indexOf(seen.toByteArray(), marker) >= 0) {
+                    firstPrompt = System.nanoTime() - start;
+                }
+            }
+        }
+        int exit = process.waitFor();
+        long elapsed = System.nanoTime() - start;
+        if (exit != 0 || firstPrompt < 0) {
+            throw new IOException(String.join(" ", command) + " exited with " + exit
+                    + (firstPrompt < 0 ? " without showing the first prompt" : ""));
+        }
+        return new long[] {firstPrompt, elapsed};
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static double median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    // Same shape as the Benchmarks results (JMH's -rf json), in single-shot mode
+    private static String result(String name, String config, long[] nanos) {
+        StringBuilder raw = new StringBuilder();
+        for (int i = 0; i < nanos.length; i++) {
+            raw.append(i == 0 ? "" : ",").append(String.format(Locale.ROOT, "%.3f", nanos[i] / 1e6));
+        }
+        return String.format(Locale.ROOT, "  {\"benchmark\":\"%s\",\"mode\":\"ss\",\"threads\":1,"
+                        + "\"params\":{\"config\":\"%s\"},\"primaryMetric\":{\"score\":%.3f,\"scoreUnit\":\"ms\","
+                        + "\"rawData\":[[%s]]}}",
+                name, config, median(nanos) / 1e6, raw);
+    }
+}
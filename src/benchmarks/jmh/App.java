@@ -0,0 +1,72 @@
+package jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the application's classes for the JMH benchmarks.
+ *
+ * JMH only generates benchmarks in a named package, and code in a named package cannot refer to
+ * classes in the unnamed package the application lives in. The benchmarks therefore call it
+ * through method handles kept in static final fields, which the JIT treats as constants and
+ * inlines, so a call costs what a direct one does. Handles are erased: every reference
+ * parameter and result is an Object, so call them with invokeExact and Object arguments.
+ */
+final class App {
+
+    private App() {
+    }
+
+    /**
+     * @param className Application class, e.g. "ProcessingOptions$CopyMode"
+     * @return The class
+     */
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Application class not on the classpath: " + className, e);
+        }
+    }
+
+    /**
+     * @param className Declaring class
+     * @param name Method name
+     * @param parameterTypes Declared parameter types
+     * @return An erased handle; an instance method takes its receiver first
+     */
+    static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type(className).getDeclaredMethod(name, parameterTypes);
+            // Package-private helpers are benchmarked too
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No method " + className + "." + name, e);
+        }
+    }
+
+    /**
+     * @return The value of a static field
+     */
+    static Object field(String className, String name) {
+        try {
+            Field field = type(className).getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("No field " + className + "." + name, e);
+        }
+    }
+
+    /**
+     * @return The named constant of an application enum
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object constant(String enumClassName, String name) {
+        return Enum.valueOf((Class) type(enumClassName), name);
+    }
+}
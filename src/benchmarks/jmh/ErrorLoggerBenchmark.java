@@ -0,0 +1,46 @@
+package jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ErrorLogger.logError with several callers at once; change the caller count with -t. The log
+ * is written to error_log.txt in the working directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class ErrorLoggerBenchmark {
+
+    private static final MethodHandle LOG_ERROR = App.method("ErrorLogger", "logError", String.class);
+    private static final MethodHandle FLUSH = App.method("ErrorLogger", "flush");
+
+    private int count;
+
+    @Benchmark
+    public void logError() throws Throwable {
+        LOG_ERROR.invokeExact((Object) ("benchmark error " + count++));
+    }
+
+    @TearDown(Level.Trial)
+    public void flush() throws Throwable {
+        FLUSH.invokeExact();
+    }
+}
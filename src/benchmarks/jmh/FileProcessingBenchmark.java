@@ -0,0 +1,87 @@
+package jmh;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FileProcessor.processFiles for each copy mode and input size. 1GB is left out by default; add
+ * it with -p size=1073741824. Inputs are created in the working directory, with the same lines
+ * Benchmarks writes, and kept for later runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileProcessingBenchmark {
+
+    private static final MethodHandle DEFAULTS = App.method("ProcessingOptions", "defaults");
+    private static final MethodHandle SET_COPY_MODE = App.method("ProcessingOptions", "setCopyMode",
+            App.type("ProcessingOptions$CopyMode"));
+    private static final MethodHandle PROCESS_FILES = App.method("FileProcessor", "processFiles",
+            String.class, String.class, int.class, int.class, String.class, String.class, String.class,
+            App.type("ProcessingOptions"));
+
+    @Param({"1024", "1048576", "67108864"})
+    public long size;
+
+    @Param({"LINES", "STREAMING", "PARALLEL"})
+    public String mode;
+
+    private String input;
+    private Object options;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        input = createInputFile(size).getPath();
+        options = (Object) SET_COPY_MODE.invokeExact((Object) DEFAULTS.invokeExact(),
+                App.constant("ProcessingOptions$CopyMode", mode));
+    }
+
+    @Benchmark
+    public long processFiles() throws Throwable {
+        PROCESS_FILES.invokeExact((Object) "First", (Object) "Last", 12345, -6789,
+                (Object) input, (Object) "bench-output.txt", (Object) "hash", options);
+        return new File("bench-output.txt").length();
+    }
+
+    private static File createInputFile(long size) throws IOException {
+        File file = new File("bench-input-" + size + ".txt");
+        if (file.length() == size) {
+            return file;
+        }
+        String line = "The quick brown fox jumps over the lazy dog 0123456789 abcdefghijklmnopqrstuvw\n";
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            long written = 0;
+            while (written + line.length() <= size) {
+                writer.write(line);
+                written += line.length();
+            }
+            for (long i = written; i < size - 1; i++) {
+                writer.write('x');
+            }
+            if (written < size) {
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+}
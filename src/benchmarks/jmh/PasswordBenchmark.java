@@ -0,0 +1,72 @@
+package jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Password hashing, hex encoding and salt generation
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class PasswordBenchmark {
+
+    private static final MethodHandle HASH_PASSWORD = App.method("PasswordManager", "hashPassword",
+            String.class, String.class, App.type("PasswordKdf"));
+    private static final MethodHandle BYTES_TO_HEX = App.method("PasswordManager", "bytesToHex", byte[].class);
+    private static final MethodHandle SHARED_SALTS = App.method("SaltProvider", "shared");
+    private static final MethodHandle NEXT_SALT = App.method("SaltProvider", "next");
+
+    /** legacy is the single SHA-256 pass, pbkdf2 is PBKDF2-HMAC-SHA256 at 10,000 iterations */
+    @Param({"legacy", "pbkdf2"})
+    public String kdf;
+
+    private Object passwordKdf;
+    private String salt;
+    private final byte[] digest = new byte[32];
+    private Object salts;
+
+    @Setup
+    public void setUp() throws Throwable {
+        passwordKdf = kdf.equals("legacy")
+                ? (Object) App.method("PasswordKdf", "legacy").invokeExact()
+                : (Object) App.method("PasswordKdf", "pbkdf2", int.class).invokeExact(10_000);
+        byte[] saltBytes = new byte[16];
+        SecureRandom random = new SecureRandom();
+        random.nextBytes(saltBytes);
+        random.nextBytes(digest);
+        salt = (String) (Object) BYTES_TO_HEX.invokeExact((Object) saltBytes);
+        salts = (Object) SHARED_SALTS.invokeExact();
+    }
+
+    @Benchmark
+    public Object hashPassword() throws Throwable {
+        return (Object) HASH_PASSWORD.invokeExact((Object) "Passw0rd!", (Object) salt, passwordKdf);
+    }
+
+    @Benchmark
+    public Object bytesToHex() throws Throwable {
+        return (Object) BYTES_TO_HEX.invokeExact((Object) digest);
+    }
+
+    @Benchmark
+    public Object saltProviderNext() throws Throwable {
+        return (Object) NEXT_SALT.invokeExact(salts);
+    }
+}
@@ -0,0 +1,71 @@
+package jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The compiled validation rules on the values Benchmarks uses, as Strings and as UTF-8 bytes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ValidationBenchmark {
+
+    private static final Object NAME = App.field("ValidationRules", "NAME");
+    private static final Object FILE_NAME = App.field("ValidationRules", "FILE_NAME");
+    private static final MethodHandle CHECK = App.method("ValidationRule", "check", CharSequence.class);
+    private static final MethodHandle CHECK_BYTES = App.method("ValidationRule", "check", byte[].class, int.class, int.class);
+
+    private static final String[] NAMES = {"Jay", "Mary-Anne O'Neil", "Bad N4me", "", "Averyveryveryverylongnamethatgoesonandonandonandonandon"};
+    private static final String[] FILE_NAMES = {"input.txt", "report_2024-01.csv", "../etc/passwd", "", "a b.txt"};
+
+    private final byte[][] nameBytes = new byte[NAMES.length][];
+    private int next;
+
+    public ValidationBenchmark() {
+        for (int i = 0; i < NAMES.length; i++) {
+            nameBytes[i] = NAMES[i].getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    // Each invocation takes the next value, so every value is measured in turn
+    private int nextIndex() {
+        next = next == NAMES.length - 1 ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    public Object name() throws Throwable {
+        return (Object) CHECK.invokeExact(NAME, (Object) NAMES[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object fileName() throws Throwable {
+        return (Object) CHECK.invokeExact(FILE_NAME, (Object) FILE_NAMES[nextIndex()]);
+    }
+
+    @Benchmark
+    public Object nameDecodedFromBytes() throws Throwable {
+        return (Object) CHECK.invokeExact(NAME, (Object) new String(nameBytes[nextIndex()], StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public Object nameBytes() throws Throwable {
+        byte[] name = nameBytes[nextIndex()];
+        return (Object) CHECK_BYTES.invokeExact(NAME, (Object) name, 0, name.length);
+    }
+}
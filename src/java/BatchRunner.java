@@ -0,0 +1,323 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the DefendYourCodeJava checks and report writing over a manifest of records
+ * without any interactive prompts, on the staged Pipeline.
+ *
+ * Usage: java DefendYourCodeJava --batch manifest.(csv|jsonl) results.txt [threads]
+ *
+ * CSV manifests have the columns firstName,lastName,num1,num2,inputFile,outputFile,password
+ * (a header row with those names is optional, quoted fields are supported).
+ * JSONL manifests have one flat object per line using the same keys.
+ * Manifests are read and results written as UTF-8.
+ */
+public class BatchRunner {
+
+    /**
+     * Entry point for batch mode
+     * @param args "--batch", manifest file, results file and optional worker count
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: java DefendYourCodeJava --batch <manifest.csv|manifest.jsonl> <results.txt> [threads]");
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (args.length > 3) {
+            try {
+                threads = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                ErrorLogger.logError("Batch error: Invalid thread count: " + args[3]);
+                System.out.println("Thread count must be a whole number.");
+                return;
+            }
+            if (threads < 1) {
+                ErrorLogger.logError("Batch error: Thread count must be positive: " + threads);
+                System.out.println("Thread count must be at least 1.");
+                return;
+            }
+        }
+
+        try {
+            runBatch(args[1], args[2], threads);
+        } catch (IOException e) {
+            ErrorLogger.logError("Batch error", e);
+            System.out.println("Batch run failed. See error_log.txt for details.");
+        }
+    }
+
+    /**
+     * Runs every record of a manifest through the pipeline and writes one result line per record
+     * @param manifestFile The CSV or JSONL manifest
+     * @param resultsFile The file receiving one result line per record, in manifest order
+     * @param threads Worker threads for each pipeline stage without its own setting
+     * @throws IOException If the manifest cannot be read or the results cannot be written
+     */
+    public static void runBatch(String manifestFile, String resultsFile, int threads) throws IOException {
+        System.out.println("Processing records from " + manifestFile + " with " + threads + " worker threads per stage");
+
+        long start = System.nanoTime();
+        int[] counts = new int[Submission.Status.values().length];
+        long records;
+
+        // The manifest is read as the pipeline has room, so its size does not bound the memory used
+        try (ManifestSource source = new ManifestSource(manifestFile);
+             BufferedWriter writer = Files.newBufferedWriter(Paths.get(resultsFile), StandardCharsets.UTF_8)) {
+            records = PipelineStages.standard(threads).run(source, submission -> {
+                counts[submission.getStatus().ordinal()]++;
+                writer.write(submission.lineNumber + "\t" + submission.getStatus() + "\t" + submission.getDetail());
+                writer.newLine();
+            });
+        }
+
+        long elapsedNanos = System.nanoTime() - start;
+        double seconds = elapsedNanos / 1_000_000_000.0;
+        double perSecond = seconds > 0 ? records / seconds : 0;
+
+        System.out.println("\nBatch complete: " + records + " records in "
+                + String.format("%.3f", seconds) + "s (" + String.format("%.1f", perSecond) + " records/s)");
+        System.out.println("Accepted: " + counts[Submission.Status.ACCEPTED.ordinal()]
+                + ", Rejected: " + counts[Submission.Status.REJECTED.ordinal()]
+                + ", Failed: " + counts[Submission.Status.FAILED.ordinal()]);
+        System.out.println(SaltProvider.shared());
+        System.out.println("Results written to " + resultsFile);
+    }
+
+    /**
+     * Reads manifest records one at a time for the pipeline's acquire stage, choosing the format
+     * from the file extension
+     */
+    static class ManifestSource implements Pipeline.Source, Closeable {
+        private final String manifestFile;
+        private final BufferedReader reader;
+        private final boolean jsonl;
+        private int lineNumber;
+        private boolean seenRecord;
+
+        ManifestSource(String manifestFile) throws IOException {
+            this.jsonl = manifestFile.toLowerCase().endsWith(".jsonl") || manifestFile.toLowerCase().endsWith(".json");
+            this.manifestFile = manifestFile;
+            this.reader = Files.newBufferedReader(Paths.get(manifestFile), StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Submission next() throws IOException {
+            String line;
+            while ((line = readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+
+                Map<String, String> fields;
+                try {
+                    if (jsonl) {
+                        fields = parseJsonLine(line, lineNumber);
+                    } else {
+                        List<String> values = parseCsvLine(line, lineNumber);
+                        // Skip an optional header row
+                        if (!seenRecord && !values.isEmpty() && values.get(0).trim().equalsIgnoreCase(Submission.FIELDS[0])) {
+                            continue;
+                        }
+                        fields = new HashMap<>();
+                        for (int i = 0; i < Submission.FIELDS.length && i < values.size(); i++) {
+                            fields.put(Submission.FIELDS[i], values.get(i));
+                        }
+                    }
+                } catch (ManifestFormatException e) {
+                    // A malformed line is rejected as its own record; the rest of the manifest still runs
+                    ErrorLogger.logError("Batch record " + lineNumber + " validation error: " + e.getMessage());
+                    seenRecord = true;
+                    Submission rejected = new Submission(lineNumber, new HashMap<>());
+                    rejected.reject(e.getMessage());
+                    return rejected;
+                }
+                seenRecord = true;
+                return new Submission(lineNumber, fields);
+            }
+            return null;
+        }
+
+        private String readLine() throws IOException {
+            try {
+                return reader.readLine();
+            } catch (CharacterCodingException e) {
+                // The reader decodes ahead of the lines it returns, so the line is not known
+                throw new IOException("Manifest " + manifestFile + " is not valid UTF-8", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * A manifest line that cannot be parsed; only that record is rejected
+     */
+    static class ManifestFormatException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ManifestFormatException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Splits one CSV line, honouring double-quoted fields and "" escapes
+     */
+    static List<String> parseCsvLine(String line, int lineNumber) throws ManifestFormatException {
+        List<String> values = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        current.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    current.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+
+        if (quoted) {
+            throw new ManifestFormatException("Manifest line " + lineNumber + ": unterminated quoted field");
+        }
+        values.add(current.toString());
+        return values;
+    }
+
+    /**
+     * Parses one flat JSON object whose values are strings or numbers
+     */
+    static Map<String, String> parseJsonLine(String line, int lineNumber) throws ManifestFormatException {
+        Map<String, String> fields = new HashMap<>();
+        int[] pos = {skipWhitespace(line, 0)};
+
+        expect(line, pos, '{', lineNumber);
+        pos[0] = skipWhitespace(line, pos[0]);
+        if (pos[0] < line.length() && line.charAt(pos[0]) == '}') {
+            return fields;
+        }
+
+        while (true) {
+            pos[0] = skipWhitespace(line, pos[0]);
+            String key = readJsonString(line, pos, lineNumber);
+            pos[0] = skipWhitespace(line, pos[0]);
+            expect(line, pos, ':', lineNumber);
+            pos[0] = skipWhitespace(line, pos[0]);
+
+            String value;
+            if (pos[0] < line.length() && line.charAt(pos[0]) == '"') {
+                value = readJsonString(line, pos, lineNumber);
+            } else {
+                int start = pos[0];
+                while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0) {
+                    pos[0]++;
+                }
+                value = line.substring(start, pos[0]);
+            }
+            fields.put(key, value);
+
+            pos[0] = skipWhitespace(line, pos[0]);
+            if (pos[0] < line.length() && line.charAt(pos[0]) == ',') {
+                pos[0]++;
+                continue;
+            }
+            expect(line, pos, '}', lineNumber);
+            return fields;
+        }
+    }
+
+    private static String readJsonString(String line, int[] pos, int lineNumber) throws ManifestFormatException {
+        expect(line, pos, '"', lineNumber);
+        StringBuilder value = new StringBuilder();
+        while (pos[0] < line.length()) {
+            char c = line.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (pos[0] >= line.length()) {
+                break;
+            }
+            char escaped = line.charAt(pos[0]++);
+            switch (escaped) {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'u':
+                    if (pos[0] + 4 > line.length()) {
+                        throw new ManifestFormatException("Manifest line " + lineNumber + ": bad unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new ManifestFormatException("Manifest line " + lineNumber + ": bad unicode escape");
+                    }
+                    pos[0] += 4;
+                    break;
+                default:
+                    value.append(escaped);
+                    break;
+            }
+        }
+        throw new ManifestFormatException("Manifest line " + lineNumber + ": unterminated string");
+    }
+
+    private static void expect(String line, int[] pos, char c, int lineNumber) throws ManifestFormatException {
+        if (pos[0] >= line.length() || line.charAt(pos[0]) != c) {
+            throw new ManifestFormatException("Manifest line " + lineNumber + ": expected '" + c + "' at column " + (pos[0] + 1));
+        }
+        pos[0]++;
+    }
+
+    private static int skipWhitespace(String line, int pos) {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory LRU cache of stored credentials in front of the CredentialStore.
+ *
+ * Repeated verifications of the same user are served from memory. The cache is dropped
+ * whenever the store's generation counter changes (any write, from any process sharing the
+ * file) and whenever a WatchService reports the store file being replaced by a newer one, so a
+ * cached entry is never older than the file. Size comes from -Ddefend.credentialCache.size
+ * (default 10000 users).
+ */
+public final class CredentialCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+    private static CredentialCache shared;
+
+    private final CredentialStore store;
+    private final Map<String, StoredCredential> entries;
+    private long seenGeneration;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param store The store being cached
+     * @param maxEntries Number of users kept before the least recently used is evicted
+     */
+    public CredentialCache(CredentialStore store, int maxEntries) {
+        this.store = store;
+        this.seenGeneration = store.generation();
+        this.entries = new LinkedHashMap<String, StoredCredential>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, StoredCredential> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return The cache over CredentialStore.shared(), watching the store file for changes
+     * @throws IOException If the store cannot be opened
+     */
+    public static synchronized CredentialCache shared() throws IOException {
+        if (shared == null) {
+            shared = new CredentialCache(CredentialStore.shared(),
+                    Integer.getInteger("defend.credentialCache.size", DEFAULT_MAX_ENTRIES));
+            shared.watchStoreFile();
+        }
+        return shared;
+    }
+
+    /**
+     * Looks up a user's credential, going to the store only on a miss
+     * @param userKey The user key
+     * @return The credential, or null if the user has none
+     */
+    public StoredCredential get(String userKey) {
+        long generation = store.generation();
+        synchronized (this) {
+            if (generation != seenGeneration) {
+                dropAll(generation);
+            }
+            StoredCredential credential = entries.get(userKey);
+            if (credential != null) {
+                hits.increment();
+                return credential;
+            }
+        }
+
+        misses.increment();
+        StoredCredential credential = store.lookup(userKey);
+        if (credential != null) {
+            synchronized (this) {
+                // Only keep it if nothing was written while we read
+                if (seenGeneration == generation && store.generation() == generation) {
+                    entries.put(userKey, credential);
+                }
+            }
+        }
+        return credential;
+    }
+
+    /**
+     * Saves a credential to the store and keeps it cached
+     * @param userKey The user key
+     * @param credential The credential
+     * @throws IOException If the store cannot be written
+     */
+    public synchronized void save(String userKey, StoredCredential credential) throws IOException {
+        long before = store.generation();
+        store.save(userKey, credential);
+        long after = store.generation();
+
+        // Our own write need not flush everything, unless someone else wrote as well
+        if (before == seenGeneration && after == before + 1) {
+            seenGeneration = after;
+            entries.put(userKey, credential);
+        } else {
+            dropAll(after);
+        }
+    }
+
+    /**
+     * Drops every cached entry
+     */
+    public synchronized void invalidateAll() {
+        dropAll(store.generation());
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits.sum();
+        long missCount = misses.sum();
+        long total = hitCount + missCount;
+        return "Credential cache: " + size() + " entries, " + hitCount + " hits, " + missCount + " misses ("
+                + (total == 0 ? 0 : hitCount * 100 / total) + "% hit rate), " + invalidations.sum() + " invalidations";
+    }
+
+    // The file our own growth moved into place has the generation the cache already saw
+    private synchronized void invalidateIfNewer() {
+        long generation = store.generation();
+        if (generation != seenGeneration) {
+            dropAll(generation);
+        }
+    }
+
+    private void dropAll(long generation) {
+        if (!entries.isEmpty()) {
+            entries.clear();
+        }
+        seenGeneration = generation;
+        invalidations.increment();
+    }
+
+    /**
+     * Starts a daemon thread that remaps the store when its file is replaced on disk, and drops
+     * the cache if the new file is newer than what it holds. Growing the store replaces the file,
+     * which the mapping we hold would not notice; writes in place already show in the mapped
+     * generation, so modifications, including our own, are not watched.
+     */
+    private void watchStoreFile() {
+        Path file = store.getPath().toAbsolutePath();
+        Path directory = file.getParent();
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            // A replacing move shows up as the file being created
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+        } catch (IOException e) {
+            ErrorLogger.logError("Could not watch " + file + " for changes; relying on the store generation only: "
+                    + e.getMessage());
+            return;
+        }
+
+        Thread thread = new Thread(() -> {
+            while (true) {
+                WatchKey key;
+                try {
+                    key = watcher.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                            || (context instanceof Path && file.getFileName().equals(context))) {
+                        changed = true;
+                    }
+                }
+                if (changed) {
+                    try {
+                        store.refresh();
+                    } catch (IOException e) {
+                        ErrorLogger.logError("Could not remap the credential store: " + e.getMessage());
+                    }
+                    invalidateIfNewer();
+                }
+                if (!key.reset()) {
+                    return;
+                }
+            }
+        }, "credential-cache-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,583 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Multi-user password store kept in a memory-mapped file of fixed-size binary records.
+ *
+ * The file is a 64 byte header followed by a power-of-two number of 256 byte slots. The
+ * slots themselves form an open-addressing hash table (linear probing on a hash of the user
+ * key), so a lookup touches one or two slots and never reads the rest of the file.
+ *
+ * One writer and many readers, across processes: a write holds an exclusive lock on the
+ * store's .lock file (and a monitor per file within this JVM), and each slot carries a sequence
+ * number that the writer makes odd while it changes the slot. Readers take no lock; they retry
+ * if the number is odd or changed while they read. When the table gets 70% full the writer
+ * builds a table of twice the size in a temporary file and renames it over the old one; a
+ * writer in another process remaps the file before it writes. A writer that dies mid-write
+ * leaves its slot odd: odd slots are made readable again when the store is opened, and by a
+ * reader that still finds one odd after SPIN_LIMIT retries once it holds the lock.
+ *
+ * User keys join the first and last name with a NUL, which no name may contain. Keys written
+ * by earlier versions joined them with a space; lookup falls back to that form when it names
+ * only one user.
+ */
+public final class CredentialStore {
+
+    /** Store used by the interactive programs */
+    public static final String DEFAULT_STORE_FILE = "credentials.store";
+
+    // Original single-user file, imported under DEFAULT_USER the first time the store is opened
+    static final String LEGACY_PASSWORD_FILE = "password.hash";
+    public static final String DEFAULT_USER = "default";
+
+    private static final int MAGIC = 0x44594353; // "DYCS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 256;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_COUNT = 12;
+    private static final int H_GENERATION = 16;
+
+    // Slot layout
+    private static final int S_SEQUENCE = 0;
+    private static final int S_KEY_HASH = 4;
+    private static final int S_KEY_LENGTH = 8;
+    private static final int S_ALGORITHM = 10;
+    private static final int S_SALT_LENGTH = 11;
+    private static final int S_ITERATIONS = 12;
+    private static final int S_HASH_LENGTH = 16;
+    private static final int S_SALT = 24;
+    private static final int S_HASH = 56;
+    private static final int S_KEY = 120;
+
+    private static final int MAX_SALT_BYTES = 32;
+    private static final int MAX_HASH_BYTES = 64;
+    /** Longest user key in UTF-8 bytes */
+    public static final int MAX_KEY_BYTES = SLOT_SIZE - S_KEY;
+
+    // Retries of a slot a writer holds before checking whether that writer is still alive
+    private static final int SPIN_LIMIT = 1 << 16;
+
+    private static final VarHandle INT_VIEW =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static CredentialStore shared;
+
+    // One monitor per lock file: the file lock is held by the JVM, not by a thread
+    private static final ConcurrentHashMap<Path, Object> lockMonitors = new ConcurrentHashMap<>();
+
+    // Key bytes are encoded into a per-thread buffer so lookups do not allocate for the key
+    private static final ThreadLocal<byte[]> keyBuffer = ThreadLocal.withInitial(() -> new byte[MAX_KEY_BYTES * 3]);
+
+    private final Path path;
+    private final Path lockPath;
+    private volatile Table table;
+
+    private CredentialStore(Path path) {
+        this.path = path;
+        this.lockPath = path.toAbsolutePath().resolveSibling(path.getFileName() + ".lock");
+    }
+
+    /**
+     * @return The store in the working directory, opened on first use
+     * @throws IOException If the store cannot be opened
+     */
+    public static synchronized CredentialStore shared() throws IOException {
+        if (shared == null) {
+            shared = open(Paths.get(DEFAULT_STORE_FILE));
+            shared.importLegacyFile(Paths.get(LEGACY_PASSWORD_FILE));
+        }
+        return shared;
+    }
+
+    /**
+     * Opens a store, creating it if the file does not exist
+     * @param path The store file
+     * @return The open store
+     * @throws IOException If the file cannot be mapped or is not a store
+     */
+    public static CredentialStore open(Path path) throws IOException {
+        CredentialStore store = new CredentialStore(path);
+        store.locked(() -> {
+            if (!Files.exists(path) || Files.size(path) == 0) {
+                store.table = Table.create(path, INITIAL_CAPACITY);
+                return;
+            }
+            Table opened = Table.map(path);
+            int repaired = opened.repairOddSlots();
+            if (repaired > 0) {
+                ErrorLogger.logError("Credential store " + path + ": repaired " + repaired
+                        + " slots left mid-write by a writer that stopped");
+            }
+            store.table = opened;
+        });
+        return store;
+    }
+
+    /**
+     * Builds the key for a user from their name
+     * @param firstName First name
+     * @param lastName Last name
+     * @return The user key: the trimmed names joined by a NUL, which the name rule does not allow,
+     *         so no two names share a key
+     */
+    public static String userKey(String firstName, String lastName) {
+        return firstName.trim() + '\0' + lastName.trim();
+    }
+
+    /**
+     * Looks up a user's credential
+     * @param userKey The user key
+     * @return The credential, or null if the user has none
+     */
+    public StoredCredential lookup(String userKey) {
+        StoredCredential credential = lookupKey(userKey);
+        int separator = userKey.indexOf('\0');
+        if (credential == null && separator >= 0) {
+            // Earlier versions joined the names with a space; that key is only this user's if
+            // neither name has a space in it
+            String legacyKey = userKey.replace('\0', ' ');
+            if (legacyKey.indexOf(' ') == separator && legacyKey.lastIndexOf(' ') == separator) {
+                credential = lookupKey(legacyKey);
+            }
+        }
+        return credential;
+    }
+
+    private StoredCredential lookupKey(String userKey) {
+        byte[] key = keyBuffer.get();
+        int keyLength = encodeKey(userKey, key);
+        int keyHash = hash(key, keyLength);
+
+        while (true) {
+            Table current = table;
+            int mask = current.capacity - 1;
+            int spins = 0;
+            for (int probe = 0; probe < current.capacity; probe++) {
+                int offset = current.slotOffset((keyHash + probe) & mask);
+                int sequence = current.sequence(offset);
+                if ((sequence & 1) != 0) {
+                    // Writer is mid-update on this slot; look again
+                    if (++spins == SPIN_LIMIT) {
+                        repairStuckSlot(current, offset, sequence);
+                        spins = 0;
+                    } else {
+                        Thread.onSpinWait();
+                    }
+                    probe--;
+                    continue;
+                }
+
+                int storedLength = current.buffer.getShort(offset + S_KEY_LENGTH);
+                if (storedLength == 0) {
+                    // Keeps the plain reads above from moving past the re-check of the sequence
+                    VarHandle.acquireFence();
+                    if (current.sequence(offset) == sequence) {
+                        return null;
+                    }
+                    probe--;
+                    continue;
+                }
+                if (current.buffer.getInt(offset + S_KEY_HASH) != keyHash || storedLength != keyLength
+                        || !current.keyEquals(offset, key, keyLength)) {
+                    VarHandle.acquireFence();
+                    if (current.sequence(offset) != sequence) {
+                        probe--;
+                    }
+                    continue;
+                }
+
+                StoredCredential credential = current.readCredential(offset);
+                VarHandle.acquireFence();
+                if (current.sequence(offset) == sequence) {
+                    return credential;
+                }
+                probe--;
+            }
+            if (current == table) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adds or replaces a user's credential
+     * @param userKey The user key
+     * @param credential The credential
+     * @throws IOException If the store cannot be grown or flushed
+     */
+    public synchronized void save(String userKey, StoredCredential credential) throws IOException {
+        byte[] key = keyBuffer.get();
+        int keyLength = encodeKey(userKey, key);
+        int keyHash = hash(key, keyLength);
+        byte[] salt = credential.getSaltBytes();
+        byte[] hash = credential.getHashBytes();
+        if (salt.length > MAX_SALT_BYTES || hash.length > MAX_HASH_BYTES) {
+            throw new IOException("Credential too large for the store: salt " + salt.length + ", hash " + hash.length);
+        }
+
+        locked(() -> {
+            Table current = currentFile();
+            int offset = current.findSlot(key, keyLength, keyHash);
+            boolean isNew = current.buffer.getShort(offset + S_KEY_LENGTH) == 0;
+            int target = offset;
+            if (isNew && (current.count() + 1) * 10L > current.capacity * 7L) {
+                current = grow(current);
+                target = current.findSlot(key, keyLength, keyHash);
+            }
+
+            current.writeSlot(target, key, keyLength, keyHash, credential.getKdf(), salt, hash);
+            if (isNew) {
+                current.buffer.putInt(H_COUNT, current.count() + 1);
+            }
+            current.bumpGeneration();
+            current.buffer.force(target, SLOT_SIZE);
+            current.buffer.force(0, HEADER_SIZE);
+        });
+    }
+
+    /**
+     * A write made while holding the store's lock
+     */
+    private interface LockedWrite {
+        void run() throws IOException;
+    }
+
+    // Runs a write holding the lock file, which writers in other processes take as well
+    private void locked(LockedWrite write) throws IOException {
+        synchronized (lockMonitors.computeIfAbsent(lockPath, lock -> new Object())) {
+            try (FileChannel channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    write.run();
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    // The table of the file now at the path: another process may have grown it since we mapped it
+    private Table currentFile() throws IOException {
+        Table current = table;
+        Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        if (fileKey != null && !fileKey.equals(current.fileKey)) {
+            current = Table.map(path);
+            table = current;
+        }
+        return current;
+    }
+
+    // A slot still odd after SPIN_LIMIT retries: once no writer holds the lock, nobody will finish it
+    private void repairStuckSlot(Table current, int offset, int sequence) {
+        try {
+            locked(() -> {
+                if (current.sequence(offset) == sequence) {
+                    current.setSequence(offset, sequence + 1);
+                    current.buffer.force(offset, SLOT_SIZE);
+                    ErrorLogger.logError("Credential store " + path + ": repaired a slot left mid-write by a writer that stopped");
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("Credential store slot is stuck mid-write and cannot be repaired: "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Re-maps the store file, picking up a file that another process replaced when growing it
+     * @throws IOException If the file cannot be mapped
+     */
+    public synchronized void refresh() throws IOException {
+        if (Files.exists(path) && Files.size(path) > 0) {
+            table = Table.map(path);
+        }
+    }
+
+    /**
+     * @return Number of users in the store
+     */
+    public int size() {
+        return table.count();
+    }
+
+    /**
+     * @return A number that changes whenever the store is written, by any process sharing the file
+     */
+    public long generation() {
+        return (long) LONG_VIEW.getVolatile(table.buffer, H_GENERATION);
+    }
+
+    /**
+     * @return The store file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    private Table grow(Table current) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        Table bigger = Table.create(temp, current.capacity * 2);
+
+        byte[] key = new byte[MAX_KEY_BYTES];
+        for (int slot = 0; slot < current.capacity; slot++) {
+            int offset = current.slotOffset(slot);
+            int keyLength = current.buffer.getShort(offset + S_KEY_LENGTH);
+            if (keyLength == 0) {
+                continue;
+            }
+            current.buffer.get(offset + S_KEY, key, 0, keyLength);
+            int target = bigger.findSlot(key, keyLength, current.buffer.getInt(offset + S_KEY_HASH));
+            bigger.buffer.put(target, current.buffer, offset, SLOT_SIZE);
+            bigger.buffer.putInt(target + S_SEQUENCE, 0);
+        }
+        bigger.buffer.putInt(H_COUNT, current.count());
+        bigger.buffer.putLong(H_GENERATION, current.buffer.getLong(H_GENERATION) + 1);
+        bigger.buffer.force();
+
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        table = bigger;
+        return bigger;
+    }
+
+    /**
+     * Copies a salt:hash password.hash into the store under DEFAULT_USER if that user is missing
+     */
+    private void importLegacyFile(Path legacy) {
+        if (!Files.isRegularFile(legacy) || lookup(DEFAULT_USER) != null) {
+            return;
+        }
+        try {
+            String line = new String(Files.readAllBytes(legacy), StandardCharsets.UTF_8);
+            save(DEFAULT_USER, StoredCredential.parse(line));
+        } catch (IOException | IllegalArgumentException e) {
+            ErrorLogger.logError("Could not import " + legacy + " into the credential store: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a key as UTF-8 into the buffer
+     * @return The encoded length
+     */
+    private static int encodeKey(String userKey, byte[] buffer) {
+        int length = 0;
+        for (int i = 0; i < userKey.length(); i++) {
+            char c = userKey.charAt(i);
+            if (length + 4 > buffer.length) {
+                throw new IllegalArgumentException("User key too long: " + userKey);
+            }
+            if (c < 0x80) {
+                buffer[length++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[length++] = (byte) (0xC0 | (c >> 6));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < userKey.length()
+                    && Character.isLowSurrogate(userKey.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, userKey.charAt(++i));
+                buffer[length++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                buffer[length++] = (byte) (0xE0 | (c >> 12));
+                buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[length++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        if (length == 0 || length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("User key must be 1 to " + MAX_KEY_BYTES + " bytes: " + userKey);
+        }
+        return length;
+    }
+
+    // FNV-1a followed by a final mix so sequential keys spread over the table
+    private static int hash(byte[] key, int length) {
+        int h = 0x811C9DC5;
+        for (int i = 0; i < length; i++) {
+            h ^= key[i];
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /**
+     * One mapping of the store file
+     */
+    private static final class Table {
+        final MappedByteBuffer buffer;
+        final int capacity;
+        // Identity of the mapped file, to notice it being replaced; null where the platform has none
+        final Object fileKey;
+
+        private Table(MappedByteBuffer buffer, int capacity, Path path) throws IOException {
+            this.buffer = buffer;
+            this.capacity = capacity;
+            this.fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        }
+
+        static Table create(Path path, int capacity) throws IOException {
+            File parent = path.toAbsolutePath().getParent().toFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Cannot create directory " + parent);
+            }
+            long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(H_MAGIC, MAGIC);
+                buffer.putInt(H_VERSION, VERSION);
+                buffer.putInt(H_CAPACITY, capacity);
+                buffer.putInt(H_COUNT, 0);
+                buffer.putLong(H_GENERATION, 0);
+                buffer.force();
+                return new Table(buffer, capacity, path);
+            }
+        }
+
+        static Table map(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (channel.size() < HEADER_SIZE) {
+                    throw new IOException("Credential store is truncated: " + path);
+                }
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION) {
+                    throw new IOException("Not a credential store: " + path);
+                }
+                int capacity = header.getInt(H_CAPACITY);
+                long size = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+                if (Integer.bitCount(capacity) != 1 || channel.size() < size) {
+                    throw new IOException("Credential store is corrupt: " + path);
+                }
+                return new Table(channel.map(FileChannel.MapMode.READ_WRITE, 0, size), capacity, path);
+            }
+        }
+
+        int slotOffset(int slot) {
+            return HEADER_SIZE + slot * SLOT_SIZE;
+        }
+
+        int count() {
+            return buffer.getInt(H_COUNT);
+        }
+
+        int sequence(int offset) {
+            return (int) INT_VIEW.getVolatile(buffer, offset + S_SEQUENCE);
+        }
+
+        void setSequence(int offset, int sequence) {
+            INT_VIEW.setVolatile(buffer, offset + S_SEQUENCE, sequence);
+        }
+
+        /**
+         * Makes every odd sequence even again; only while holding the lock, so no writer is mid-write
+         * @return Number of slots repaired
+         */
+        int repairOddSlots() {
+            int repaired = 0;
+            for (int slot = 0; slot < capacity; slot++) {
+                int offset = slotOffset(slot);
+                int sequence = sequence(offset);
+                if ((sequence & 1) != 0) {
+                    setSequence(offset, sequence + 1);
+                    repaired++;
+                }
+            }
+            if (repaired > 0) {
+                buffer.force();
+            }
+            return repaired;
+        }
+
+        void bumpGeneration() {
+            LONG_VIEW.setVolatile(buffer, H_GENERATION, buffer.getLong(H_GENERATION) + 1);
+        }
+
+        boolean keyEquals(int offset, byte[] key, int keyLength) {
+            for (int i = 0; i < keyLength; i++) {
+                if (buffer.get(offset + S_KEY + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writer-side probe: the slot holding the key, or the empty slot where it belongs
+         */
+        int findSlot(byte[] key, int keyLength, int keyHash) {
+            int mask = capacity - 1;
+            for (int probe = 0; probe < capacity; probe++) {
+                int offset = slotOffset((keyHash + probe) & mask);
+                int storedLength = buffer.getShort(offset + S_KEY_LENGTH);
+                if (storedLength == 0) {
+                    return offset;
+                }
+                if (buffer.getInt(offset + S_KEY_HASH) == keyHash && storedLength == keyLength
+                        && keyEquals(offset, key, keyLength)) {
+                    return offset;
+                }
+            }
+            throw new IllegalStateException("Credential store table is full");
+        }
+
+        void writeSlot(int offset, byte[] key, int keyLength, int keyHash, PasswordKdf kdf, byte[] salt, byte[] hash) {
+            int sequence = buffer.getInt(offset + S_SEQUENCE);
+            INT_VIEW.setVolatile(buffer, offset + S_SEQUENCE, sequence + 1);
+            // A volatile write only keeps earlier writes before it; the slot's writes must follow it
+            VarHandle.storeStoreFence();
+
+            buffer.put(offset + S_ALGORITHM, (byte) kdf.getAlgorithm().ordinal());
+            buffer.putInt(offset + S_ITERATIONS, kdf.getIterations());
+            buffer.put(offset + S_SALT_LENGTH, (byte) salt.length);
+            buffer.put(offset + S_SALT, salt);
+            buffer.put(offset + S_HASH_LENGTH, (byte) hash.length);
+            buffer.put(offset + S_HASH, hash);
+            buffer.put(offset + S_KEY, key, 0, keyLength);
+            buffer.putInt(offset + S_KEY_HASH, keyHash);
+            // The key length goes last: a non-zero length marks the slot as used
+            buffer.putShort(offset + S_KEY_LENGTH, (short) keyLength);
+
+            INT_VIEW.setVolatile(buffer, offset + S_SEQUENCE, sequence + 2);
+        }
+
+        StoredCredential readCredential(int offset) {
+            int algorithm = buffer.get(offset + S_ALGORITHM);
+            int iterations = buffer.getInt(offset + S_ITERATIONS);
+            byte[] salt = new byte[Math.min(MAX_SALT_BYTES, buffer.get(offset + S_SALT_LENGTH) & 0xFF)];
+            buffer.get(offset + S_SALT, salt);
+            byte[] hash = new byte[Math.min(MAX_HASH_BYTES, buffer.get(offset + S_HASH_LENGTH) & 0xFF)];
+            buffer.get(offset + S_HASH, hash);
+
+            PasswordKdf.Algorithm[] algorithms = PasswordKdf.Algorithm.values();
+            PasswordKdf kdf = algorithm >= 0 && algorithm < algorithms.length
+                    && algorithms[algorithm] == PasswordKdf.Algorithm.PBKDF2_SHA256 && iterations > 0
+                    ? PasswordKdf.pbkdf2(iterations) : PasswordKdf.legacy();
+            return new StoredCredential(kdf, salt, hash);
+        }
+    }
+}
@@ -0,0 +1,625 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Checks the cells of a large CSV export against the validation rules, splitting the file into
+ * byte ranges that are checked on a ForkJoinPool.
+ *
+ * Usage: java DefendYourCodeJava --validate-csv data.csv column=rule,... rejections.txt [threads]
+ *
+ * Columns are named by their header, in which case the first line must be the header row, or
+ * numbered from 1. The rules are name, file_name and integer (a whole number in int range), and
+ * cells are checked as batch mode checks them: trimmed first. Fields are split as in a batch
+ * manifest (double quotes with "" escapes, one record per line) and blank lines are skipped. The
+ * file is read as UTF-8, and the rejections file is written as UTF-8. Every rejected cell becomes a line "row TAB column TAB rule TAB reason"
+ * in the rejections file, row being the line number, and the counts per column and reason are
+ * printed at the end.
+ *
+ * A range owns the lines that start inside it and reads its last line to the end, so every line
+ * is checked once. Cells are checked in the range's buffer; only a cell with quotes in it is
+ * first copied, unescaped, to a scratch buffer. Ranges are written in file order with at most
+ * twice the pool's parallelism in flight, so memory is bounded by the range size, not the file.
+ */
+public class CsvValidator {
+
+    // Rejection reasons: the Violation names, then the ones rules do not report
+    private static final int NOT_AN_INTEGER = ValidationResult.Violation.values().length;
+    private static final int OUT_OF_RANGE = NOT_AN_INTEGER + 1;
+    private static final int MISSING_COLUMN = NOT_AN_INTEGER + 2;
+    private static final int UNTERMINATED_QUOTE = NOT_AN_INTEGER + 3;
+    private static final String[] REASONS = reasons();
+
+    // Bytes read past the end of a range at a time to finish its last line
+    private static final int TAIL_READ = 8 * 1024;
+
+    private final List<ColumnCheck> checks = new ArrayList<>();
+    // The check for each column, null for columns that are not checked
+    private ColumnCheck[] checkOf;
+    private boolean hasHeader;
+
+    private CsvValidator() {
+    }
+
+    /**
+     * Entry point for bulk validation
+     * @param args "--validate-csv", CSV file, column rules, rejections file and optional worker count
+     */
+    public static void main(String[] args) {
+        if (args.length < 4) {
+            System.out.println("Usage: java DefendYourCodeJava --validate-csv <data.csv> <column=rule,...> <rejections.txt> [threads]");
+            System.out.println("Rules: name, file_name, integer. Columns are header names or numbers from 1.");
+            return;
+        }
+
+        ProcessingOptions options = ProcessingOptions.defaults();
+        ForkJoinPool pool = null;
+        if (args.length > 4) {
+            int threads;
+            try {
+                threads = Integer.parseInt(args[4]);
+            } catch (NumberFormatException e) {
+                ErrorLogger.logError("CSV validation error: Invalid thread count: " + args[4]);
+                System.out.println("Thread count must be a whole number.");
+                return;
+            }
+            if (threads < 1) {
+                ErrorLogger.logError("CSV validation error: Thread count must be positive: " + threads);
+                System.out.println("Thread count must be at least 1.");
+                return;
+            }
+            pool = new ForkJoinPool(threads);
+            options.setPool(pool);
+        }
+
+        try {
+            runValidation(args[1], args[2], args[3], options);
+        } catch (IllegalArgumentException e) {
+            ErrorLogger.logError("CSV validation error: " + e.getMessage());
+            System.out.println(e.getMessage());
+        } catch (IOException e) {
+            ErrorLogger.logError("CSV validation error", e);
+            System.out.println("CSV validation failed. See error_log.txt for details.");
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Checks every mapped cell of a CSV file and writes one line per rejected cell
+     * @param csvFile The CSV file
+     * @param columnRules Comma separated column=rule pairs, e.g. firstName=name,num1=integer
+     * @param rejectionsFile The file receiving the rejected cells, in file order
+     * @param options Supplies the pool and the range size (the chunk size)
+     * @return Number of rejected cells
+     * @throws IOException If the CSV cannot be read or the rejections cannot be written
+     * @throws IllegalArgumentException If the column rules are malformed or name a missing column
+     */
+    public static long runValidation(String csvFile, String columnRules, String rejectionsFile,
+                                     ProcessingOptions options) throws IOException {
+        CsvValidator validator = new CsvValidator();
+        List<String[]> mapping = parseColumnRules(columnRules);
+
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            // The columns are resolved before the rejections file is created
+            long dataStart = validator.mapColumns(mapping, channel);
+            Totals totals;
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(rejectionsFile), StandardCharsets.UTF_8)) {
+                totals = validator.checkRanges(channel, dataStart, options, writer);
+            }
+
+            double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+            long cells = totals.rows * validator.checks.size();
+            System.out.println("\nValidation complete: " + totals.rows + " rows, " + cells + " cells in "
+                    + String.format("%.3f", seconds) + "s ("
+                    + String.format("%.1f", seconds > 0 ? cells / seconds : 0) + " cells/s)");
+            System.out.println("Rejected cells: " + totals.rejected);
+            for (ColumnCheck check : validator.checks) {
+                System.out.println("  " + check.label + " (" + check.ruleName + "): " + check.describeRejections());
+                check.count(totals.rows);
+            }
+            if (totals.unterminatedQuotes > 0) {
+                System.out.println("  Rows with an unterminated quote: " + totals.unterminatedQuotes);
+            }
+            System.out.println("Rejections written to " + rejectionsFile);
+            return totals.rejected;
+        }
+    }
+
+    /**
+     * Splits "column=rule,..." into column and rule pairs
+     */
+    private static List<String[]> parseColumnRules(String columnRules) {
+        List<String[]> mapping = new ArrayList<>();
+        for (String pair : columnRules.split(",")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0 || equals == pair.length() - 1) {
+                throw new IllegalArgumentException("Column rules must look like column=rule: " + pair.trim());
+            }
+            mapping.add(new String[] {pair.substring(0, equals).trim(), pair.substring(equals + 1).trim()});
+        }
+        return mapping;
+    }
+
+    /**
+     * Resolves the mapped columns, reading the header row if any column is given by name
+     * @return Offset of the first data line
+     */
+    private long mapColumns(List<String[]> mapping, FileChannel channel) throws IOException {
+        byte[] head = new byte[(int) Math.min(channel.size(), TAIL_READ)];
+        readFully(channel, 0, head, 0, head.length);
+        // A byte order mark is not part of the first value
+        long dataStart = head.length >= 3 && (head[0] & 0xFF) == 0xEF && (head[1] & 0xFF) == 0xBB
+                && (head[2] & 0xFF) == 0xBF ? 3 : 0;
+
+        List<String> header = null;
+        for (String[] pair : mapping) {
+            if (!isColumnNumber(pair[0])) {
+                RangeBuffer line = new RangeBuffer(channel, 0, head, head.length);
+                int end = line.lineEnd((int) dataStart);
+                header = new ArrayList<>();
+                for (String name : BatchRunner.parseCsvLine(
+                        new String(line.bytes, (int) dataStart, end - (int) dataStart, StandardCharsets.UTF_8), 1)) {
+                    header.add(name.trim());
+                }
+                hasHeader = true;
+                dataStart = Math.min(end + 1L, channel.size());
+                break;
+            }
+        }
+
+        int columns = 0;
+        int[] columnOf = new int[mapping.size()];
+        for (int i = 0; i < mapping.size(); i++) {
+            String key = mapping.get(i)[0];
+            int column = isColumnNumber(key) ? Integer.parseInt(key) - 1 : header.indexOf(key);
+            if (column < 0) {
+                throw new IllegalArgumentException(isColumnNumber(key)
+                        ? "Column numbers start at 1: " + key
+                        : "Column '" + key + "' is not in the header row " + header);
+            }
+            columnOf[i] = column;
+            columns = Math.max(columns, column + 1);
+        }
+
+        checkOf = new ColumnCheck[columns];
+        for (int i = 0; i < mapping.size(); i++) {
+            if (checkOf[columnOf[i]] != null) {
+                throw new IllegalArgumentException("Column '" + mapping.get(i)[0] + "' has more than one rule");
+            }
+            checkOf[columnOf[i]] = new ColumnCheck(mapping.get(i)[0], mapping.get(i)[1]);
+            checks.add(checkOf[columnOf[i]]);
+        }
+        return dataStart;
+    }
+
+    private static boolean isColumnNumber(String key) {
+        return key.length() <= 9 && key.chars().allMatch(c -> c >= '0' && c <= '9');
+    }
+
+    /**
+     * Checks the ranges on the pool and writes their rejections in file order
+     */
+    private Totals checkRanges(FileChannel channel, long dataStart, ProcessingOptions options,
+                               BufferedWriter writer) throws IOException {
+        ForkJoinPool pool = options.getPool();
+        int rangeSize = options.getChunkSize();
+        int window = Math.max(2, pool.getParallelism() * 2);
+        ArrayDeque<ForkJoinTask<Range>> inFlight = new ArrayDeque<>(window);
+        Totals totals = new Totals();
+        // The header, if any, is line 1
+        totals.lines = hasHeader ? 1 : 0;
+
+        long size = channel.size();
+        try {
+            for (long rangeStart = dataStart; rangeStart < size; rangeStart += rangeSize) {
+                if (inFlight.size() == window) {
+                    write(inFlight.poll(), totals, writer);
+                }
+                long from = rangeStart;
+                long to = Math.min(size, rangeStart + rangeSize);
+                boolean first = rangeStart == dataStart;
+                inFlight.add(pool.submit(() -> checkRange(channel, from, to, first)));
+            }
+            while (!inFlight.isEmpty()) {
+                write(inFlight.poll(), totals, writer);
+            }
+            return totals;
+        } finally {
+            for (ForkJoinTask<Range> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for the oldest range and writes its rejections with their line numbers in the file
+     */
+    private void write(ForkJoinTask<Range> task, Totals totals, BufferedWriter writer) throws IOException {
+        Range range;
+        try {
+            range = task.join();
+        } catch (CancellationException e) {
+            throw new IOException("Checking a range was cancelled", e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        for (int i = 0; i < range.rejectionCount; i++) {
+            int column = range.columns[i];
+            int reason = range.reasons[i];
+            ColumnCheck check = column < checkOf.length ? checkOf[column] : null;
+            writer.write(Long.toString(totals.lines + range.lines[i]));
+            writer.write('\t');
+            writer.write(check != null ? check.label : Integer.toString(column + 1));
+            writer.write('\t');
+            writer.write(reason == UNTERMINATED_QUOTE ? "csv" : check.ruleName);
+            writer.write('\t');
+            writer.write(REASONS[reason]);
+            writer.newLine();
+
+            if (reason == UNTERMINATED_QUOTE) {
+                totals.unterminatedQuotes++;
+            } else {
+                check.rejections[reason]++;
+                totals.rejected++;
+            }
+        }
+        totals.lines += range.lineCount;
+        totals.rows += range.rowCount;
+    }
+
+    /**
+     * Checks the lines that start in [start, end)
+     * @param first True for the first range, which starts on a line
+     */
+    private Range checkRange(FileChannel channel, long start, long end, boolean first) {
+        try {
+            // One byte before the range tells whether it starts on a line
+            long from = first ? start : start - 1;
+            int limit = (int) (end - from);
+            byte[] bytes = new byte[limit + TAIL_READ];
+            readFully(channel, from, bytes, 0, limit);
+            RangeBuffer buffer = new RangeBuffer(channel, from, bytes, limit);
+            Range range = new Range();
+
+            int position = 0;
+            if (!first) {
+                // The line running into the range belongs to the one before
+                int newline = LineScanner.indexOfNewline(bytes, 0, limit);
+                position = newline < 0 ? limit : newline + 1;
+            }
+
+            byte[] scratch = new byte[256];
+            while (position < limit) {
+                int lineEnd = buffer.lineEnd(position);
+                scratch = checkLine(buffer.bytes, position, lineEnd, range, scratch);
+                range.lineCount++;
+                position = lineEnd + 1;
+            }
+            return range;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Splits one line into fields and checks the mapped ones
+     * @return The scratch buffer, grown if a quoted field needed more room
+     */
+    private byte[] checkLine(byte[] bytes, int start, int end, Range range, byte[] scratch) {
+        if (end > start && bytes[end - 1] == '\r') {
+            end--;
+        }
+        if (trimStart(bytes, start, end) == end) {
+            // Blank lines are skipped as in a batch manifest
+            return scratch;
+        }
+        range.rowCount++;
+
+        int column = 0;
+        int position = start;
+        while (column < checkOf.length) {
+            int fieldEnd = position;
+            while (fieldEnd < end && bytes[fieldEnd] != ',' && bytes[fieldEnd] != '"') {
+                fieldEnd++;
+            }
+
+            byte[] value = bytes;
+            int valueStart = position;
+            int valueEnd = fieldEnd;
+            if (fieldEnd < end && bytes[fieldEnd] == '"') {
+                // Quotes change what the field holds, so it is copied without them
+                if (scratch.length < end - position) {
+                    scratch = new byte[Math.max(end - position, scratch.length * 2)];
+                }
+                fieldEnd = unquote(bytes, position, end, scratch, range);
+                if (fieldEnd < 0) {
+                    range.add(column, UNTERMINATED_QUOTE);
+                    return scratch;
+                }
+                value = scratch;
+                valueStart = 0;
+                valueEnd = range.valueLength;
+            }
+
+            ColumnCheck check = checkOf[column];
+            if (check != null) {
+                int reason = check.check(value, valueStart, valueEnd);
+                if (reason != 0) {
+                    range.add(column, reason);
+                }
+            }
+
+            column++;
+            if (fieldEnd >= end) {
+                break;
+            }
+            position = fieldEnd + 1;
+        }
+
+        // Mapped columns past the end of a short row
+        for (; column < checkOf.length; column++) {
+            if (checkOf[column] != null) {
+                range.add(column, MISSING_COLUMN);
+            }
+        }
+        return scratch;
+    }
+
+    /**
+     * Copies a field with quotes into the scratch buffer as BatchRunner.parseCsvLine reads it,
+     * leaving the copied length in the range's valueLength
+     * @return Index of the comma or line end after the field, or -1 if a quote is left open
+     */
+    private static int unquote(byte[] bytes, int position, int end, byte[] scratch, Range range) {
+        int length = 0;
+        boolean quoted = false;
+        int i = position;
+        for (; i < end; i++) {
+            byte b = bytes[i];
+            if (quoted) {
+                if (b == '"') {
+                    if (i + 1 < end && bytes[i + 1] == '"') {
+                        scratch[length++] = '"';
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    scratch[length++] = b;
+                }
+            } else if (b == '"') {
+                quoted = true;
+            } else if (b == ',') {
+                break;
+            } else {
+                scratch[length++] = b;
+            }
+        }
+        range.valueLength = length;
+        return quoted ? -1 : i;
+    }
+
+    // Index of the first byte after leading whitespace, as String.trim() sees it
+    private static int trimStart(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] >= 0 && bytes[from] <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(byte[] bytes, int from, int to) {
+        while (to > from && bytes[to - 1] >= 0 && bytes[to - 1] <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    /**
+     * Checks a value as Integer.parseInt reads it, for ASCII digits
+     * @return 0, NOT_AN_INTEGER or OUT_OF_RANGE
+     */
+    private static int checkInteger(byte[] bytes, int from, int to) {
+        if (from == to) {
+            return NOT_AN_INTEGER;
+        }
+        boolean negative = bytes[from] == '-';
+        if (negative || bytes[from] == '+') {
+            if (++from == to) {
+                return NOT_AN_INTEGER;
+            }
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return NOT_AN_INTEGER;
+            }
+            // Stops growing once past any int, so long runs of digits cannot overflow it
+            if (value <= Integer.MAX_VALUE + 1L) {
+                value = value * 10 + digit;
+            }
+        }
+        return value > (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE) ? OUT_OF_RANGE : 0;
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] bytes, int offset, int length)
+            throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(bytes, offset, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position() - offset) < 0) {
+                throw new IOException("File ended while reading it at " + (position + target.position() - offset));
+            }
+        }
+    }
+
+    private static String[] reasons() {
+        String[] reasons = new String[UNTERMINATED_QUOTE + 1];
+        for (ValidationResult.Violation violation : ValidationResult.Violation.values()) {
+            reasons[violation.ordinal()] = violation.name().toLowerCase(Locale.ROOT);
+        }
+        reasons[NOT_AN_INTEGER] = "not_an_integer";
+        reasons[OUT_OF_RANGE] = "out_of_range";
+        reasons[MISSING_COLUMN] = "missing_column";
+        reasons[UNTERMINATED_QUOTE] = "unterminated_quote";
+        return reasons;
+    }
+
+    /**
+     * The rule for one column and its rejections by reason
+     */
+    private static final class ColumnCheck {
+        final String label;
+        final String ruleName;
+        final ValidationRule rule;
+        final long[] rejections = new long[REASONS.length];
+
+        ColumnCheck(String label, String ruleName) {
+            this.label = label;
+            this.ruleName = ruleName;
+            switch (ruleName) {
+                case "name":
+                    rule = ValidationRules.NAME;
+                    break;
+                case "file_name":
+                    rule = ValidationRules.FILE_NAME;
+                    break;
+                case "integer":
+                    rule = null;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown rule '" + ruleName + "' for column " + label
+                            + "; use name, file_name or integer");
+            }
+        }
+
+        /**
+         * @return 0 if the trimmed value passes, otherwise the reason
+         */
+        int check(byte[] bytes, int from, int to) {
+            from = trimStart(bytes, from, to);
+            to = trimEnd(bytes, from, to);
+            return rule == null ? checkInteger(bytes, from, to) : rule.check(bytes, from, to).getViolation().ordinal();
+        }
+
+        String describeRejections() {
+            StringBuilder text = new StringBuilder();
+            for (int reason = 1; reason < rejections.length; reason++) {
+                if (rejections[reason] > 0) {
+                    text.append(text.length() == 0 ? "" : ", ").append(rejections[reason]).append(' ').append(REASONS[reason]);
+                }
+            }
+            return text.length() == 0 ? "none" : text.toString();
+        }
+
+        // Adds this column's checks to the metrics, as the prompts count theirs
+        void count(long rows) {
+            String metricRule = rule == null ? "integer" : rule.getName();
+            Metrics.counter("defend_validation_attempts_total", "Values checked by the prompts and batch mode",
+                    "rule", metricRule).add(rows);
+            for (int reason = 1; reason < rejections.length; reason++) {
+                if (rejections[reason] > 0) {
+                    Metrics.counter("defend_validation_rejections_total", "Values rejected, by rule and reason",
+                            "rule", metricRule, "reason", REASONS[reason]).add(rejections[reason]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A range of the file read into memory, extended past its end to finish its last line
+     */
+    private static final class RangeBuffer {
+        private final FileChannel channel;
+        private final long offset;
+        byte[] bytes;
+        private int length;
+
+        RangeBuffer(FileChannel channel, long offset, byte[] bytes, int length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.bytes = bytes;
+            this.length = length;
+        }
+
+        /**
+         * @return Index of the '\n' ending the line that starts at from, or the end of the file
+         */
+        int lineEnd(int from) throws IOException {
+            int i = from;
+            while (true) {
+                int newline = LineScanner.indexOfNewline(bytes, i, length);
+                if (newline >= 0) {
+                    return newline;
+                }
+                i = length;
+                long remaining = channel.size() - (offset + length);
+                if (remaining <= 0) {
+                    return length;
+                }
+                int more = (int) Math.min(remaining, TAIL_READ);
+                if (length + more > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(length + more, bytes.length * 2));
+                }
+                readFully(channel, offset + length, bytes, length, more);
+                length += more;
+            }
+        }
+    }
+
+    /**
+     * What one range found; rejections are kept as parallel arrays of line, column and reason,
+     * lines counted from the range's first line
+     */
+    private static final class Range {
+        int lineCount;
+        long rowCount;
+        int rejectionCount;
+        // Length of the last field unquote() copied
+        int valueLength;
+        int[] lines = new int[16];
+        int[] columns = new int[16];
+        byte[] reasons = new byte[16];
+
+        void add(int column, int reason) {
+            if (rejectionCount == lines.length) {
+                lines = Arrays.copyOf(lines, rejectionCount * 2);
+                columns = Arrays.copyOf(columns, rejectionCount * 2);
+                reasons = Arrays.copyOf(reasons, rejectionCount * 2);
+            }
+            // Line numbers in the file count from 1
+            lines[rejectionCount] = lineCount + 1;
+            columns[rejectionCount] = column;
+            reasons[rejectionCount] = (byte) reason;
+            rejectionCount++;
+        }
+    }
+
+    /**
+     * Running totals while the ranges are written
+     */
+    private static final class Totals {
+        long lines;
+        long rows;
+        long rejected;
+        long unterminatedQuotes;
+    }
+}
@@ -0,0 +1,462 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the validation, password and report functions over HTTP on the loopback interface, so
+ * many callers can share one warmed-up JVM.
+ *
+ * Usage: java DefendYourCodeJava --serve [port]   (default 8080, or -Ddefend.service.port)
+ *
+ * Parameters come from the query string or an application/x-www-form-urlencoded POST body, and
+ * every reply is a JSON object:
+ *   /validate/name       value                    {"valid":true} or {"valid":false,"reason":..,"message":..}
+ *   /validate/int        value                    the same, with "value" when valid
+ *   /validate/filename   value, type (input|output; input files must exist)
+ *   /password/hash       password, optional firstName and lastName to store the credential under
+ *                        and, if that user has one already, currentPassword
+ *                                                 {"kdf":..,"salt":..,"hash":..}
+ *   /password/verify     firstName, lastName, password               {"match":true|false}
+ *   /process             the BatchRunner fields: firstName, lastName, num1, num2, inputFile,
+ *                        outputFile, password     {"status":"ACCEPTED",..}, as a batch record
+ *   /metrics             Prometheus text, see Metrics
+ * Rejected input gets 422, a wrong or missing currentPassword 403, failures 500. Unknown users
+ * verify as {"match":false}, after the same hashing work, so the service does not tell which users
+ * exist. After -Ddefend.service.maxFailedChecks (default 5) wrong passwords in a row for a user,
+ * known or not, checks for that user get 429 for -Ddefend.service.lockoutMillis (default 30000).
+ *
+ * Each request runs on a thread of its own: a virtual thread on JDKs that have them (looked up
+ * by reflection, so the code still builds and runs on 17), otherwise a platform thread from a
+ * fixed pool of -Ddefend.service.threads (default 64).
+ */
+public class DefendService {
+
+    private static final int DEFAULT_PORT = 8080;
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_POOL_THREADS = 64;
+    // Largest accepted request body
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int MAX_FAILED_CHECKS = Integer.getInteger("defend.service.maxFailedChecks", 5);
+    private static final long LOCKOUT_MILLIS = Long.getLong("defend.service.lockoutMillis", 30_000L);
+    // Users with failed checks tracked at once; expired lockouts are dropped past this
+    private static final int MAX_TRACKED_USERS = 10_000;
+
+    static {
+        // The JDK server sends headers and body in separate writes; without TCP_NODELAY every small
+        // reply waits out the client's delayed ACK (about 40ms). Read once, when the server loads.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    // Numbers /process requests in the log the way line numbers identify batch records
+    private static final AtomicInteger processRequests = new AtomicInteger();
+    // Each /process request runs the batch stages on its own request thread
+    private static final Pipeline PIPELINE = PipelineStages.standard(1);
+    // Wrong passwords in a row per user key
+    private static final Map<String, FailedChecks> failedChecks = new ConcurrentHashMap<>();
+    // Makes checking the current credential and replacing it one step
+    private static final Object credentialUpdates = new Object();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * A reply: HTTP status and JSON body
+     */
+    private static final class Reply {
+        final int status;
+        final String body;
+
+        Reply(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Wrong passwords given for one user since the last right one or lockout
+     */
+    private static final class FailedChecks {
+        int count;
+        volatile long lockedUntil;
+    }
+
+    /**
+     * Checked against for unknown users, so they cost the same hashing as known ones
+     */
+    private static final class UnknownUser {
+        static final StoredCredential CREDENTIAL = unknownUserCredential();
+
+        private static StoredCredential unknownUserCredential() {
+            PasswordKdf kdf = PasswordKdf.current();
+            String salt = DefendYourCodeJava.generateSalt();
+            return new StoredCredential(kdf, salt, DefendYourCodeJava.hashPassword(DefendYourCodeJava.generateSalt(), salt, kdf));
+        }
+    }
+
+    /**
+     * One endpoint's logic, given the decoded parameters
+     */
+    private interface Endpoint {
+        Reply handle(Map<String, String> params) throws IOException;
+    }
+
+    /**
+     * Binds the service to the loopback interface; call start() to accept requests
+     * @param port TCP port, 0 for any free port
+     * @throws IOException If the port cannot be bound
+     */
+    public DefendService(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                Integer.getInteger("defend.service.backlog", DEFAULT_BACKLOG));
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+
+        route("/validate/name", "validate-name", DefendService::validateName);
+        route("/validate/int", "validate-int", DefendService::validateInt);
+        route("/validate/filename", "validate-filename", DefendService::validateFileName);
+        route("/password/hash", "hash-password", DefendService::hashPassword);
+        route("/password/verify", "verify-password", DefendService::verifyPassword);
+        route("/process", "process-file", DefendService::processFile);
+        server.createContext("/metrics", exchange -> {
+            try {
+                send(exchange, 200, "text/plain; version=0.0.4", Metrics.toPrometheusText());
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * Entry point for service mode
+     * @param args "--serve" and an optional port
+     */
+    public static void main(String[] args) {
+        int port = Integer.getInteger("defend.service.port", DEFAULT_PORT);
+        if (args.length > 1) {
+            try {
+                port = Integer.parseInt(args[1]);
+            } catch (NumberFormatException e) {
+                ErrorLogger.logError("Service error: Invalid port: " + args[1]);
+                System.out.println("Port must be a whole number.");
+                return;
+            }
+        }
+
+        // Rejected requests are still logged to the file, but not echoed per request
+        ErrorLogger.setConsoleEcho(Boolean.getBoolean("defend.service.consoleErrors"));
+
+        try {
+            DefendService service = new DefendService(port);
+            Runtime.getRuntime().addShutdownHook(new Thread(service::stop, "service-shutdown"));
+            service.start();
+            System.out.println("Serving on http://" + service.getAddress().getHostString() + ":"
+                    + service.getAddress().getPort() + "/ (" + service.describeThreads() + "); Ctrl+C to stop");
+        } catch (IOException e) {
+            ErrorLogger.logError("Service error", e);
+            System.out.println("Could not start the service. See error_log.txt for details.");
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, gives running ones a second to finish and stops the threads
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * @return A virtual-thread-per-task executor when the JDK has one, otherwise a fixed pool
+     */
+    static ExecutorService newRequestExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // No virtual threads (before 21, or 19/20 without --enable-preview)
+            int threads = Integer.getInteger("defend.service.threads", DEFAULT_POOL_THREADS);
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newFixedThreadPool(threads, task -> {
+                Thread thread = new Thread(task, "service-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private String describeThreads() {
+        if (executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize() + " worker threads";
+        }
+        return "virtual threads";
+    }
+
+    private void route(String path, String name, Endpoint endpoint) {
+        LatencyHistogram latency = Metrics.histogram("defend_service_request_seconds",
+                "Time to handle a service request", "endpoint", name);
+        server.createContext(path, exchange -> {
+            long start = System.nanoTime();
+            Reply reply;
+            try {
+                reply = endpoint.handle(parameters(exchange));
+            } catch (IllegalArgumentException e) {
+                reply = new Reply(400, "{\"error\":" + json(e.getMessage()) + "}");
+            } catch (IOException | RuntimeException e) {
+                ErrorLogger.logError("Service error: " + name + " failed", e);
+                reply = new Reply(500, "{\"error\":\"Internal error, see error_log.txt\"}");
+            }
+
+            try {
+                send(exchange, reply.status, "application/json", reply.body);
+            } finally {
+                exchange.close();
+                latency.recordSince(start);
+                Metrics.counter("defend_service_requests_total", "Service requests handled",
+                        "endpoint", name, "status", Integer.toString(reply.status)).increment();
+            }
+        });
+    }
+
+    private static Reply validateName(Map<String, String> params) {
+        String value = required(params, "value").trim();
+        return validation(DefendYourCodeJava.checkName(value, params.getOrDefault("type", "first")), null);
+    }
+
+    private static Reply validateInt(Map<String, String> params) {
+        String value = required(params, "value").trim();
+        try {
+            int parsed = Integer.parseInt(value);
+            DefendYourCodeJava.counted("integer", null);
+            return validation(null, Integer.toString(parsed));
+        } catch (NumberFormatException e) {
+            return validation(DefendYourCodeJava.invalidInteger(params.getOrDefault("type", "first"), value), null);
+        }
+    }
+
+    private static Reply validateFileName(Map<String, String> params) {
+        String value = required(params, "value").trim();
+        String type = params.getOrDefault("type", "output");
+        if (!type.equals("input") && !type.equals("output")) {
+            throw new IllegalArgumentException("type must be input or output");
+        }
+        return validation(DefendYourCodeJava.checkFileName(value, type), null);
+    }
+
+    private static Reply hashPassword(Map<String, String> params) throws IOException {
+        String password = required(params, "password");
+        DefendYourCodeJava.Rejection rejection = DefendYourCodeJava.checkPassword(password);
+        if (rejection != null) {
+            return validation(rejection, null);
+        }
+
+        PasswordKdf kdf = PasswordKdf.current();
+        String salt = DefendYourCodeJava.generateSalt();
+        String hash = DefendYourCodeJava.hashPassword(password, salt, kdf);
+        String firstName = params.get("firstName");
+        String lastName = params.get("lastName");
+        if (firstName != null && lastName != null) {
+            String userKey = CredentialStore.userKey(firstName, lastName);
+            synchronized (credentialUpdates) {
+                // Only the holder of the current password may replace it
+                if (CredentialCache.shared().get(userKey) != null) {
+                    String currentPassword = params.get("currentPassword");
+                    if (currentPassword == null) {
+                        return new Reply(403, "{\"error\":\"currentPassword is required to replace a saved password\"}");
+                    }
+                    Boolean match = checkPassword(userKey, currentPassword);
+                    if (match == null) {
+                        return lockedOut();
+                    }
+                    if (!match) {
+                        return new Reply(403, "{\"error\":\"currentPassword does not match\"}");
+                    }
+                }
+                CredentialCache.shared().save(userKey, new StoredCredential(kdf, salt, hash));
+            }
+        }
+        return new Reply(200, "{\"kdf\":" + json(kdf.encode()) + ",\"salt\":" + json(salt)
+                + ",\"hash\":" + json(hash) + "}");
+    }
+
+    private static Reply verifyPassword(Map<String, String> params) throws IOException {
+        String userKey = CredentialStore.userKey(required(params, "firstName"), required(params, "lastName"));
+        String password = required(params, "password");
+        Boolean match = checkPassword(userKey, password);
+        if (match == null) {
+            return lockedOut();
+        }
+        return new Reply(200, "{\"match\":" + match + "}");
+    }
+
+    /**
+     * Checks a password against a user's saved credential, counting wrong ones towards a lockout
+     * @param userKey The user, see CredentialStore.userKey
+     * @param password The password to check
+     * @return Whether it matches, false for unknown users; null while the user is locked out
+     * @throws IOException If the credential store cannot be opened
+     */
+    private static Boolean checkPassword(String userKey, String password) throws IOException {
+        long now = System.currentTimeMillis();
+        FailedChecks failures = failedChecks.get(userKey);
+        if (failures != null && failures.lockedUntil > now) {
+            return null;
+        }
+        StoredCredential saved = CredentialCache.shared().get(userKey);
+        boolean match = (saved != null ? saved : UnknownUser.CREDENTIAL).matches(password) && saved != null;
+        if (match) {
+            failedChecks.remove(userKey);
+            return true;
+        }
+
+        if (failedChecks.size() >= MAX_TRACKED_USERS) {
+            failedChecks.values().removeIf(f -> f.lockedUntil <= now);
+        }
+        failedChecks.compute(userKey, (key, f) -> {
+            if (f == null) {
+                f = new FailedChecks();
+            }
+            if (++f.count >= MAX_FAILED_CHECKS) {
+                f.count = 0;
+                f.lockedUntil = now + LOCKOUT_MILLIS;
+                ErrorLogger.logError("Service error: " + MAX_FAILED_CHECKS + " wrong passwords in a row, locking out "
+                        + key.replace('\0', ' ') + " for " + LOCKOUT_MILLIS + " ms");
+            }
+            return f;
+        });
+        return false;
+    }
+
+    private static Reply lockedOut() {
+        return new Reply(429, "{\"error\":\"Too many wrong passwords for this user, try again later\"}");
+    }
+
+    private static Reply processFile(Map<String, String> params) {
+        Submission result = PIPELINE.runInline(new Submission(processRequests.incrementAndGet(), params));
+        int status;
+        switch (result.getStatus()) {
+            case ACCEPTED:
+                status = 200;
+                break;
+            case REJECTED:
+                status = 422;
+                break;
+            default:
+                status = 500;
+                break;
+        }
+        return new Reply(status, "{\"status\":\"" + result.getStatus() + "\",\"detail\":" + json(result.getDetail()) + "}");
+    }
+
+    private static Reply validation(DefendYourCodeJava.Rejection rejection, String value) {
+        if (rejection != null) {
+            rejection.log();
+            return new Reply(422, "{\"valid\":false,\"reason\":" + json(rejection.reason)
+                    + ",\"message\":" + json(rejection.userMessage) + "}");
+        }
+        return new Reply(200, value == null ? "{\"valid\":true}" : "{\"valid\":true,\"value\":" + value + "}");
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    // Query string parameters, then form body parameters
+    private static Map<String, String> parameters(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseForm(exchange.getRequestURI().getRawQuery(), params);
+        if ("POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+            parseForm(new String(readBody(exchange.getRequestBody()), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (body.size() + read > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Request body larger than " + MAX_BODY_BYTES + " bytes");
+            }
+            body.write(buffer, 0, read);
+        }
+        return body.toByteArray();
+    }
+
+    private static void parseForm(String form, Map<String, String> params) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + (contentType.contains("charset") ? "" : "; charset=utf-8"));
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String json(String text) {
+        if (text == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
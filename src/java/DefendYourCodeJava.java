@@ -1,26 +1,53 @@
 import java.util.Scanner;
 import java.io.*;
-import java.security.*;
-import java.math.BigInteger;
-import java.util.regex.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DefendYourCodeJava {
 
     // Constants for validation
     private static final int MAX_NAME_LENGTH = 50;
-    private static final String PASSWORD_FILE = "password.hash";
-    private static final int MAX_FILE_SIZE = 10 * 1024 * 1024; // 10MB max file size
+    // Largest accepted input file, 10MB unless overridden with -Ddefend.maxInputFileSize=<bytes>
+    private static final long MAX_FILE_SIZE = Long.getLong("defend.maxInputFileSize", 10L * 1024 * 1024);
 
     public static void main(String[] args) {
-        ErrorLogger.init();
+        // The error log opens itself on the first error, so nothing here touches the file system
 
+        // Headless batch mode: java DefendYourCodeJava --batch <manifest> <results> [threads]
+        if (args.length > 0 && args[0].equals("--batch")) {
+            startBackgroundWork();
+            BatchRunner.main(args);
+            return;
+        }
+
+        // Bulk CSV validation: java DefendYourCodeJava --validate-csv <data.csv> <column=rule,...> <rejections> [threads]
+        if (args.length > 0 && args[0].equals("--validate-csv")) {
+            CsvValidator.main(args);
+            return;
+        }
+
+        // Local HTTP service: java DefendYourCodeJava --serve [port]
+        if (args.length > 0 && args[0].equals("--serve")) {
+            startBackgroundWork();
+            DefendService.main(args);
+            return;
+        }
+
+        System.out.println("Welcome to the user input program!");
+
+        // Put the first prompt on screen before the Scanner loads its locale data and the
+        // background work starts competing for the CPU
+        printNameRules("first");
+        startBackgroundWork();
         Scanner scan = new Scanner(System.in);
 
         try {
-            System.out.println("Welcome to the user input program!");
-
             // Get user's name
-            String firstName = getName(scan, "first");
+            String firstName = readName(scan, "first");
             String lastName = getName(scan, "last");
 
             // Get integers
@@ -31,11 +58,15 @@ public class DefendYourCodeJava {
             String inputFile = getFileName(scan, "input");
             String outputFile = getFileName(scan, "output");
 
+            // The prompts checked each value; the pipeline stages take it from here
+            Submission submission = Submission.checked(firstName, lastName, num1, num2, inputFile, outputFile);
+            submission.echo = true;
+
             // Get password
-            String hash = getPassword(scan);
+            getPassword(scan, submission);
 
-            // Process files
-            writeToFile(firstName, lastName, num1, num2, inputFile, outputFile, hash);
+            // Hash and save the password, then process files
+            writeToFile(submission);
 
             System.out.println("\nProgram completed successfully!");
 
@@ -47,31 +78,36 @@ public class DefendYourCodeJava {
         }
     }
 
+    // Pick password hashing parameters and fill the salt pool while the user fills in the other prompts
+    private static void startBackgroundWork() {
+        PasswordKdf.configureInBackground();
+        SaltProvider.shared();
+    }
+
     // Get and validate name
     private static String getName(Scanner scan, String nameType) {
-        String name = "";
-        boolean valid = false;
+        printNameRules(nameType);
+        return readName(scan, nameType);
+    }
 
+    private static void printNameRules(String nameType) {
         System.out.println("\nEnter your " + nameType + " name:");
         System.out.println("- Maximum 50 characters");
         System.out.println("- Only letters, hyphens, apostrophes, and spaces allowed");
+    }
+
+    private static String readName(Scanner scan, String nameType) {
+        String name = "";
+        boolean valid = false;
 
         while (!valid) {
             System.out.print("> ");
             name = scan.nextLine().trim();
 
-            if (name.isEmpty()) {
-                String errorMsg = nameType + " name validation error: Name was empty";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Name cannot be empty. Try again.");
-            } else if (name.length() > MAX_NAME_LENGTH) {
-                String errorMsg = nameType + " name validation error: Name exceeded max length (" + name.length() + " > " + MAX_NAME_LENGTH + ")";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Name is too long (max 50 characters). Try again.");
-            } else if (!name.matches("[a-zA-Z\\-'\\s]+")) {
-                String errorMsg = nameType + " name validation error: Name contained invalid characters: " + name;
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Name contains invalid characters. Try again.");
+            Rejection rejection = checkName(name, nameType);
+            if (rejection != null) {
+                rejection.log();
+                System.out.println(rejection.userMessage);
             } else {
                 valid = true;
             }
@@ -93,12 +129,13 @@ public class DefendYourCodeJava {
 
             if (scan.hasNextInt()) {
                 num = scan.nextInt();
+                counted("integer", null);
                 valid = true;
             } else {
                 String input = scan.next(); // Get the invalid input
-                String errorMsg = which + " integer validation error: Input was not a valid integer: " + input;
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Not a valid integer. Try again.");
+                Rejection rejection = invalidInteger(which, input);
+                rejection.log();
+                System.out.println(rejection.userMessage);
             }
         }
 
@@ -113,8 +150,9 @@ public class DefendYourCodeJava {
 
         System.out.println("\nEnter " + type + " file name:");
         if (type.equals("input")) {
-            System.out.println("- File must exist and be less than 10MB");
+            System.out.println("- File must exist and be less than " + describeSize(MAX_FILE_SIZE));
             System.out.println("- Include file extension (like .txt)");
+            System.out.println("- Or a directory, or a pattern like logs/*.txt, to merge its files into one report");
         } else {
             System.out.println("- Output file will be created or overwritten");
             System.out.println("- Path must be writable");
@@ -124,101 +162,29 @@ public class DefendYourCodeJava {
             System.out.print("> ");
             fileName = scan.nextLine().trim();
 
-            if (fileName.isEmpty()) {
-                String errorMsg = type + " file validation error: Filename was empty";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("File name cannot be empty. Try again.");
+            Rejection rejection = checkFileName(fileName, type);
+            if (rejection != null) {
+                rejection.log();
+                System.out.println(rejection.userMessage);
                 continue;
             }
 
-            // For input files, check if file exists
             if (type.equals("input")) {
-                File file = new File(fileName);
-                if (file.exists() && file.isFile()) {
-                    if (file.length() > MAX_FILE_SIZE) {
-                        String errorMsg = "Input file validation error: File too large (" + file.length() + " bytes): " + fileName;
-                        ErrorLogger.logError(errorMsg);
-                        System.out.println("File is too large (>10MB). Try again.");
-                        continue;
-                    }
-                    valid = true;
-                } else {
-                    // Also check in src folder
-                    file = new File("src/" + fileName);
-                    if (file.exists() && file.isFile()) {
-                        if (file.length() > MAX_FILE_SIZE) {
-                            String errorMsg = "Input file validation error: File too large (" + file.length() + " bytes): src/" + fileName;
-                            ErrorLogger.logError(errorMsg);
-                            System.out.println("File is too large (>10MB). Try again.");
-                            continue;
-                        }
-                        fileName = "src/" + fileName;
-                        valid = true;
-                    } else {
-                        String errorMsg = "Input file validation error: File not found: " + fileName;
-                        ErrorLogger.logError(errorMsg);
-                        System.out.println("File not found. Try again.");
-                    }
-                }
-            } else {
-                // For output files, check if path is writable
-                try {
-                    File file = new File(fileName);
-                    File parentDir = file.getParentFile();
-
-                    // If file doesn't have a parent directory, it's in the current directory
-                    if (parentDir != null && !parentDir.exists()) {
-                        String errorMsg = "Output file validation error: Directory doesn't exist: " + parentDir.getPath();
-                        ErrorLogger.logError(errorMsg);
-                        System.out.println("Output directory doesn't exist. Try again.");
-                        continue;
-                    }
-
-                    // Try to create a test file to verify permissions
-                    if (file.exists()) {
-                        if (!file.canWrite()) {
-                            String errorMsg = "Output file validation error: Permission denied for: " + fileName;
-                            ErrorLogger.logError(errorMsg);
-                            System.out.println("Cannot write to this file (permission denied). Try again.");
-                            continue;
-                        }
-                    } else {
-                        try {
-                            if (!file.createNewFile()) {
-                                String errorMsg = "Output file validation error: Cannot create file: " + fileName;
-                                ErrorLogger.logError(errorMsg);
-                                System.out.println("Cannot create output file. Try again.");
-                                continue;
-                            }
-                            file.delete(); // Clean up test file
-                        } catch (IOException e) {
-                            String errorMsg = "Output file validation error: IO exception: " + e.getMessage();
-                            ErrorLogger.logError(errorMsg, e);
-                            System.out.println("Cannot create output file: " + e.getMessage() + ". Try again.");
-                            continue;
-                        }
-                    }
-                    valid = true;
-                } catch (SecurityException e) {
-                    String errorMsg = "Output file validation error: Security exception: " + e.getMessage();
-                    ErrorLogger.logError(errorMsg, e);
-                    System.out.println("Permission denied: " + e.getMessage() + ". Try again.");
-                }
+                fileName = resolveInputFile(fileName);
             }
+            valid = true;
         }
 
         return fileName;
     }
 
-    // Get, hash, and verify password
-    private static String getPassword(Scanner scan) {
-        String password;
-        String salt = generateSalt();
-        String hash = "";
+    // Get and verify password; the hash and save stages store it under the user's key
+    private static void getPassword(Scanner scan, Submission submission) {
+        String password = "";
         boolean valid = false;
 
         System.out.println("\nCreate a password:");
-        System.out.println("- At least 8 characters");
+        System.out.println("- Between 8 and 30 characters, no spaces");
         System.out.println("- Include uppercase, lowercase, number, and special character");
         System.out.println("- Special characters allowed: !@#$%^&*()-_=+");
 
@@ -226,40 +192,12 @@ public class DefendYourCodeJava {
             System.out.print("> ");
             password = scan.nextLine();
 
-            if (password.length() < 8) {
-                String errorMsg = "Password validation error: Password too short (" + password.length() + " chars)";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Password too short. Try again.");
-            } else if (!password.matches(".*[A-Z].*")) {
-                String errorMsg = "Password validation error: Missing uppercase letter";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Need at least one uppercase letter. Try again.");
-            } else if (!password.matches(".*[a-z].*")) {
-                String errorMsg = "Password validation error: Missing lowercase letter";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Need at least one lowercase letter. Try again.");
-            } else if (!password.matches(".*[0-9].*")) {
-                String errorMsg = "Password validation error: Missing number";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Need at least one number. Try again.");
-            } else if (!password.matches(".*[!@#$%^&*()-_=+].*")) {
-                String errorMsg = "Password validation error: Missing special character";
-                ErrorLogger.logError(errorMsg);
-                System.out.println("Need at least one special character. Try again.");
+            Rejection rejection = checkPassword(password);
+            if (rejection != null) {
+                rejection.log();
+                System.out.println(rejection.userMessage);
             } else {
-                hash = hashPassword(password, salt);
-
-                try {
-                    // Save hash to file
-                    FileWriter fw = new FileWriter(PASSWORD_FILE);
-                    fw.write(salt + ":" + hash);
-                    fw.close();
-
-                    valid = true;
-                } catch (IOException e) {
-                    ErrorLogger.logError("Error saving password", e);
-                    System.out.println("Error saving password. See error_log.txt for details.");
-                }
+                valid = true;
             }
         }
 
@@ -271,8 +209,7 @@ public class DefendYourCodeJava {
             System.out.print("> ");
             String verify = scan.nextLine();
 
-            String verifyHash = hashPassword(verify, salt);
-            if (hash.equals(verifyHash)) {
+            if (verify.equals(password)) {
                 System.out.println("Password verified!");
                 verified = true;
             } else {
@@ -281,124 +218,249 @@ public class DefendYourCodeJava {
                 System.out.println("Passwords don't match. Try again.");
             }
         }
+        submission.password = password;
+    }
 
-        return hash;
+    // Hash and save the password and write the report on the stages batch mode and the service use
+    private static void writeToFile(Submission submission) {
+        PipelineStages.prompts().runInline(submission);
+        if (submission.getStatus() == Submission.Status.ACCEPTED) {
+            System.out.println("\nOutput successfully written to " + submission.outputFile);
+        } else {
+            System.out.println(submission.getDetail() + ". Check error_log.txt for details.");
+        }
     }
 
-    // Process files
-    private static void writeToFile(String firstName, String lastName, int num1, int num2,
-                                    String inputFile, String outputFile, String hash) {
-        BufferedReader reader = null;
-        BufferedWriter writer = null;
+    // Validation checks shared by the interactive prompts and batch mode.
+    // Each returns null when the value is acceptable.
 
-        try {
-            // Calculate with BigInteger to avoid overflow
-            BigInteger a = BigInteger.valueOf(num1);
-            BigInteger b = BigInteger.valueOf(num2);
-            BigInteger sum = a.add(b);
-            BigInteger product = a.multiply(b);
-
-            // Open files
-            reader = new BufferedReader(new FileReader(inputFile));
-            writer = new BufferedWriter(new FileWriter(outputFile));
-
-            // Write to output file
-            writer.write("First name: " + firstName + "\n");
-            writer.write("Last name: " + lastName + "\n\n");
-
-            writer.write("First integer: " + num1 + "\n");
-            writer.write("Second integer: " + num2 + "\n");
-            writer.write("Sum: " + sum + "\n");
-            writer.write("Product: " + product + "\n\n");
-
-            writer.write("Input file: " + inputFile + "\n\n");
-
-            writer.write("Input file contents:\n");
-            writer.write("-------------------\n");
-
-            String line;
-            int lineCount = 0;
-            int maxLines = 1000; // Limit to prevent excessive printing
-
-            while ((line = reader.readLine()) != null) {
-                // Truncate very long lines for the output file
-                if (line.length() > 1000) {
-                    writer.write(line.substring(0, 1000) + "... [line truncated, too long]\n");
-                } else {
-                    writer.write(line + "\n");
-                }
+    static Rejection checkName(String name, String nameType) {
+        return counted(ValidationRules.NAME.getName(), nameRejection(name, nameType));
+    }
 
-                // Echo to console with limitations
-                lineCount++;
-                if (lineCount <= maxLines) {
-                    if (line.length() > 100) {
-                        System.out.println("Read: " + line.substring(0, 100) + "... [truncated]");
-                    } else {
-                        System.out.println("Read: " + line);
-                    }
-                } else if (lineCount == maxLines + 1) {
-                    System.out.println("... [additional lines not displayed]");
+    private static Rejection nameRejection(String name, String nameType) {
+        ValidationResult result = ValidationRules.NAME.check(name);
+        switch (result.getViolation()) {
+            case NONE:
+                return null;
+            case EMPTY:
+                return new Rejection("empty", nameType + " name validation error: Name was empty",
+                        "Name cannot be empty. Try again.");
+            case TOO_LONG:
+                return new Rejection("too_long", nameType + " name validation error: Name exceeded max length (" + name.length() + " > " + MAX_NAME_LENGTH + ")",
+                        "Name is too long (max 50 characters). Try again.");
+            default:
+                return new Rejection("invalid_character", nameType + " name validation error: Name contained invalid characters: " + name,
+                        "Name contains invalid characters. Try again.");
+        }
+    }
+
+    static Rejection invalidInteger(String which, String input) {
+        return counted("integer", new Rejection("not_an_integer", which + " integer validation error: Input was not a valid integer: " + input,
+                "Not a valid integer. Try again."));
+    }
+
+    static Rejection checkFileName(String fileName, String type) {
+        return counted(type + "_file", fileNameRejection(fileName, type));
+    }
+
+    private static Rejection fileNameRejection(String fileName, String type) {
+        if (fileName.isEmpty()) {
+            return new Rejection("empty", type + " file validation error: Filename was empty",
+                    "File name cannot be empty. Try again.");
+        }
+
+        // For input files, check if file exists
+        if (type.equals("input")) {
+            // Only a path that passes the set rules is looked up as a directory
+            boolean allowedSet = InputSet.check(fileName) == null;
+            if (allowedSet ? InputSet.isSet(fileName) || InputSet.isSet("src/" + fileName) : InputSet.hasWildcard(fileName)) {
+                return inputSetRejection(fileName);
+            }
+            File file = new File(fileName);
+            String shownName = fileName;
+            if (!(file.exists() && file.isFile())) {
+                // Also check in src folder
+                file = new File("src/" + fileName);
+                shownName = "src/" + fileName;
+                if (!(file.exists() && file.isFile())) {
+                    return new Rejection("not_found", "Input file validation error: File not found: " + fileName,
+                            "File not found. Try again.");
                 }
             }
+            if (file.length() > MAX_FILE_SIZE) {
+                return new Rejection("too_large", "Input file validation error: File too large (" + file.length() + " bytes): " + shownName,
+                        "File is too large (>" + describeSize(MAX_FILE_SIZE) + "). Try again.");
+            }
+            return null;
+        }
 
-            System.out.println("\nOutput successfully written to " + outputFile);
+        // For output files, check if path is writable
+        try {
+            File file = new File(fileName);
+            File parentDir = file.getParentFile();
 
-        } catch (IOException e) {
-            ErrorLogger.logError("File processing error", e);
-            System.out.println("Error processing files. Check error_log.txt for details.");
-        } finally {
-            // Close resources properly
-            try {
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException e) {
-                ErrorLogger.logError("Error closing input file", e);
+            // If file doesn't have a parent directory, it's in the current directory
+            if (parentDir != null && !parentDir.exists()) {
+                return new Rejection("no_directory", "Output file validation error: Directory doesn't exist: " + parentDir.getPath(),
+                        "Output directory doesn't exist. Try again.");
             }
 
-            try {
-                if (writer != null) {
-                    writer.close();
+            // Try to create a test file to verify permissions
+            if (file.exists()) {
+                if (!file.canWrite()) {
+                    return new Rejection("permission_denied", "Output file validation error: Permission denied for: " + fileName,
+                            "Cannot write to this file (permission denied). Try again.");
+                }
+            } else {
+                try {
+                    if (!file.createNewFile()) {
+                        return new Rejection("cannot_create", "Output file validation error: Cannot create file: " + fileName,
+                                "Cannot create output file. Try again.");
+                    }
+                    file.delete(); // Clean up test file
+                } catch (IOException e) {
+                    return new Rejection("io_error", "Output file validation error: IO exception: " + e.getMessage(),
+                            "Cannot create output file: " + e.getMessage() + ". Try again.", e);
                 }
-            } catch (IOException e) {
-                ErrorLogger.logError("Error closing output file", e);
             }
+        } catch (SecurityException e) {
+            return new Rejection("security", "Output file validation error: Security exception: " + e.getMessage(),
+                    "Permission denied: " + e.getMessage() + ". Try again.", e);
         }
+        return null;
     }
 
-    // Helper methods for password handling
-    private static String generateSalt() {
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        return bytesToHex(salt);
+    // A directory or pattern must be allowed part by part, match at least one file, and its files
+    // together stay under the size limit
+    private static Rejection inputSetRejection(String fileName) {
+        String invalid = InputSet.check(fileName);
+        if (invalid != null) {
+            return new Rejection("invalid_pattern", "Input file validation error: " + invalid + ": " + fileName,
+                    invalid + ". Try again.");
+        }
+        String resolved = resolveInputFile(fileName);
+        if (!InputSet.hasFiles(resolved)) {
+            return new Rejection("not_found", "Input file validation error: No files found for: " + fileName,
+                    "No input files found. Try again.");
+        }
+        try {
+            List<Path> files = InputSet.list(resolved);
+            long total = InputSet.totalSize(files);
+            if (total > MAX_FILE_SIZE) {
+                return new Rejection("too_large", "Input file validation error: Files too large (" + total + " bytes in "
+                        + files.size() + " files): " + resolved,
+                        "Files are too large together (>" + describeSize(MAX_FILE_SIZE) + "). Try again.");
+            }
+        } catch (IOException e) {
+            return new Rejection("io_error", "Input file validation error: IO exception: " + e.getMessage(),
+                    "Cannot read the input files: " + e.getMessage() + ". Try again.", e);
+        }
+        return null;
     }
 
-    private static String hashPassword(String password, String salt) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(hexToBytes(salt));
-            byte[] hashedPassword = md.digest(password.getBytes());
-            return bytesToHex(hashedPassword);
-        } catch (NoSuchAlgorithmException e) {
-            ErrorLogger.logError("Hash error", e);
-            return null;
+    // Input files that are not in the working directory are looked up in src/
+    static String resolveInputFile(String fileName) {
+        File file = new File(fileName);
+        if (file.exists() && file.isFile() || InputSet.hasFiles(fileName)) {
+            return fileName;
+        }
+        return "src/" + fileName;
+    }
+
+    static Rejection checkPassword(String password) {
+        return counted(ValidationRules.PASSWORD.getName(), passwordRejection(password));
+    }
+
+    private static Rejection passwordRejection(String password) {
+        ValidationResult result = ValidationRules.PASSWORD.check(password);
+        switch (result.getViolation()) {
+            case NONE:
+                return null;
+            case EMPTY:
+            case TOO_SHORT:
+                return new Rejection("too_short", "Password validation error: Password too short (" + password.length() + " chars)",
+                        "Password too short. Try again.");
+            case TOO_LONG:
+                return new Rejection("too_long", "Password validation error: Password too long (" + password.length() + " chars)",
+                        "Password too long (max 30 characters). Try again.");
+            case INVALID_CHARACTER:
+                return new Rejection("whitespace", "Password validation error: Password contained whitespace",
+                        "Password cannot contain spaces. Try again.");
+            default:
+                return new Rejection("missing_" + result.getMissingClass().replace(' ', '_'),
+                        "Password validation error: Missing " + result.getMissingClass(),
+                        "Need at least one " + result.getMissingClass() + ". Try again.");
         }
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder hex = new StringBuilder();
-        for (byte b : bytes) {
-            hex.append(String.format("%02x", b));
+    // Counters by rule, and by rule and reason, looked up once rather than on every check
+    private static final Map<String, LongAdder> validationAttempts = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> validationRejections = new ConcurrentHashMap<>();
+
+    // Counts every check for the metrics, and every rejection by rule and reason
+    static Rejection counted(String rule, Rejection rejection) {
+        validationAttempts.computeIfAbsent(rule, key -> Metrics.counter("defend_validation_attempts_total",
+                "Values checked by the prompts and batch mode", "rule", rule)).increment();
+        if (rejection != null) {
+            validationRejections.computeIfAbsent(rule + "\0" + rejection.reason, key -> Metrics.counter(
+                    "defend_validation_rejections_total", "Values rejected, by rule and reason",
+                    "rule", rule, "reason", rejection.reason)).increment();
         }
-        return hex.toString();
+        return rejection;
     }
 
-    private static byte[] hexToBytes(String hex) {
-        byte[] bytes = new byte[hex.length() / 2];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = (byte) Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+    // Human readable size for prompts, e.g. 10MB
+    private static String describeSize(long bytes) {
+        if (bytes >= 1024 * 1024 && bytes % (1024 * 1024) == 0) {
+            return (bytes / (1024 * 1024)) + "MB";
+        } else if (bytes >= 1024 && bytes % 1024 == 0) {
+            return (bytes / 1024) + "KB";
+        }
+        return bytes + " bytes";
+    }
+
+    // Why a value was rejected: a reason for the metrics, the error log entry and the user's message
+    static class Rejection {
+        final String reason;
+        final String logMessage;
+        final String userMessage;
+        final Exception cause;
+
+        Rejection(String reason, String logMessage, String userMessage) {
+            this(reason, logMessage, userMessage, null);
+        }
+
+        Rejection(String reason, String logMessage, String userMessage, Exception cause) {
+            this.reason = reason;
+            this.logMessage = logMessage;
+            this.userMessage = userMessage;
+            this.cause = cause;
         }
-        return bytes;
+
+        void log() {
+            if (cause != null) {
+                ErrorLogger.logError(logMessage, cause);
+            } else {
+                ErrorLogger.logError(logMessage);
+            }
+        }
+    }
+
+    // Helper methods for password handling
+    static String generateSalt() {
+        return SaltProvider.shared().nextHex();
+    }
+
+    static String hashPassword(String password, String salt) {
+        return hashPassword(password, salt, PasswordKdf.current());
+    }
+
+    static String hashPassword(String password, String salt, PasswordKdf kdf) {
+        return kdf.hash(password, salt);
+    }
+
+    static String bytesToHex(byte[] bytes) {
+        return HexCodec.encode(bytes);
     }
 }
\ No newline at end of file
@@ -0,0 +1,290 @@
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Echoes input lines to the console while a file is copied, without slowing the copy.
+ *
+ * Lines are formatted into one reusable buffer that is encoded into another reusable buffer and
+ * written to the console in 64KB blocks, instead of one synchronized, autoflushing println per line. What gets echoed is chosen by a
+ * spec string, normally from -Ddefend.echo (see ProcessingOptions):
+ *   off          nothing
+ *   head:N       the first N lines, then a note that the rest are not displayed
+ *   sample:N     every Nth line, starting with the first
+ *   progress     a lines/s and MB/s line every second ("progress:MILLIS" sets the interval);
+ *                sizes count characters plus one per line ending, so they are approximate
+ *   full         every line
+ * Call finish() when the copy is done to write out what is buffered.
+ */
+public class EchoSink implements ParallelLineProcessor.LineEcho {
+
+    /**
+     * Which lines are echoed
+     */
+    public enum Mode {
+        /** Echo nothing */
+        OFF,
+        /** Echo the first lines only */
+        HEAD,
+        /** Echo every Nth line */
+        SAMPLE,
+        /** Report throughput periodically instead of lines */
+        PROGRESS,
+        /** Echo every line */
+        FULL
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long DEFAULT_PROGRESS_MILLIS = 1000;
+    // Lines between clock reads in PROGRESS mode
+    private static final int PROGRESS_CHECK_INTERVAL = 256;
+    private static final String HEAD_TRAILER = "... [additional lines not displayed]";
+
+    private final Mode mode;
+    private final long parameter;
+    private final PrintStream console;
+    // Replaces what the console charset cannot encode, as String.getBytes does
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final String newLine = System.lineSeparator();
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE + 1024);
+    // Allocated on the first drain, so sinks that echo nothing never hold it
+    private ByteBuffer encoded;
+
+    private String prefix = "";
+    private int maxLength = Integer.MAX_VALUE;
+    private String clipMarker = "";
+
+    private long lines;
+    private long characters;
+    private long startNanos;
+    private long lastReportNanos;
+    private long lastReportLines;
+    private long lastReportCharacters;
+
+    private EchoSink(Mode mode, long parameter, PrintStream console) {
+        this.mode = mode;
+        this.parameter = parameter;
+        this.console = console;
+    }
+
+    /**
+     * Parses an echo spec
+     * @param spec off, head:N, sample:N, progress[:MILLIS] or full
+     * @param console Where the echo goes
+     * @return A sink for one copy
+     * @throws IllegalArgumentException If the spec is not recognised
+     */
+    public static EchoSink parse(String spec, PrintStream console) {
+        String[] parts = spec.trim().split(":", 2);
+        Mode mode;
+        try {
+            mode = Mode.valueOf(parts[0].toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown echo mode: " + spec);
+        }
+
+        long parameter = 0;
+        if (mode == Mode.HEAD || mode == Mode.SAMPLE || mode == Mode.PROGRESS) {
+            if (parts.length < 2 && mode != Mode.PROGRESS) {
+                throw new IllegalArgumentException("Echo mode " + parts[0] + " needs a count, e.g. " + parts[0] + ":100");
+            }
+            parameter = parts.length < 2 ? DEFAULT_PROGRESS_MILLIS : Long.parseLong(parts[1].trim());
+            if (parameter < 1) {
+                throw new IllegalArgumentException("Echo count must be positive: " + spec);
+            }
+        }
+        return new EchoSink(mode, parameter, console);
+    }
+
+    /**
+     * Creates a sink writing to System.out
+     * @param spec The requested spec, normally ProcessingOptions.getEcho(); null for the default
+     * @param defaultSpec Spec used when none was requested or the request is invalid
+     * @return A sink for one copy
+     */
+    public static EchoSink create(String spec, String defaultSpec) {
+        if (spec != null) {
+            try {
+                return parse(spec, System.out);
+            } catch (IllegalArgumentException e) {
+                ErrorLogger.logError("Invalid echo mode, using " + defaultSpec + ": " + e.getMessage());
+            }
+        }
+        return parse(defaultSpec, System.out);
+    }
+
+    /**
+     * @return A sink that echoes nothing
+     */
+    public static EchoSink off() {
+        return new EchoSink(Mode.OFF, 0, System.out);
+    }
+
+    /**
+     * @param prefix Written before each echoed line
+     * @return This sink
+     */
+    public EchoSink prefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * Shortens long lines on the console
+     * @param maxLength Longest line echoed whole
+     * @param clipMarker Written after a shortened line
+     * @return This sink
+     */
+    public EchoSink clip(int maxLength, String clipMarker) {
+        this.maxLength = maxLength;
+        this.clipMarker = clipMarker;
+        return this;
+    }
+
+    /**
+     * @return The mode
+     */
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return How many leading lines this sink can use; later lines need not be passed
+     */
+    public long getLineLimit() {
+        switch (mode) {
+            case OFF:
+                return 0;
+            case HEAD:
+                // One more than shown, so the trailer is printed only when lines were left out
+                return parameter + 1;
+            default:
+                return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Offers the next input line
+     * @param lineNumber 1-based line number
+     * @param line The line
+     */
+    @Override
+    public void echo(long lineNumber, String line) {
+        lines = lineNumber;
+        switch (mode) {
+            case OFF:
+                return;
+            case HEAD:
+                if (lineNumber <= parameter) {
+                    append(line);
+                } else if (lineNumber == parameter + 1) {
+                    buffer.append(HEAD_TRAILER).append(newLine);
+                }
+                break;
+            case SAMPLE:
+                if ((lineNumber - 1) % parameter == 0) {
+                    append(line);
+                }
+                break;
+            case PROGRESS:
+                characters += line.length() + 1;
+                if (lineNumber % PROGRESS_CHECK_INTERVAL == 1) {
+                    progress(false);
+                }
+                return;
+            default:
+                append(line);
+                break;
+        }
+        if (buffer.length() >= BUFFER_SIZE) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes whatever is buffered; in PROGRESS mode also writes the final totals
+     */
+    public void finish() {
+        if (mode == Mode.PROGRESS && startNanos != 0) {
+            progress(true);
+        }
+        drain();
+    }
+
+    private void append(String line) {
+        buffer.append(prefix);
+        if (line.length() > maxLength) {
+            buffer.append(line, 0, maxLength).append(clipMarker);
+        } else {
+            buffer.append(line);
+        }
+        buffer.append(newLine);
+    }
+
+    private void progress(boolean last) {
+        long now = System.nanoTime();
+        if (startNanos == 0) {
+            startNanos = now;
+            lastReportNanos = now;
+            return;
+        }
+        if (!last && now - lastReportNanos < parameter * 1_000_000L) {
+            return;
+        }
+
+        double seconds = (now - (last ? startNanos : lastReportNanos)) / 1e9;
+        long lineDelta = last ? lines : lines - lastReportLines;
+        long characterDelta = last ? characters : characters - lastReportCharacters;
+        buffer.append(last ? "Processed: " : "Progress: ").append(lines).append(" lines, ")
+                .append(String.format("%.1f", characters / 1e6)).append(" MB read (")
+                .append(String.format("%.0f", seconds > 0 ? lineDelta / seconds : 0)).append(" lines/s, ")
+                .append(String.format("%.1f", seconds > 0 ? characterDelta / 1e6 / seconds : 0)).append(" MB/s)")
+                .append(newLine);
+        lastReportNanos = now;
+        lastReportLines = lines;
+        lastReportCharacters = characters;
+
+        // Progress is only useful if it appears when it happens
+        drain();
+    }
+
+    private void drain() {
+        if (buffer.length() == 0) {
+            return;
+        }
+        if (encoded == null) {
+            encoded = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        encoder.reset();
+        boolean flushing = false;
+        while (true) {
+            CoderResult result = flushing ? encoder.flush(encoded) : encoder.encode(chars, encoded, true);
+            if (result.isOverflow()) {
+                write();
+            } else if (result.isUnderflow()) {
+                if (flushing) {
+                    break;
+                }
+                flushing = true;
+            } else {
+                // Not reached: the encoder replaces what it cannot encode
+                break;
+            }
+        }
+        write();
+        buffer.setLength(0);
+        console.flush();
+    }
+
+    private void write() {
+        console.write(encoded.array(), 0, encoded.position());
+        encoded.clear();
+    }
+}
@@ -1,62 +1,173 @@
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
  * Utility class for logging errors to a file
+ *
+ * Callers only enqueue entries; a single background thread formats queued entries in batches
+ * and appends each batch to error_log.txt (see LogSegments). The file is rolled to
+ * error_log.<timestamp>.txt when it grows too large or too old, and at startup, so earlier
+ * runs stay available. Tuned with system properties:
+ *   errorlog.capacity        maximum queued entries (default 8192)
+ *   errorlog.overflow        BLOCK, DROP_OLDEST or DROP_AND_COUNT when the queue is full (default BLOCK)
+ *   errorlog.batchSize       maximum entries written per batch (default 256)
+ *   errorlog.segmentBytes    size at which error_log.txt is rolled (default 10MB)
+ *   errorlog.segmentMillis   age at which error_log.txt is rolled (default 24 hours)
+ *   errorlog.retainSegments  rolled files kept, older ones are deleted (default 10)
+ * Queue depth, drops, write latency and rolls are published through Metrics.
  */
 public class ErrorLogger {
 
-    private static final String ERROR_LOG_FILE = "error_log.txt";
+    /**
+     * What logError does when the queue is full
+     */
+    public enum OverflowPolicy {
+        /** Wait for the writer to make room */
+        BLOCK,
+        /** Discard the oldest queued entry to make room */
+        DROP_OLDEST,
+        /** Discard the new entry */
+        DROP_AND_COUNT
+    }
+
+    static final String ERROR_LOG_FILE = "error_log.txt";
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final int CAPACITY = Integer.getInteger("errorlog.capacity", 8192);
+    private static final int BATCH_SIZE = Integer.getInteger("errorlog.batchSize", 256);
+    private static final OverflowPolicy OVERFLOW_POLICY = overflowPolicy(System.getProperty("errorlog.overflow"));
+    private static final long SEGMENT_BYTES = Long.getLong("errorlog.segmentBytes", 10L * 1024 * 1024);
+    private static final long SEGMENT_MILLIS = Long.getLong("errorlog.segmentMillis", TimeUnit.HOURS.toMillis(24));
+    private static final int RETAIN_SEGMENTS = Integer.getInteger("errorlog.retainSegments", 10);
+
+    // Whether logError also prints a line to System.err
+    private static volatile boolean consoleEcho = Boolean.parseBoolean(System.getProperty("errorlog.console", "true"));
+
+    // Bounded lock-free queue: the CAS on queueSize reserves a slot before the entry is offered
+    private static final ConcurrentLinkedQueue<LogEntry> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queueSize = new AtomicInteger();
+    private static final AtomicLong enqueued = new AtomicLong();
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // Guards the segments; only the writer thread appends, but shutdown closes them
+    private static final Object fileLock = new Object();
+    private static volatile LogSegments segments;
+    // Reused by the writer thread to format and encode each entry, as FileWriter would in the platform charset
+    private static final StringBuilder entryText = new StringBuilder(1024);
+    private static final CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private static ByteBuffer entryBytes = ByteBuffer.allocate(4096);
+    private static final String newLine = System.lineSeparator();
+
+    private static volatile boolean running = true;
+    private static final Thread writerThread;
+
+    private static final LatencyHistogram batchWriteLatency = Metrics.histogram("defend_errorlog_batch_write_seconds",
+            "Time to write and flush one batch of log entries");
+    private static final LatencyHistogram entryLatency = Metrics.histogram("defend_errorlog_entry_latency_seconds",
+            "Time from logError to the entry being flushed to the file");
+
+    /**
+     * Opens the log file now rather than when the first entry is written
+     */
     public static void init() {
-        createNewErrorLogFile();
+        synchronized (fileLock) {
+            if (segments == null) {
+                createNewErrorLogFile();
+            }
+        }
     }
 
-    // Static block to create a new error log file when the class is loaded
+    // Start the writer when the class is loaded; the file itself is opened on the first write,
+    // so a run that logs nothing does no file work at all
     static {
-        createNewErrorLogFile();
+        writerThread = new Thread(ErrorLogger::writerLoop, "error-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        // Everything queued before the JVM exits still reaches the file
+        Runtime.getRuntime().addShutdownHook(new Thread(ErrorLogger::shutdown, "error-log-drain"));
+
+        Metrics.gauge("defend_errorlog_queue_depth", "Entries waiting to be written", queueSize::get);
+        Metrics.gauge("defend_errorlog_dropped", "Entries discarded because the queue was full", dropped::get);
+        Metrics.gauge("defend_errorlog_segment_bytes", "Size of the active error log segment",
+                () -> segments == null ? 0 : segments.getSize());
+        Metrics.gauge("defend_errorlog_rolls", "Error log segments rolled by this process",
+                () -> segments == null ? 0 : segments.getRollCount());
+
+        // Reported once the queue exists; overflowPolicy runs before it does
+        String overflow = System.getProperty("errorlog.overflow");
+        if (overflow != null && !OVERFLOW_POLICY.name().equalsIgnoreCase(overflow.trim())) {
+            logError("Invalid errorlog.overflow, using BLOCK: " + overflow);
+        }
     }
 
     /**
-     * Creates a new error log file when the program starts
+     * @param value errorlog.overflow as given, or null
+     * @return The policy it names, ignoring case, or BLOCK if it names none
      */
-    private static void createNewErrorLogFile() {
+    private static OverflowPolicy overflowPolicy(String value) {
+        if (value == null) {
+            return OverflowPolicy.BLOCK;
+        }
         try {
-            File logFile = new File(ERROR_LOG_FILE);
-
-            // If file already exists, delete it to start fresh
-            if (logFile.exists()) {
-                logFile.delete();
-            }
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return OverflowPolicy.BLOCK;
+        }
+    }
 
-            // Create a new log file
-            try (PrintWriter writer = new PrintWriter(new FileWriter(logFile))) {
-                writer.println("=== ERROR LOG CREATED AT " + LocalDateTime.now().format(formatter) + " ===");
-                writer.println("=== All program errors will be logged here ===");
-                writer.println();
-            }
+    /**
+     * Creates a new error log file; the previous run's file is rolled, not deleted. Caller holds fileLock.
+     */
+    private static void createNewErrorLogFile() {
+        try {
+            segments = new LogSegments(Paths.get(ERROR_LOG_FILE), SEGMENT_BYTES, SEGMENT_MILLIS, RETAIN_SEGMENTS);
+            appendText("=== ERROR LOG CREATED AT " + LocalDateTime.now().format(formatter) + " ===" + newLine
+                    + "=== All program errors will be logged here ===" + newLine
+                    + newLine);
 
-            System.out.println("Created new error log file: " + logFile.getAbsolutePath());
+            System.out.println("Created new error log file: " + segments.getActivePath());
         } catch (IOException e) {
             System.err.println("Failed to create error log file: " + e.getMessage());
         }
     }
 
+    /**
+     * Turns the "Error logged" line printed to System.err on or off; entries reach the file either way
+     * @param echo False to stay quiet, e.g. in service mode where errors are the callers' rejected input
+     */
+    public static void setConsoleEcho(boolean echo) {
+        consoleEcho = echo;
+    }
+
     /**
      * Logs an error message to the error log file
      * @param errorMessage The error message to log
      */
     public static void logError(String errorMessage) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(ERROR_LOG_FILE, true))) {
-            writer.println(LocalDateTime.now().format(formatter) + ": " + errorMessage);
+        enqueue(new LogEntry(System.currentTimeMillis(), errorMessage, null));
+        if (consoleEcho) {
             System.err.println("Error logged: " + errorMessage);
-        } catch (IOException e) {
-            System.err.println("Failed to write to error log: " + e.getMessage());
         }
     }
 
@@ -66,20 +177,211 @@ public class ErrorLogger {
      * @param exception The exception to log
      */
     public static void logError(String errorMessage, Exception exception) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(ERROR_LOG_FILE, true))) {
-            writer.println(LocalDateTime.now().format(formatter) + ": " + errorMessage);
-            writer.println("Exception: " + exception.getClass().getName() + ": " + exception.getMessage());
-            writer.println("Stack trace:");
-
-            // Log the stack trace
-            for (StackTraceElement element : exception.getStackTrace()) {
-                writer.println("    at " + element.toString());
+        enqueue(new LogEntry(System.currentTimeMillis(), errorMessage, exception));
+        if (consoleEcho) {
+            System.err.println("Error logged with stack trace: " + errorMessage);
+        }
+    }
+
+    /**
+     * Waits until every entry logged so far has been written and flushed to the file
+     */
+    public static void flush() {
+        long target = enqueued.get();
+        while (completed.get() < target && writerThread.isAlive()) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * @return Number of entries discarded because the queue was full
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Number of entries waiting to be written
+     */
+    public static int getQueueDepth() {
+        return queueSize.get();
+    }
+
+    /**
+     * Places an entry on the queue, applying the overflow policy when it is full
+     */
+    private static void enqueue(LogEntry entry) {
+        while (true) {
+            int size = queueSize.get();
+            if (size < CAPACITY) {
+                if (queueSize.compareAndSet(size, size + 1)) {
+                    enqueued.incrementAndGet();
+                    queue.offer(entry);
+                    // The writer parks only when it has found the queue empty
+                    if (size == 0) {
+                        LockSupport.unpark(writerThread);
+                    }
+                    return;
+                }
+                continue;
             }
-            writer.println();
 
-            System.err.println("Error logged with stack trace: " + errorMessage);
-        } catch (IOException e) {
-            System.err.println("Failed to write to error log: " + e.getMessage());
+            switch (OVERFLOW_POLICY) {
+                case DROP_AND_COUNT:
+                    dropped.incrementAndGet();
+                    return;
+                case DROP_OLDEST:
+                    if (queue.poll() != null) {
+                        queueSize.decrementAndGet();
+                        completed.incrementAndGet();
+                        dropped.incrementAndGet();
+                    } else {
+                        // Every slot is reserved but the entries are not offered yet; let their callers run
+                        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                    }
+                    break;
+                default:
+                    if (!writerThread.isAlive()) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.unpark(writerThread);
+                    LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Body of the background writer: drain a batch, write it, flush once, repeat
+     */
+    private static void writerLoop() {
+        List<LogEntry> batch = new ArrayList<>(BATCH_SIZE);
+        while (running || queueSize.get() > 0) {
+            drainBatch(batch);
+            if (batch.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+            writeBatch(batch);
+            batch.clear();
+        }
+
+        synchronized (fileLock) {
+            closeSegments();
+        }
+    }
+
+    private static void drainBatch(List<LogEntry> batch) {
+        LogEntry entry;
+        while (batch.size() < BATCH_SIZE && (entry = queue.poll()) != null) {
+            queueSize.decrementAndGet();
+            batch.add(entry);
+        }
+    }
+
+    private static void writeBatch(List<LogEntry> batch) {
+        long start = System.nanoTime();
+        synchronized (fileLock) {
+            try {
+                long lastSecond = -1;
+                String timestamp = "";
+                for (LogEntry entry : batch) {
+                    // Consecutive entries usually share a second, so format the timestamp once
+                    long second = entry.timeMillis / 1000;
+                    if (second != lastSecond) {
+                        timestamp = LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.timeMillis), ZoneId.systemDefault())
+                                .format(formatter);
+                        lastSecond = second;
+                    }
+                    entryText.setLength(0);
+                    writeEntry(entryText, timestamp, entry);
+                    appendText(entryText);
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to write to error log: " + e.getMessage());
+            } finally {
+                long end = System.nanoTime();
+                batchWriteLatency.record(end - start);
+                for (LogEntry entry : batch) {
+                    entryLatency.record(end - entry.enqueuedNanos);
+                }
+                completed.addAndGet(batch.size());
+            }
+        }
+    }
+
+    // Caller holds fileLock. Each entry is appended on its own, so segments roll between entries.
+    private static void appendText(CharSequence text) throws IOException {
+        if (segments == null) {
+            createNewErrorLogFile();
+            if (segments == null) {
+                throw new IOException("The error log could not be opened");
+            }
+        }
+        int maxBytes = (int) Math.ceil(text.length() * (double) encoder.maxBytesPerChar()) + 16;
+        if (entryBytes.capacity() < maxBytes) {
+            entryBytes = ByteBuffer.allocate(maxBytes);
+        }
+        entryBytes.clear();
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(text), entryBytes, true);
+        encoder.flush(entryBytes);
+        segments.append(entryBytes.array(), 0, entryBytes.position());
+    }
+
+    private static void writeEntry(StringBuilder text, String timestamp, LogEntry entry) {
+        text.append(timestamp).append(": ").append(entry.message).append(newLine);
+        if (entry.exception == null) {
+            return;
+        }
+
+        text.append("Exception: ").append(entry.exception.getClass().getName()).append(": ")
+                .append(entry.exception.getMessage()).append(newLine);
+        text.append("Stack trace:").append(newLine);
+
+        // Log the stack trace
+        for (StackTraceElement element : entry.exception.getStackTrace()) {
+            text.append("    at ").append(element).append(newLine);
+        }
+        text.append(newLine);
+    }
+
+    private static void closeSegments() {
+        if (segments != null) {
+            try {
+                segments.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close error log: " + e.getMessage());
+            }
+            segments = null;
+        }
+    }
+
+    private static void shutdown() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A queued log entry; formatting is left to the writer thread
+     */
+    private static class LogEntry {
+        final long timeMillis;
+        final long enqueuedNanos = System.nanoTime();
+        final String message;
+        final Exception exception;
+
+        LogEntry(long timeMillis, String message, Exception exception) {
+            this.timeMillis = timeMillis;
+            this.message = message;
+            this.exception = exception;
         }
     }
-}
\ No newline at end of file
+}
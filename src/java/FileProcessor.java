@@ -1,15 +1,91 @@
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.math.BigInteger;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 
 /**
  * Handles file processing operations
  */
 public class FileProcessor {
 
+    // Report bytes buffered before the line copy writes them out
+    private static final int LINE_WRITE_BUFFER = 64 * 1024;
+    // Written after a line cut at the style's limit
+    private static final String TRUNCATED_LINE_MARKER = "... [line truncated, too long: %d characters dropped]";
+
+    /**
+     * What differs between the report the prompts write and the one processFiles writes. Both
+     * are compared byte for byte with reports of earlier versions, so each keeps its labels, line
+     * separator and line limit; the copy itself is the same code for both.
+     */
+    enum ReportStyle {
+        /** The prompts, batch mode and the service: "\n" line endings, lines cut at 1000 characters */
+        PROMPT("First integer: ", "Second integer: ", "Input file: ", "-------------------", "\n", 1000,
+                "head:1000", "Read: ", 100, "writeReport"),
+        /** processFiles: the platform line separator, lines copied whole */
+        PROCESS("First Integer: ", "Second Integer: ", "Input File Name: ", "------------------",
+                System.lineSeparator(), 0, "full", "Read from input file: ", 0, "processFiles");
+
+        final String firstIntegerLabel;
+        final String secondIntegerLabel;
+        final String inputFileLabel;
+        final String contentsRule;
+        final String newLine;
+        // Longest line copied whole, 0 for no limit
+        final int maxLineLength;
+        private final String defaultEcho;
+        private final String echoPrefix;
+        private final int echoClip;
+        // Copy path in the file processing metrics
+        final String metricsPath;
+
+        ReportStyle(String firstIntegerLabel, String secondIntegerLabel, String inputFileLabel, String contentsRule,
+                    String newLine, int maxLineLength, String defaultEcho, String echoPrefix, int echoClip,
+                    String metricsPath) {
+            this.firstIntegerLabel = firstIntegerLabel;
+            this.secondIntegerLabel = secondIntegerLabel;
+            this.inputFileLabel = inputFileLabel;
+            this.contentsRule = contentsRule;
+            this.newLine = newLine;
+            this.maxLineLength = maxLineLength;
+            this.defaultEcho = defaultEcho;
+            this.echoPrefix = echoPrefix;
+            this.echoClip = echoClip;
+            this.metricsPath = metricsPath;
+        }
+
+        /**
+         * @param options The echo the user asked for, if any
+         * @return A console sink for one copy in this style
+         */
+        EchoSink echoSink(ProcessingOptions options) {
+            EchoSink sink = EchoSink.create(options.getEcho(), defaultEcho).prefix(echoPrefix);
+            return echoClip > 0 ? sink.clip(echoClip, "... [truncated]") : sink;
+        }
+
+        /**
+         * @return The copy mode for an input of this size; a streaming copy cannot cut lines, so a
+         *         style with a line limit copies line by line, on several cores for large inputs
+         */
+        ProcessingOptions.CopyMode copyModeFor(ProcessingOptions options, long inputSize) {
+            if (maxLineLength > 0) {
+                return options.parallelFor(inputSize) ? ProcessingOptions.CopyMode.PARALLEL : ProcessingOptions.CopyMode.LINES;
+            }
+            return options.copyModeFor(inputSize);
+        }
+    }
+
     /**
      * Processes the files and writes the output
      * @param firstName User's first name
@@ -23,56 +99,109 @@ public class FileProcessor {
      */
     public static void processFiles(String firstName, String lastName, int firstInt, int secondInt,
                                     String inputFileName, String outputFileName, String passwordHash) throws IOException {
+        processFiles(firstName, lastName, firstInt, secondInt, inputFileName, outputFileName, passwordHash,
+                ProcessingOptions.defaults());
+    }
 
-        BufferedReader reader = null;
-        BufferedWriter writer = null;
+    /**
+     * Processes the files and writes the output using the given options
+     * @param firstName User's first name
+     * @param lastName User's last name
+     * @param firstInt First integer
+     * @param secondInt Second integer
+     * @param inputFileName Input file name, or a directory or pattern whose files are merged into
+     *                      one plain text report, see InputSet
+     * @param outputFileName Output file name
+     * @param passwordHash Password hash
+     * @param options Copy mode, output format and echo selection
+     * @throws IOException If an I/O error occurs
+     */
+    public static void processFiles(String firstName, String lastName, int firstInt, int secondInt,
+                                    String inputFileName, String outputFileName, String passwordHash,
+                                    ProcessingOptions options) throws IOException {
+        ReportStyle style = ReportStyle.PROCESS;
+        String header = buildHeader(style, firstName, lastName, firstInt, secondInt, inputFileName, style.newLine);
 
         try {
-            reader = new BufferedReader(new FileReader(inputFileName));
-            writer = new BufferedWriter(new FileWriter(outputFileName));
-
-            // Calculate sum and product using BigInteger to avoid overflow
-            BigInteger first = BigInteger.valueOf(firstInt);
-            BigInteger second = BigInteger.valueOf(secondInt);
-            BigInteger sum = first.add(second);
-            BigInteger product = first.multiply(second);
-
-            // Write user's name
-            writer.write("First name: " + firstName);
-            writer.newLine();
-            writer.write("Last name: " + lastName);
-            writer.newLine();
-            writer.newLine();
-
-            // Write integers and calculations
-            writer.write("First Integer: " + firstInt);
-            writer.newLine();
-            writer.write("Second Integer: " + secondInt);
-            writer.newLine();
-            writer.write("Sum: " + sum);
-            writer.newLine();
-            writer.write("Product: " + product);
-            writer.newLine();
-            writer.newLine();
-
-            // Write file information
-            writer.write("Input File Name: " + inputFileName);
-            writer.newLine();
-            writer.newLine();
-
-            // Write input file contents
-            writer.write("Input file contents:");
-            writer.newLine();
-            writer.write("------------------");
-            writer.newLine();
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                writer.write(line);
-                writer.newLine();
+            long start = System.nanoTime();
+            if (InputSet.isSet(inputFileName)) {
+                copySet(header, inputFileName, outputFileName, options);
+                return;
+            }
 
-                // Echo to screen
-                System.out.println("Read from input file: " + line);
+            long inputSize = Paths.get(inputFileName).toFile().length();
+            ProcessingOptions.CopyMode mode = style.copyModeFor(options, inputSize);
+            long lines = -1;
+            boolean incremental = options.isIncremental();
+            if (incremental && !IncrementalCopy.supports(options)) {
+                ErrorLogger.logError("Resume needs a plain text report without aggregates; writing "
+                        + outputFileName + " in full");
+                incremental = false;
+            }
+
+            if (incremental) {
+                IncrementalCopy copy = new IncrementalCopy(header, Paths.get(inputFileName), Paths.get(outputFileName),
+                        mode, options);
+                inputSize = copy.start();
+                lines = copy.getLinesWritten();
+                System.out.println(describe(copy));
+                recordCopy(style.metricsPath, mode, start, inputSize, Paths.get(outputFileName).toFile().length(), lines);
+                if (options.isFollow()) {
+                    System.out.println("Following " + inputFileName + " (Ctrl+C to stop)");
+                    copy.follow(options.getFollowIntervalMillis(), options.getFollowIdleMillis());
+                }
+                System.out.println("\nWritten to output file: " + outputFileName);
+                return;
+            }
+
+            // With a cache, a known report is copied into place; a new one is written into the cache first.
+            // A plain streaming copy is cheaper than digesting the input for the key, so it skips the cache.
+            ReportCache cache = null;
+            String cacheKey = null;
+            String inputStamp = null;
+            Path written = null;
+            String target = outputFileName;
+            if (options.getCacheDirectory() != null
+                    && (options.isStructuredOutput() || mode != ProcessingOptions.CopyMode.STREAMING)) {
+                try {
+                    cache = new ReportCache(Paths.get(options.getCacheDirectory()), options.getCacheMaxBytes());
+                    inputStamp = ReportCache.stamp(Paths.get(inputFileName));
+                    cacheKey = ReportCache.key(Paths.get(inputFileName), firstName, lastName, Integer.toString(firstInt),
+                            Integer.toString(secondInt), inputFileName, reportShape(options));
+                    if (cache.serve(cacheKey, Paths.get(outputFileName))) {
+                        echoCached(inputFileName, options);
+                        recordCopy("cache", mode, start, inputSize, Paths.get(outputFileName).toFile().length(), -1);
+                        System.out.println("\nWritten to output file: " + outputFileName + " (from the report cache)");
+                        return;
+                    }
+                    written = cache.newTemporaryFile();
+                    target = written.toString();
+                } catch (IOException e) {
+                    ErrorLogger.logError("Report cache unavailable, writing the report directly: " + e.getMessage());
+                    cache = null;
+                }
+            }
+
+            try {
+                if (options.isStructuredOutput()) {
+                    // Every line goes through the report writer, whatever the size
+                    lines = writeStructured(firstName, lastName, firstInt, secondInt, inputFileName, target, options);
+                    recordCopy(style.metricsPath, ProcessingOptions.CopyMode.LINES, start, inputSize,
+                            Paths.get(target).toFile().length(), lines);
+                } else {
+                    writeText(style, header, inputFileName, target, mode, options, style.echoSink(options));
+                    if (mode == ProcessingOptions.CopyMode.STREAMING) {
+                        System.out.println("Copied " + inputSize + " bytes from input file");
+                    }
+                }
+                if (cache != null) {
+                    cache.store(cacheKey, Paths.get(inputFileName), inputStamp, written, Paths.get(outputFileName));
+                    written = null;
+                }
+            } finally {
+                if (written != null) {
+                    cache.discard(written);
+                }
             }
 
             // Echo success to screen
@@ -81,23 +210,353 @@ public class FileProcessor {
         } catch (IOException e) {
             ErrorLogger.logError("Error processing files: " + e.getMessage());
             throw e;
+        }
+    }
+
+    // Merges the files of a directory or pattern, a section each; resume and the cache need a single input
+    private static void copySet(String header, String inputFileName, String outputFileName,
+                                ProcessingOptions options) throws IOException {
+        if (options.isStructuredOutput()) {
+            throw new IOException("A directory or pattern input needs a plain text report: " + inputFileName);
+        }
+        if (options.isIncremental()) {
+            ErrorLogger.logError("Resume needs a single input file; writing " + outputFileName + " in full");
+        }
+        ReportStyle style = ReportStyle.PROCESS;
+        writeText(style, header, inputFileName, outputFileName, ProcessingOptions.CopyMode.PARALLEL, options,
+                style.echoSink(options));
+        System.out.println("\nWritten to output file: " + outputFileName);
+    }
+
+    /**
+     * Writes a plain text report in a style: the prompts, batch mode and the service write theirs
+     * in the PROMPT style, processFiles in the PROCESS style
+     * @param style Labels, line separator and line limit of the report
+     * @param firstName User's first name
+     * @param lastName User's last name
+     * @param firstInt First integer
+     * @param secondInt Second integer
+     * @param inputFileName Input file name, or a directory or pattern, see InputSet
+     * @param outputFileName Output file name
+     * @param echo True to echo input lines to the console as the style and the options ask
+     * @param options Copy mode, echo selection, charset and aggregates
+     * @return Number of lines copied
+     * @throws IOException If an I/O error occurs
+     */
+    static long writeReport(ReportStyle style, String firstName, String lastName, int firstInt, int secondInt,
+                            String inputFileName, String outputFileName, boolean echo,
+                            ProcessingOptions options) throws IOException {
+        String header = buildHeader(style, firstName, lastName, firstInt, secondInt, inputFileName, style.newLine);
+        ProcessingOptions.CopyMode mode = style.copyModeFor(options, new File(inputFileName).length());
+        return writeText(style, header, inputFileName, outputFileName, mode, options,
+                echo ? style.echoSink(options) : EchoSink.off());
+    }
+
+    /**
+     * The plain text copy of every report: the header, the body in the given mode and the
+     * aggregates if asked for. A directory or pattern is merged a section per file.
+     * @return Number of lines copied, or -1 for a streaming copy
+     */
+    private static long writeText(ReportStyle style, String header, String inputFileName, String outputFileName,
+                                  ProcessingOptions.CopyMode mode, ProcessingOptions options,
+                                  EchoSink sink) throws IOException {
+        long start = System.nanoTime();
+        long inputSize;
+        long lines = -1;
+        try {
+            if (InputSet.isSet(inputFileName)) {
+                List<Path> files = InputSet.list(inputFileName, Paths.get(outputFileName));
+                inputSize = InputSet.totalSize(files);
+                mode = ProcessingOptions.CopyMode.PARALLEL;
+                lines = copySetFiles(style, header, files, outputFileName, options, sink);
+                if (style == ReportStyle.PROCESS) {
+                    System.out.println("Merged " + files.size() + " input files");
+                }
+            } else {
+                inputSize = new File(inputFileName).length();
+                if (mode == ProcessingOptions.CopyMode.STREAMING && style.maxLineLength == 0) {
+                    streamCopy(header, inputFileName, outputFileName, options.getCharset(), style.newLine);
+                } else if (mode == ProcessingOptions.CopyMode.PARALLEL) {
+                    lines = parallelCopy(style, header, inputFileName, outputFileName, options, sink);
+                } else {
+                    mode = ProcessingOptions.CopyMode.LINES;
+                    lines = copyLines(style, header, inputFileName, outputFileName, options, sink);
+                }
+            }
         } finally {
-            // Close resources
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    ErrorLogger.logError("Error closing input file: " + e.getMessage());
+            sink.finish();
+        }
+        recordCopy(style.metricsPath, mode, start, inputSize, new File(outputFileName).length(), lines);
+        if (options.isAggregate()) {
+            appendAggregates(inputFileName, outputFileName, options, style.newLine);
+        }
+        return lines;
+    }
+
+    // The files of a set, a section each, read several at a time
+    private static long copySetFiles(ReportStyle style, String header, List<Path> files, String outputFileName,
+                                     ProcessingOptions options, EchoSink sink) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), LINE_WRITE_BUFFER)) {
+            out.write(header.getBytes(options.getCharset()));
+            InputSetProcessor processor = new InputSetProcessor(options).lineSeparator(style.newLine);
+            if (style.maxLineLength > 0) {
+                processor.truncateAt(style.maxLineLength, TRUNCATED_LINE_MARKER);
+            }
+            if (sink.getLineLimit() > 0) {
+                processor.echo(sink, sink.getLineLimit());
+            }
+            return processor.process(files, out);
+        }
+    }
+
+    // Everything besides the names, integers and input that changes the report bytes
+    private static String reportShape(ProcessingOptions options) {
+        // Cached plain text is always a line copy; PARALLEL writes the same bytes as LINES
+        String copy = options.isStructuredOutput() ? options.getOutputFormat() + (options.isGzip() ? "+gzip" : "") : "LINES";
+        return copy + "|aggregate=" + options.isAggregate() + "|charset=" + options.getCharset().name()
+                + "|newLine=" + System.lineSeparator();
+    }
+
+    // A cache hit copies nothing, but the console shows what the copy would have echoed
+    private static void echoCached(String inputFileName, ProcessingOptions options) throws IOException {
+        EchoSink sink = ReportStyle.PROCESS.echoSink(options);
+        long echoLimit = sink.getLineLimit();
+        try (InputStream in = new FileInputStream(inputFileName)) {
+            LineScanner scanner = new LineScanner(in, options.getCharset());
+            long lineCount = 0;
+            while (lineCount < echoLimit && scanner.next()) {
+                lineCount++;
+                sink.echo(lineCount, scanner.line());
+            }
+        } finally {
+            sink.finish();
+        }
+    }
+
+    private static String describe(IncrementalCopy copy) {
+        switch (copy.getOutcome()) {
+            case UNCHANGED:
+                return "Input unchanged since the last run";
+            case RESUMED:
+                return "Resumed from the checkpoint: " + copy.getLinesWritten() + " new lines";
+            case REWRITTEN:
+                return "Input changed before the checkpoint; wrote the report again";
+            default:
+                return "Wrote the report and a resume checkpoint";
+        }
+    }
+
+    /**
+     * Records one finished copy in the file processing metrics
+     * @param path Which code path copied: processFiles or writeReport
+     * @param mode The copy mode used
+     * @param startNanos System.nanoTime() when the copy began
+     * @param bytesRead Input file size
+     * @param bytesWritten Output file size
+     * @param lines Lines copied, or -1 when the copy did not count them
+     */
+    static void recordCopy(String path, ProcessingOptions.CopyMode mode, long startNanos,
+                           long bytesRead, long bytesWritten, long lines) {
+        long elapsed = System.nanoTime() - startNanos;
+        Metrics.histogram("defend_file_process_seconds", "Time to write one report", "path", path,
+                "mode", mode.name().toLowerCase()).record(elapsed);
+        Metrics.counter("defend_file_bytes_read_total", "Input bytes processed", "path", path).add(bytesRead);
+        Metrics.counter("defend_file_bytes_written_total", "Report bytes written", "path", path).add(bytesWritten);
+
+        double seconds = Math.max(elapsed, 1) / 1e9;
+        Metrics.gauge("defend_file_bytes_per_second", "Input throughput of the latest report", "path", path)
+                .set(bytesRead / seconds);
+        if (lines >= 0) {
+            Metrics.counter("defend_file_lines_total", "Input lines processed", "path", path).add(lines);
+            Metrics.gauge("defend_file_lines_per_second", "Line throughput of the latest report", "path", path)
+                    .set(lines / seconds);
+        }
+    }
+
+    /**
+     * Appends the integer column statistics of the input file to the report
+     * @param inputFileName Input file name, or a directory or pattern
+     * @param outputFileName Output file name, already written
+     * @param options Pool and chunk size for the aggregation, and the report charset
+     * @param newLine Line separator used by the report
+     * @throws IOException If an I/O error occurs
+     */
+    static void appendAggregates(String inputFileName, String outputFileName, ProcessingOptions options,
+                                 String newLine) throws IOException {
+        long start = System.nanoTime();
+        List<NumericAggregate> columns = InputSet.isSet(inputFileName)
+                ? NumericAggregator.aggregate(InputSet.list(inputFileName, Paths.get(outputFileName)), options)
+                : NumericAggregator.aggregate(Paths.get(inputFileName), options);
+        Metrics.histogram("defend_aggregate_seconds", "Time to aggregate the integer columns of an input file")
+                .recordSince(start);
+
+        String summary = newLine + "Integer column summary:" + newLine
+                + "-------------------" + newLine
+                + NumericAggregator.describe(columns, newLine);
+        Files.write(Paths.get(outputFileName), summary.getBytes(options.getCharset()), StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Builds the report text that precedes the input file contents
+     * @param style Labels of the header
+     * @param newLine Line separator of the report
+     */
+    static String buildHeader(ReportStyle style, String firstName, String lastName, int firstInt, int secondInt,
+                              String inputFileName, String newLine) {
+        // The sum and product of two ints always fit in a long
+        long sum = (long) firstInt + secondInt;
+        long product = (long) firstInt * secondInt;
+
+        StringBuilder header = new StringBuilder(256);
+
+        // Write user's name
+        header.append("First name: ").append(firstName).append(newLine);
+        header.append("Last name: ").append(lastName).append(newLine);
+        header.append(newLine);
+
+        // Write integers and calculations
+        header.append(style.firstIntegerLabel).append(firstInt).append(newLine);
+        header.append(style.secondIntegerLabel).append(secondInt).append(newLine);
+        header.append("Sum: ").append(sum).append(newLine);
+        header.append("Product: ").append(product).append(newLine);
+        header.append(newLine);
+
+        // Write file information
+        header.append(style.inputFileLabel).append(inputFileName).append(newLine);
+        header.append(newLine);
+
+        // Write input file contents
+        header.append("Input file contents:").append(newLine);
+        header.append(style.contentsRule).append(newLine);
+
+        return header.toString();
+    }
+
+    /**
+     * Copies the input line by line, echoing lines to the console through the sink. Lines go
+     * from the input buffer to the output as bytes; only the echoed ones are decoded. Lines
+     * over the style's limit are cut while they are read.
+     * @return Number of lines copied
+     */
+    private static long copyLines(ReportStyle style, String header, String inputFileName, String outputFileName,
+                                  ProcessingOptions options, EchoSink sink) throws IOException {
+        Charset charset = options.getCharset();
+        long echoLimit = sink.getLineLimit();
+
+        try (InputStream in = new FileInputStream(inputFileName);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName), LINE_WRITE_BUFFER)) {
+            out.write(header.getBytes(charset));
+
+            LineScanner scanner = new LineScanner(in, charset).lineSeparator(style.newLine);
+            if (style.maxLineLength > 0) {
+                scanner.truncateAt(style.maxLineLength, TRUNCATED_LINE_MARKER);
+            }
+            long lineCount = 0;
+            while (scanner.next()) {
+                scanner.writeLine(out);
+
+                // Echo to screen
+                lineCount++;
+                if (lineCount <= echoLimit) {
+                    sink.echo(lineCount, scanner.line());
                 }
             }
+            return lineCount;
+        }
+    }
 
-            if (writer != null) {
-                try {
-                    writer.close();
-                } catch (IOException e) {
-                    ErrorLogger.logError("Error closing output file: " + e.getMessage());
+    /**
+     * Copies the input line by line on several cores; the output and the echo match copyLines
+     * @return Number of lines copied
+     */
+    private static long parallelCopy(ReportStyle style, String header, String inputFileName, String outputFileName,
+                                     ProcessingOptions options, EchoSink sink) throws IOException {
+        Charset charset = options.getCharset();
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFileName))) {
+            out.write(header.getBytes(charset));
+            ParallelLineProcessor processor = new ParallelLineProcessor(options, charset)
+                    .lineSeparator(style.newLine);
+            if (style.maxLineLength > 0) {
+                processor.truncateAt(style.maxLineLength, TRUNCATED_LINE_MARKER);
+            }
+            if (sink.getLineLimit() > 0) {
+                processor.echo(sink, sink.getLineLimit());
+            }
+            return processor.process(Paths.get(inputFileName), out);
+        }
+    }
+
+    /**
+     * Writes the report in the options' output format through a ReportWriter, echoing lines as
+     * copyLines does
+     * @return Number of lines copied
+     */
+    private static long writeStructured(String firstName, String lastName, int firstInt, int secondInt,
+                                        String inputFileName, String outputFileName,
+                                        ProcessingOptions options) throws IOException {
+        EchoSink sink = ReportStyle.PROCESS.echoSink(options);
+        long echoLimit = sink.getLineLimit();
+        // The file has its own resource, so it is closed even if open() fails to start the GZIP stream
+        try (InputStream in = new FileInputStream(inputFileName);
+             OutputStream out = new FileOutputStream(outputFileName);
+             ReportWriter writer = ReportWriter.open(out, options.getOutputFormat(), options.isGzip(),
+                     options.getCharset(), System.lineSeparator())) {
+            writer.writeHeader(firstName, lastName, firstInt, secondInt, inputFileName);
+
+            LineScanner scanner = new LineScanner(in, options.getCharset());
+            while (scanner.next()) {
+                scanner.writeLine(writer);
+                // Only echoed lines are decoded
+                if (writer.getLineCount() <= echoLimit) {
+                    sink.echo(writer.getLineCount(), scanner.line());
                 }
             }
+            return writer.getLineCount();
+        } finally {
+            sink.finish();
+        }
+    }
+
+    /**
+     * Writes the header, then hands the input body to the kernel with FileChannel.transferTo.
+     * The body bytes are copied verbatim (line endings are not normalised); a final line
+     * separator is added when the input does not end with one, as the line copy does.
+     * @return Number of body bytes copied
+     */
+    private static long streamCopy(String header, String inputFileName, String outputFileName,
+                                   Charset charset, String newLine) throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(inputFileName), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(Paths.get(outputFileName), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // The header uses the report charset, like the line copy
+            writeFully(out, ByteBuffer.wrap(header.getBytes(charset)));
+
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    throw new IOException("Input file stopped short at byte " + position + " of " + size);
+                }
+                position += transferred;
+            }
+
+            if (size > 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                in.read(last, size - 1);
+                if (last.get(0) != '\n' && last.get(0) != '\r') {
+                    writeFully(out, ByteBuffer.wrap(newLine.getBytes(charset)));
+                }
+            }
+
+            return position;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+import java.util.Arrays;
+
+/**
+ * Lookup-table hexadecimal encoding and decoding shared by the password code.
+ *
+ * The buffer-based methods write into caller-supplied arrays and allocate nothing.
+ */
+public final class HexCodec {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    // Hex character value for every ASCII character, -1 where it is not a hex digit
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) {
+            VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            VALUES['a' + i] = (byte) (10 + i);
+            VALUES['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    private HexCodec() {
+    }
+
+    /**
+     * Encodes bytes as lowercase hexadecimal
+     * @param bytes The bytes
+     * @return The hexadecimal string
+     */
+    public static String encode(byte[] bytes) {
+        return encode(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Encodes part of an array as lowercase hexadecimal
+     * @param bytes The bytes
+     * @param offset First byte to encode
+     * @param length Number of bytes to encode
+     * @return The hexadecimal string
+     */
+    public static String encode(byte[] bytes, int offset, int length) {
+        char[] chars = new char[length * 2];
+        encode(bytes, offset, length, chars, 0);
+        return new String(chars);
+    }
+
+    /**
+     * Encodes bytes into a caller-supplied char array
+     * @param bytes Source bytes
+     * @param offset First source byte
+     * @param length Number of source bytes
+     * @param out Destination, needs 2 * length chars from outOffset
+     * @param outOffset First destination index
+     */
+    public static void encode(byte[] bytes, int offset, int length, char[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xFF;
+            out[outOffset++] = DIGITS[b >>> 4];
+            out[outOffset++] = DIGITS[b & 0x0F];
+        }
+    }
+
+    /**
+     * Decodes hexadecimal into a new array
+     * @param hex Hexadecimal text of even length
+     * @return The bytes
+     * @throws IllegalArgumentException If the text is not hexadecimal
+     */
+    public static byte[] decode(CharSequence hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        decode(hex, bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Decodes hexadecimal into a caller-supplied array
+     * @param hex Hexadecimal text of even length
+     * @param out Destination, needs hex.length() / 2 bytes from outOffset
+     * @param outOffset First destination index
+     * @return Number of bytes written
+     * @throws IllegalArgumentException If the text is not hexadecimal
+     */
+    public static int decode(CharSequence hex, byte[] out, int outOffset) {
+        int length = hex.length();
+        if ((length & 1) != 0) {
+            throw new IllegalArgumentException("Hexadecimal text has odd length " + length);
+        }
+        for (int i = 0; i < length; i += 2) {
+            int high = value(hex.charAt(i));
+            int low = value(hex.charAt(i + 1));
+            if ((high | low) < 0) {
+                throw new IllegalArgumentException("Not a hexadecimal digit at index " + (high < 0 ? i : i + 1));
+            }
+            out[outOffset++] = (byte) ((high << 4) | low);
+        }
+        return length / 2;
+    }
+
+    private static int value(char c) {
+        return c < 128 ? VALUES[c] : -1;
+    }
+}
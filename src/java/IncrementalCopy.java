@@ -0,0 +1,454 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.zip.CRC32C;
+
+/**
+ * Brings a plain text report up to date with an append-only input file, copying only the bytes
+ * added since the last run.
+ *
+ * Next to the report (report.txt.checkpoint) a checkpoint records the input's path, file key,
+ * size and modification time, the offset just past the last complete line copied, the CRC32C of
+ * the input up to that offset and the report size at that point. The next run re-reads that
+ * prefix through the checksum (reading only, nothing is decoded or written) and, if it still
+ * matches, cuts the report back to the checkpoint and appends the rest. A missing or stale
+ * checkpoint, a changed prefix, a different header, copy mode, charset or line separator, or a
+ * report changed since means a full rewrite.
+ * A last line without a line ending is written but left out of the checkpoint, so it is copied
+ * again, whole, once the rest of it arrives.
+ *
+ * The report is byte for byte what a full copy in the same mode writes: LINES and PARALLEL end
+ * every line with the line separator, STREAMING copies the bytes verbatim. Not thread safe.
+ */
+final class IncrementalCopy {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    /**
+     * What the first update did
+     */
+    enum Outcome {
+        /** No usable checkpoint; the report was written from the start */
+        WRITTEN,
+        /** The checkpoint was stale or the input's prefix changed; the report was written from the start */
+        REWRITTEN,
+        /** New input was appended to the report */
+        RESUMED,
+        /** Nothing changed since the checkpoint */
+        UNCHANGED
+    }
+
+    private final Path input;
+    private final Path output;
+    private final Path checkpointFile;
+    private final byte[] header;
+    private final Charset charset;
+    private final String lineSeparator;
+    private final ProcessingOptions options;
+    private final ProcessingOptions.CopyMode mode;
+
+    // Input identity and size when the report was last brought up to date
+    private String fileKey;
+    private long inputSize = -1;
+    private long inputModified;
+
+    // Input bytes and lines covered by the checkpoint, and the report size they produced
+    private long offset;
+    private CRC32C checksum;
+    private long checkpointChecksum;
+    private long lines;
+    private long outputCommitted;
+
+    // Lines written by the last update, including a final line without a line ending
+    private long linesWritten;
+    private Outcome outcome;
+
+    /**
+     * @param header Report text before the input contents
+     * @param input The input file
+     * @param output The report file
+     * @param mode Copy mode used when the report is written from the start
+     * @param options Echo selection and charset
+     */
+    IncrementalCopy(String header, Path input, Path output, ProcessingOptions.CopyMode mode, ProcessingOptions options) {
+        this.charset = options.getCharset();
+        this.header = header.getBytes(charset);
+        this.input = input.toAbsolutePath();
+        this.output = output.toAbsolutePath();
+        this.checkpointFile = this.output.resolveSibling(this.output.getFileName() + CHECKPOINT_SUFFIX);
+        this.lineSeparator = System.lineSeparator();
+        this.mode = mode == ProcessingOptions.CopyMode.PARALLEL ? ProcessingOptions.CopyMode.LINES : mode;
+        this.options = options;
+    }
+
+    /**
+     * @param options The report options
+     * @return True if a report with these options can be brought up to date by appending: plain
+     *         text without aggregates
+     */
+    static boolean supports(ProcessingOptions options) {
+        return !options.isStructuredOutput() && !options.isAggregate();
+    }
+
+    /**
+     * Resumes from the checkpoint if it still describes the input and the report, otherwise
+     * writes the report from the start
+     * @return Input bytes copied
+     * @throws IOException If an I/O error occurs
+     */
+    long start() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+        String key = String.valueOf(attributes.fileKey());
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        if (!loadCheckpoint(key, size)) {
+            outcome = Files.exists(checkpointFile) ? Outcome.REWRITTEN : Outcome.WRITTEN;
+        } else if (size == inputSize && modified == inputModified) {
+            outcome = Outcome.UNCHANGED;
+        } else {
+            outcome = prefixMatches() ? Outcome.RESUMED : Outcome.REWRITTEN;
+        }
+        Metrics.counter("defend_resume_runs_total", "Incremental report runs, by what they did",
+                "outcome", outcome.name().toLowerCase()).increment();
+
+        if (outcome == Outcome.UNCHANGED) {
+            linesWritten = 0;
+            return 0;
+        }
+        if (outcome != Outcome.RESUMED) {
+            reset();
+        }
+        return append(key, size, modified);
+    }
+
+    /**
+     * Appends whatever reached the input since the last update. A truncated or replaced input
+     * (log rotation, say) starts the report over.
+     * @return Input bytes copied, 0 if the input did not change
+     * @throws IOException If an I/O error occurs
+     */
+    long poll() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+        String key = String.valueOf(attributes.fileKey());
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        if (!key.equals(fileKey) || size < offset) {
+            reset();
+        } else if (size == inputSize && modified == inputModified) {
+            linesWritten = 0;
+            return 0;
+        }
+        return append(key, size, modified);
+    }
+
+    /**
+     * Keeps appending as the input grows until the thread is interrupted or the input stays
+     * unchanged for idleMillis
+     * @param intervalMillis Time between checks of the input
+     * @param idleMillis Stop after this long without new input; 0 to keep going
+     * @throws IOException If an I/O error occurs
+     */
+    void follow(long intervalMillis, long idleMillis) throws IOException {
+        long lastChange = System.currentTimeMillis();
+        while (true) {
+            try {
+                Thread.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long start = System.nanoTime();
+            long copied = poll();
+            long now = System.currentTimeMillis();
+            if (copied > 0) {
+                lastChange = now;
+                FileProcessor.recordCopy("follow", mode, start, copied, Files.size(output), linesWritten);
+            } else if (idleMillis > 0 && now - lastChange >= idleMillis) {
+                return;
+            }
+        }
+    }
+
+    Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * @return Lines written by the last update
+     */
+    long getLinesWritten() {
+        return linesWritten;
+    }
+
+    /**
+     * @return Input bytes covered by the checkpoint
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    // Starts the report over: header only, nothing of the input copied yet
+    private void reset() throws IOException {
+        try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(out, ByteBuffer.wrap(header));
+        }
+        offset = 0;
+        checksum = new CRC32C();
+        lines = 0;
+        outputCommitted = header.length;
+        inputSize = -1;
+    }
+
+    // Copies [offset, size): the complete lines move the checkpoint, a final partial line does not
+    private long append(String key, long size, long modified) throws IOException {
+        long end;
+        long written = 0;
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE)) {
+            // Drops the partial line the last update wrote, if any
+            out.truncate(outputCommitted);
+            out.position(outputCommitted);
+
+            end = lineEnd(in, offset, size);
+            EchoSink sink = FileProcessor.ReportStyle.PROCESS.echoSink(options);
+            try {
+                long complete = copy(in, offset, end, out, checksum, sink, 0);
+                lines += complete;
+                outputCommitted = out.position();
+                written = complete + copy(in, end, size, out, null, sink, complete);
+            } finally {
+                sink.finish();
+            }
+            if (mode == ProcessingOptions.CopyMode.STREAMING && size > end && !endsWithCarriageReturn(in, size)) {
+                writeFully(out, ByteBuffer.wrap(lineSeparator.getBytes(charset)));
+            }
+        }
+
+        long copied = size - offset;
+        offset = end;
+        fileKey = key;
+        inputSize = size;
+        inputModified = modified;
+        linesWritten = written;
+        saveCheckpoint();
+        return copied;
+    }
+
+    /**
+     * Copies input bytes [from, to) to the report in the current mode
+     * @param checksum Updated with the bytes read, or null
+     * @param echoed Lines already passed to the sink in this update
+     * @return Lines written (0 in STREAMING mode)
+     */
+    private long copy(FileChannel in, long from, long to, FileChannel out, CRC32C checksum,
+                      EchoSink sink, long echoed) throws IOException {
+        if (from >= to) {
+            return 0;
+        }
+        InputStream region = new RegionInputStream(in, from, to, checksum);
+        if (mode == ProcessingOptions.CopyMode.STREAMING) {
+            byte[] block = new byte[BLOCK_SIZE];
+            int read;
+            while ((read = region.read(block, 0, block.length)) > 0) {
+                writeFully(out, ByteBuffer.wrap(block, 0, read));
+            }
+            return 0;
+        }
+
+        // Same line splitting as the line copy
+        long count = 0;
+        long echoLimit = sink.getLineLimit();
+        LineScanner scanner = new LineScanner(region, charset).lineSeparator(lineSeparator);
+        OutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(out), BLOCK_SIZE);
+        while (scanner.next()) {
+            scanner.writeLine(buffered);
+            count++;
+            if (echoed + count <= echoLimit) {
+                sink.echo(echoed + count, scanner.line());
+            }
+        }
+        // Flushing, not closing: closing would close the channel
+        buffered.flush();
+        return count;
+    }
+
+    // Offset just past the last '\n' in [from, to), or from if there is none
+    private static long lineEnd(FileChannel in, long from, long to) throws IOException {
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long end = to;
+        while (end > from) {
+            long start = Math.max(from, end - BLOCK_SIZE);
+            block.clear().limit((int) (end - start));
+            readFully(in, block, start);
+            for (int i = block.limit() - 1; i >= 0; i--) {
+                if (block.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return from;
+    }
+
+    // A final '\r' ends a line for readLine, so the full streaming copy adds no separator after it
+    private static boolean endsWithCarriageReturn(FileChannel in, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        readFully(in, last, size - 1);
+        return last.get(0) == '\r';
+    }
+
+    // Leaves the checksum ready to take the bytes after the prefix
+    private boolean prefixMatches() throws IOException {
+        CRC32C prefix = new CRC32C();
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+            for (long position = 0; position < offset; position += block.limit()) {
+                block.clear().limit((int) Math.min(BLOCK_SIZE, offset - position));
+                readFully(in, block, position);
+                block.flip();
+                prefix.update(block);
+            }
+        }
+        checksum = prefix;
+        return prefix.getValue() == checkpointChecksum;
+    }
+
+    private boolean loadCheckpoint(String key, long size) throws IOException {
+        if (!Files.exists(checkpointFile) || !Files.exists(output)) {
+            return false;
+        }
+        Properties checkpoint = new Properties();
+        try (Reader reader = Files.newBufferedReader(checkpointFile, charset)) {
+            checkpoint.load(reader);
+        } catch (IllegalArgumentException e) {
+            ErrorLogger.logError("Ignoring malformed checkpoint " + checkpointFile + ": " + e.getMessage());
+            return false;
+        }
+        try {
+            if (!input.toString().equals(checkpoint.getProperty("input"))
+                    || !key.equals(checkpoint.getProperty("fileKey"))
+                    || !Long.toHexString(crc(header)).equals(checkpoint.getProperty("header"))
+                    || !charset.name().equals(checkpoint.getProperty("charset"))
+                    || !lineSeparator.equals(checkpoint.getProperty("lineSeparator"))
+                    || !mode.name().equals(checkpoint.getProperty("mode"))
+                    || Files.size(output) != Long.parseLong(checkpoint.getProperty("outputSize"))) {
+                return false;
+            }
+            long checkpointOffset = Long.parseLong(checkpoint.getProperty("offset"));
+            if (size < checkpointOffset) {
+                return false;
+            }
+            offset = checkpointOffset;
+            lines = Long.parseLong(checkpoint.getProperty("lines"));
+            outputCommitted = Long.parseLong(checkpoint.getProperty("outputCommitted"));
+            inputSize = Long.parseLong(checkpoint.getProperty("inputSize"));
+            inputModified = Long.parseLong(checkpoint.getProperty("inputModified"));
+            fileKey = key;
+            checkpointChecksum = Long.parseLong(checkpoint.getProperty("crc32c"), 16);
+            return true;
+        } catch (RuntimeException e) {
+            ErrorLogger.logError("Ignoring malformed checkpoint " + checkpointFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Written to a temporary file and moved into place, so a crash leaves the old or the new checkpoint
+    private void saveCheckpoint() throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("input", input.toString());
+        checkpoint.setProperty("fileKey", fileKey);
+        checkpoint.setProperty("inputSize", Long.toString(inputSize));
+        checkpoint.setProperty("inputModified", Long.toString(inputModified));
+        checkpoint.setProperty("offset", Long.toString(offset));
+        checkpoint.setProperty("crc32c", Long.toHexString(checksum.getValue()));
+        checkpoint.setProperty("lines", Long.toString(lines));
+        checkpoint.setProperty("outputCommitted", Long.toString(outputCommitted));
+        checkpoint.setProperty("outputSize", Long.toString(Files.size(output)));
+        checkpoint.setProperty("header", Long.toHexString(crc(header)));
+        checkpoint.setProperty("mode", mode.name());
+        checkpoint.setProperty("charset", charset.name());
+        checkpoint.setProperty("lineSeparator", lineSeparator);
+
+        Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, charset)) {
+            checkpoint.store(writer, "Resume checkpoint for " + output.getFileName());
+        }
+        Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long crc(byte[] bytes) {
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length);
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Input file shrank while it was being read");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads a byte range of a file with positional reads, feeding a checksum on the way
+     */
+    private static final class RegionInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private final CRC32C checksum;
+        private long position;
+
+        RegionInputStream(FileChannel channel, long start, long end, CRC32C checksum) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(bytes, offset, (int) Math.min(length, end - position)), position);
+            if (read < 0) {
+                throw new IOException("Input file shrank while it was being read");
+            }
+            if (checksum != null) {
+                checksum.update(bytes, offset, read);
+            }
+            position += read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An input given as a directory or a file name pattern instead of a single file.
+ *
+ * "logs" stands for the regular files directly inside the directory logs, and "logs/*.txt" for
+ * those whose names match the pattern (* matches any run of characters, ? any one character).
+ * Every part of the path must pass the FILE_NAME rule (the pattern once its wildcards are taken
+ * out), and ".." and absolute paths are refused; the directory must also resolve to a place
+ * inside the working directory, so a symbolic link cannot lead a set out of it. Symbolic links
+ * and files whose own names fail the rule are left out, as are the report being written and the
+ * files the application keeps in the working directory (the error log and its rolled segments,
+ * the credential store and its lock). Files are listed in name order, which is the order of
+ * their sections in the report.
+ */
+final class InputSet {
+
+    private InputSet() {
+    }
+
+    /**
+     * @param input An input file name as entered
+     * @return True if it names a set of files: it has a wildcard or is a directory
+     */
+    static boolean isSet(String input) {
+        if (hasWildcard(input)) {
+            return true;
+        }
+        try {
+            return !input.isEmpty() && Files.isDirectory(Paths.get(input));
+        } catch (InvalidPathException e) {
+            return false;
+        }
+    }
+
+    static boolean hasWildcard(String input) {
+        return input.indexOf('*') >= 0 || input.indexOf('?') >= 0;
+    }
+
+    /**
+     * Checks every part of the path against the file name rule; the path must be relative
+     * @param input A directory or pattern
+     * @return Why it is not allowed, or null if it is
+     */
+    static String check(String input) {
+        if (input.startsWith("/") || input.startsWith("\\") || isRooted(input)) {
+            return "Absolute paths are not allowed";
+        }
+        String[] parts = input.replace(File.separatorChar, '/').split("/");
+        for (int i = 0; i < parts.length; i++) {
+            String part = parts[i];
+            // Empty parts come from a leading or doubled separator
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                return "Parent directory references (..) are not allowed";
+            }
+            String literal = part;
+            if (hasWildcard(part)) {
+                if (i < parts.length - 1) {
+                    return "Wildcards (* and ?) are only allowed in the file name";
+                }
+                literal = part.replace("*", "").replace("?", "");
+                if (literal.isEmpty()) {
+                    continue;
+                }
+            }
+            if (!ValidationRules.FILE_NAME.check(literal).isValid()) {
+                return "Path part '" + part + "' is too long or contains invalid characters";
+            }
+        }
+        return null;
+    }
+
+    // A root or drive letter, as the platform reads it; a path it cannot read is treated as rooted
+    private static boolean isRooted(String input) {
+        try {
+            // Wildcards are not valid path characters everywhere
+            return Paths.get(input.replace('*', '_').replace('?', '_')).getRoot() != null;
+        } catch (InvalidPathException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Lists the files of a set
+     * @param input A directory or pattern that passes check()
+     * @return The regular files, in name order; possibly none
+     * @throws IOException If the directory cannot be read
+     */
+    static List<Path> list(String input) throws IOException {
+        return list(input, null);
+    }
+
+    /**
+     * Lists the files of a set, leaving out the report they are copied to
+     * @param input A directory or pattern that passes check()
+     * @param output The report file, or null
+     * @return The regular files, in name order; possibly none
+     * @throws IOException If the directory cannot be read
+     */
+    static List<Path> list(String input, Path output) throws IOException {
+        String invalid = check(input);
+        if (invalid != null) {
+            throw new IllegalArgumentException(invalid + ": " + input);
+        }
+        Path path = Paths.get(input);
+        Path directory = path;
+        String glob = "*";
+        if (hasWildcard(input)) {
+            directory = path.getParent() == null ? Paths.get("") : path.getParent();
+            glob = path.getFileName().toString();
+        }
+
+        Path workingDirectory = Paths.get("").toRealPath();
+        Path realDirectory = directory.toRealPath();
+        if (!realDirectory.startsWith(workingDirectory)) {
+            throw new IOException("Directory is outside the working directory: " + directory);
+        }
+        boolean inWorkingDirectory = realDirectory.equals(workingDirectory);
+        boolean hasOutput = output != null && Files.exists(output);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, glob)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (ValidationRules.FILE_NAME.check(name).isValid()
+                        && Files.isRegularFile(entry, LinkOption.NOFOLLOW_LINKS)
+                        && !(inWorkingDirectory && isApplicationFile(name))
+                        && !(hasOutput && Files.isSameFile(entry, output))) {
+                    files.add(entry);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(file -> file.getFileName().toString()));
+        return files;
+    }
+
+    // Files the application itself writes in the working directory
+    private static boolean isApplicationFile(String name) {
+        String store = CredentialStore.DEFAULT_STORE_FILE;
+        String log = ErrorLogger.ERROR_LOG_FILE;
+        String logBase = log.substring(0, log.lastIndexOf('.'));
+        return name.equals(store) || name.equals(store + ".lock") || name.equals(store + ".tmp")
+                || name.equals(CredentialStore.LEGACY_PASSWORD_FILE)
+                || name.equals(log) || name.startsWith(logBase + ".") && name.endsWith(".txt");
+    }
+
+    /**
+     * @param input A directory or pattern
+     * @return True if it is allowed and has at least one file
+     */
+    static boolean hasFiles(String input) {
+        try {
+            return check(input) == null && !list(input).isEmpty();
+        } catch (IOException | InvalidPathException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param files Files of a set
+     * @return Their total size in bytes
+     * @throws IOException If a file cannot be read
+     */
+    static long totalSize(List<Path> files) throws IOException {
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,230 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Copies the files of an InputSet into one report, reading several at a time.
+ *
+ * Each file becomes a section: a "==&gt; name &lt;==" line, then its lines as the line copy writes
+ * them, with an empty line between sections as head and tail print several files. A file of up
+ * to the chunk size is read whole, with one read call, and split into lines on a ForkJoinPool;
+ * at most twice the pool's parallelism are in flight. The calling thread writes the sections in
+ * list order, so the report does not depend on which read finishes first. A larger file is
+ * streamed by the calling thread when its turn comes, so memory stays bounded by the window.
+ */
+final class InputSetProcessor {
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final Charset charset;
+    private int maxLineLength = Integer.MAX_VALUE;
+    private String truncationMarker = "";
+    private String lineSeparator = System.lineSeparator();
+    private ParallelLineProcessor.LineEcho echo;
+    private long echoLimit;
+
+    // Lines passed to the echo so far; read by the file tasks to stop collecting early
+    private volatile long echoed;
+    private long sectionsWritten;
+
+    /**
+     * @param options Supplies the pool, the chunk size (the largest file read whole) and the charset
+     */
+    InputSetProcessor(ProcessingOptions options) {
+        this.pool = options.getPool();
+        this.chunkSize = options.getChunkSize();
+        this.charset = options.getCharset();
+    }
+
+    /**
+     * Cuts lines longer than maxLineLength characters and appends the marker to them
+     * @param maxLineLength Longest line written unchanged
+     * @param truncationMarker Text written after a cut line; a %d in it is replaced by the number
+     *                         of characters dropped
+     * @return This processor
+     */
+    InputSetProcessor truncateAt(int maxLineLength, String truncationMarker) {
+        this.maxLineLength = maxLineLength;
+        this.truncationMarker = truncationMarker;
+        return this;
+    }
+
+    /**
+     * @param lineSeparator Written after every line in place of the input's line ending
+     * @return This processor
+     */
+    InputSetProcessor lineSeparator(String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+        return this;
+    }
+
+    /**
+     * Passes the first lines of the set, numbered across all its files, to a console echo
+     * @param echo Receives the lines
+     * @param echoLimit Number of lines passed
+     * @return This processor
+     */
+    InputSetProcessor echo(ParallelLineProcessor.LineEcho echo, long echoLimit) {
+        this.echo = echo;
+        this.echoLimit = echoLimit;
+        return this;
+    }
+
+    /**
+     * Writes a section for every file to the output
+     * @param files The files, in report order
+     * @param out Receives the sections; not closed
+     * @return Number of input lines copied
+     * @throws IOException If reading or writing fails
+     */
+    long process(List<Path> files, OutputStream out) throws IOException {
+        int window = Math.max(2, pool.getParallelism() * 2);
+        ArrayDeque<Pending> inFlight = new ArrayDeque<>(window);
+        long lines = 0;
+        echoed = 0;
+        sectionsWritten = 0;
+
+        try {
+            for (Path file : files) {
+                if (inFlight.size() == window) {
+                    lines = write(inFlight.poll(), out, lines);
+                }
+                // Large files wait for their turn and are streamed by this thread
+                ForkJoinTask<Section> task = file.toFile().length() <= chunkSize
+                        ? pool.submit(() -> read(file))
+                        : null;
+                inFlight.add(new Pending(file, task));
+            }
+            while (!inFlight.isEmpty()) {
+                lines = write(inFlight.poll(), out, lines);
+            }
+            return lines;
+        } finally {
+            for (Pending pending : inFlight) {
+                if (pending.task != null) {
+                    pending.task.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the oldest file's section, waiting for it to be read, then echoes its collected lines
+     */
+    private long write(Pending pending, OutputStream out, long linesBefore) throws IOException {
+        Section section;
+        if (pending.task == null) {
+            out.write(sectionHeader(pending.file));
+            section = stream(pending.file, out, linesBefore);
+        } else {
+            try {
+                section = pending.task.join();
+            } catch (CancellationException e) {
+                throw new IOException("Reading " + pending.file + " was cancelled", e);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } catch (RuntimeException e) {
+                throw new IOException("Reading " + pending.file + " failed: " + e.getMessage(), e);
+            }
+            out.write(sectionHeader(pending.file));
+            out.write(section.bytes);
+        }
+
+        if (echo != null) {
+            long lineNumber = linesBefore;
+            for (String line : section.echoLines) {
+                if (lineNumber >= echoLimit) {
+                    break;
+                }
+                echo.echo(++lineNumber, line);
+            }
+            echoed = lineNumber;
+        }
+        return linesBefore + section.lineCount;
+    }
+
+    private byte[] sectionHeader(Path file) {
+        String header = "==> " + file + " <==" + lineSeparator;
+        // Every section but the first follows an empty line
+        return (sectionsWritten++ == 0 ? header : lineSeparator + header).getBytes(charset);
+    }
+
+    /**
+     * Reads a small file with one read call and splits it into lines
+     */
+    private Section read(Path file) {
+        try (FileInputStream in = new FileInputStream(file.toFile())) {
+            // The size when the file is opened is what gets copied, even if it grows meanwhile
+            byte[] bytes = new byte[(int) Math.min(in.getChannel().size(), Integer.MAX_VALUE - 8)];
+            int length = in.readNBytes(bytes, 0, bytes.length);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(length + length / 16);
+            Section lines = copy(new LineScanner(bytes, length, charset), output, echo != null && echoed < echoLimit);
+            return new Section(output.toByteArray(), lines.lineCount, lines.echoLines);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Copies a large file straight to the output
+     */
+    private Section stream(Path file, OutputStream out, long linesBefore) throws IOException {
+        try (InputStream in = new FileInputStream(file.toFile())) {
+            return copy(new LineScanner(in, charset), out, echo != null && linesBefore < echoLimit);
+        }
+    }
+
+    // Writes the scanner's lines and collects the first ones for the echo; the section has no bytes
+    private Section copy(LineScanner scanner, OutputStream out, boolean collect) throws IOException {
+        scanner.truncateAt(maxLineLength, truncationMarker).lineSeparator(lineSeparator);
+        List<String> echoLines = new ArrayList<>();
+        long lineCount = 0;
+        while (scanner.next()) {
+            scanner.writeLine(out);
+            if (collect && echoLines.size() < echoLimit) {
+                echoLines.add(scanner.line());
+            }
+            lineCount++;
+        }
+        return new Section(null, lineCount, echoLines);
+    }
+
+    /**
+     * A file waiting for its section to be written; the task is null for a file streamed in turn
+     */
+    private static final class Pending {
+        final Path file;
+        final ForkJoinTask<Section> task;
+
+        Pending(Path file, ForkJoinTask<Section> task) {
+            this.file = file;
+            this.task = task;
+        }
+    }
+
+    /**
+     * A copied file: its report lines (null if they were streamed), line count and lines to echo
+     */
+    private static final class Section {
+        final byte[] bytes;
+        final long lineCount;
+        final List<String> echoLines;
+
+        Section(byte[] bytes, long lineCount, List<String> echoLines) {
+            this.bytes = bytes;
+            this.lineCount = lineCount;
+            this.echoLines = echoLines;
+        }
+    }
+}
@@ -1,6 +1,4 @@
 import java.util.Scanner;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.io.File;
 
 /**
@@ -9,7 +7,7 @@ import java.io.File;
 public class InputValidator {
     // Constants for name validation
     private static final int MAX_NAME_LENGTH = 50;
-    private static final String NAME_PATTERN = "^[a-zA-Z\\-'\\s]+$";
+    private static final ValidationRule NAME_RULE = ValidationRules.NAME; // ^[a-zA-Z\-'\s]+$
 
     // Constants for int range
     private static final int MIN_INT_VALUE = Integer.MIN_VALUE; // -2,147,483,648
@@ -17,7 +15,7 @@ public class InputValidator {
 
     // Constants for file name validation
     private static final int MAX_FILENAME_LENGTH = 255; // Common filesystem limit
-    private static final String FILENAME_PATTERN = "^[a-zA-Z0-9._\\-]+$"; // Alphanumeric, period, underscore, hyphen
+    private static final ValidationRule FILENAME_RULE = ValidationRules.FILE_NAME; // Alphanumeric, period, underscore, hyphen
 
     /**
      * Prompts for and validates a name input
@@ -39,24 +37,23 @@ public class InputValidator {
             System.out.print("\nEnter your " + nameType + " name: ");
             name = scanner.nextLine().trim();
 
+            ValidationResult result = NAME_RULE.check(name);
+
             // Check if name is empty
-            if (name.isEmpty()) {
+            if (result.getViolation() == ValidationResult.Violation.EMPTY) {
                 System.out.println("Error: " + nameType + " name cannot be empty. Please try again.");
                 continue;
             }
 
             // Check length
-            if (name.length() > MAX_NAME_LENGTH) {
+            if (result.getViolation() == ValidationResult.Violation.TOO_LONG) {
                 System.out.println("Error: " + nameType + " name exceeds maximum length of " +
                         MAX_NAME_LENGTH + " characters. Please try again.");
                 continue;
             }
 
-            // Check character validity using regex
-            Pattern pattern = Pattern.compile(NAME_PATTERN);
-            Matcher matcher = pattern.matcher(name);
-
-            if (!matcher.matches()) {
+            // Check character validity
+            if (!result.isValid()) {
                 System.out.println("Error: " + nameType + " name contains invalid characters. " +
                         "Only letters, hyphens, apostrophes, and spaces are allowed. Please try again.");
                 continue;
@@ -120,30 +117,52 @@ public class InputValidator {
         if (fileType.equals("input")) {
             System.out.println("4. File must exist - will check in current directory and src folder");
             System.out.println("   Don't forget to include the file extension (e.g., .txt)");
+            System.out.println("5. Or a directory, or a pattern such as logs/*.txt (* and ? as wildcards), to merge");
+            System.out.println("   several files; every part of the path follows rule 2");
         }
 
         while (!isValid) {
             System.out.print("\nEnter the " + fileType + " file name: ");
             fileName = scanner.nextLine().trim();
 
+            // A directory or pattern names several input files, checked part by part before the
+            // file system is asked about it
+            if (fileType.equals("input")) {
+                String invalid = InputSet.check(fileName);
+                if (invalid != null && InputSet.hasWildcard(fileName)) {
+                    System.out.println("Error: " + invalid + ". Please try again.");
+                    continue;
+                }
+                if (invalid == null && (InputSet.isSet(fileName) || InputSet.isSet("src/" + fileName))) {
+                    if (InputSet.hasFiles(fileName)) {
+                        isValid = true;
+                    } else if (InputSet.hasFiles("src/" + fileName)) {
+                        fileName = "src/" + fileName;
+                        isValid = true;
+                    } else {
+                        System.out.println("Error: No input files found for '" + fileName + "'. Please try again.");
+                    }
+                    continue;
+                }
+            }
+
+            ValidationResult result = FILENAME_RULE.check(fileName);
+
             // Check if file name is empty
-            if (fileName.isEmpty()) {
+            if (result.getViolation() == ValidationResult.Violation.EMPTY) {
                 System.out.println("Error: File name cannot be empty. Please try again.");
                 continue;
             }
 
             // Check length
-            if (fileName.length() > MAX_FILENAME_LENGTH) {
+            if (result.getViolation() == ValidationResult.Violation.TOO_LONG) {
                 System.out.println("Error: File name exceeds maximum length of " +
                         MAX_FILENAME_LENGTH + " characters. Please try again.");
                 continue;
             }
 
-            // Check character validity using regex
-            Pattern pattern = Pattern.compile(FILENAME_PATTERN);
-            Matcher matcher = pattern.matcher(fileName);
-
-            if (!matcher.matches()) {
+            // Check character validity
+            if (!result.isValid()) {
                 System.out.println("Error: File name contains invalid characters. " +
                         "Only alphanumeric characters, periods, underscores, and hyphens are allowed. Please try again.");
                 continue;
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads a stream as blocks of whole lines for parallel processing.
+ *
+ * Every block but the last ends just after a '\n' byte, so no line and no "\r\n" pair is split
+ * between two blocks, and each block can be handed to a different thread. Blocks are about the
+ * chunk size; a single line longer than that is returned whole, the buffer doubling as needed,
+ * unless lines are cut: then a block may instead end in the kept start of a long line, the rest of
+ * which is counted and skipped while reading (see getSkippedCharacters), and one that ends in '\r'
+ * lines may end after a '\r'.
+ */
+final class LineChunker {
+
+    private final InputStream in;
+    private final int chunkSize;
+    private byte[] carry = new byte[0];
+    private int carryLength;
+    private boolean eof;
+    private long keptBytes = Long.MAX_VALUE;
+    private Charset charset;
+    private byte[] scratch;
+    private LineScanner.CharacterCount skippedCount;
+    private long skipped;
+
+    /**
+     * @param in The stream, read to the end but not closed
+     * @param chunkSize Preferred block size in bytes
+     */
+    LineChunker(InputStream in, int chunkSize) {
+        this.in = in;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Cuts lines longer than keptBytes while reading instead of growing the block to hold them
+     * @param keptBytes Bytes kept of a long line, see LineScanner.keptBytes
+     * @param charset Charset of the input, to count the characters skipped
+     * @return This chunker
+     */
+    LineChunker cutLinesAfter(long keptBytes, Charset charset) {
+        this.keptBytes = keptBytes;
+        this.charset = charset;
+        this.skippedCount = new LineScanner.CharacterCount(charset);
+        return this;
+    }
+
+    /**
+     * @return Characters skipped from the end of the last block returned, whose last line was cut
+     *         after its kept bytes; 0 if it was not
+     */
+    long getSkippedCharacters() {
+        return skipped;
+    }
+
+    /**
+     * @return The next block: its bytes are array()[0 .. limit()), owned by the caller; null at the end
+     * @throws IOException If reading fails or a line does not fit in an array
+     */
+    ByteBuffer next() throws IOException {
+        skipped = 0;
+        // Cutting a line can leave input after it to carry once the stream has ended
+        while (!eof || carryLength > 0) {
+            // Double the buffer while a single line outgrows it, so long lines cost linear time
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8,
+                    carryLength < chunkSize ? (long) carryLength + chunkSize : 2L * carryLength);
+            if (capacity == carryLength) {
+                throw new IOException("Input line longer than " + capacity + " bytes");
+            }
+            byte[] buffer = new byte[capacity];
+            System.arraycopy(carry, 0, buffer, 0, carryLength);
+            int length = carryLength + (eof ? 0 : in.readNBytes(buffer, carryLength, capacity - carryLength));
+            eof = length < buffer.length;
+
+            // Cut after the last '\n'; the rest starts the next block
+            int end = length;
+            if (!eof) {
+                end = lastNewline(buffer, length) + 1;
+                if (end == 0) {
+                    end = cutLongLine(buffer, length);
+                    if (end < 0) {
+                        // One line longer than the block: keep reading until it ends
+                        carry = buffer;
+                        carryLength = length;
+                        continue;
+                    }
+                    return ByteBuffer.wrap(buffer, 0, end);
+                }
+            }
+            carryLength = length - end;
+            carry = Arrays.copyOfRange(buffer, end, length);
+
+            if (end > 0) {
+                return ByteBuffer.wrap(buffer, 0, end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends a block that has no '\n': after its last '\r' line, or by cutting its last line if
+     * that is longer than the kept bytes
+     * @return Length of the block, or -1 to read on
+     */
+    private int cutLongLine(byte[] buffer, int length) throws IOException {
+        if (keptBytes == Long.MAX_VALUE) {
+            return -1;
+        }
+        // The last line starts after the last '\r' but the final byte, which might be followed by a '\n'
+        int lineStart = length - 1;
+        while (lineStart > 0 && buffer[lineStart - 1] != '\r') {
+            lineStart--;
+        }
+        if (length - lineStart <= keptBytes) {
+            if (lineStart == 0) {
+                return -1;
+            }
+            carryLength = length - lineStart;
+            carry = Arrays.copyOfRange(buffer, lineStart, length);
+            return lineStart;
+        }
+
+        int cut = LineScanner.characterBoundary(buffer, lineStart, lineStart + (int) keptBytes, charset);
+        skipRestOfLine(buffer, cut, length);
+        return cut;
+    }
+
+    /**
+     * Counts and drops the bytes up to the end of the current line, and its line ending; what
+     * follows is carried to the next block
+     */
+    private void skipRestOfLine(byte[] buffer, int from, int length) throws IOException {
+        byte[] bytes = buffer;
+        int start = from;
+        int end = length;
+        carryLength = 0;
+        while (true) {
+            int lineEnd = start;
+            while (lineEnd < end && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            // The count carries a character split by the refill below into the next read
+            skippedCount.add(bytes, start, lineEnd);
+            if (lineEnd < end || eof) {
+                skipped += skippedCount.finish();
+            }
+            if (lineEnd < end) {
+                int next = lineEnd + 1;
+                if (bytes[lineEnd] == '\r') {
+                    if (next < end) {
+                        if (bytes[next] == '\n') {
+                            next++;
+                        }
+                    } else if (!eof) {
+                        int following = in.read();
+                        if (following < 0) {
+                            eof = true;
+                        } else if (following != '\n') {
+                            carry = new byte[] {(byte) following};
+                            carryLength = 1;
+                            return;
+                        }
+                    }
+                }
+                carry = Arrays.copyOfRange(bytes, next, end);
+                carryLength = end - next;
+                return;
+            }
+            if (eof) {
+                return;
+            }
+            if (scratch == null) {
+                scratch = new byte[chunkSize];
+            }
+            bytes = scratch;
+            start = 0;
+            end = in.readNBytes(scratch, 0, scratch.length);
+            eof = end < scratch.length;
+        }
+    }
+
+    private static int lastNewline(byte[] buffer, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,550 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Splits encoded text into lines the way BufferedReader.readLine does ("\n", "\r" or "\r\n" end
+ * a line; a final unterminated line still counts), without decoding it.
+ *
+ * The line ends are found eight bytes at a time: each long read from the buffer is checked for
+ * '\n' and '\r' bytes with the usual has-zero-byte bit trick, and the same pass records whether
+ * the line has any byte at or above 0x80. A line that has none is ASCII, which reads the same in
+ * every charset supported here, so it is written as a slice of the buffer. Other lines are
+ * checked to be well-formed UTF-8 (when that is the charset) and written as they are, or else
+ * decoded and re-encoded, which replaces malformed input exactly as a Reader and Writer would.
+ *
+ * With a maximum line length, a line is cut while it is read: once it is longer than
+ * keptBytes(maxLineLength) bytes, enough for that many characters in any supported charset, the
+ * rest is counted and skipped up to the line end, so memory stays bounded however long the line.
+ * Only ASCII-compatible charsets where a '\n' byte always ends a line can be scanned; see supports().
+ */
+final class LineScanner {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long LF = 0x0A0A0A0A0A0A0A0AL;
+    private static final long CR = 0x0D0D0D0D0D0D0D0DL;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+    private final Charset charset;
+    private final boolean utf8;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+    // The last line ended with '\r', so a '\n' right after it belongs to that line end
+    private boolean skipLineFeed;
+
+    private int lineStart;
+    private int lineEnd;
+    private boolean lineAscii;
+    // Characters of the current line skipped after its kept bytes
+    private long lineSkipped;
+    // Characters skipped from a final line cut before the scanner got its bytes, see endsInCutLine
+    private long endSkipped;
+    // Counts what is skipped of a cut line, which may be read in several parts
+    private CharacterCount skippedCount;
+
+    private int maxLineLength = Integer.MAX_VALUE;
+    private long keptBytes = Long.MAX_VALUE;
+    private String truncationMarker = "";
+    private String lineSeparator = System.lineSeparator();
+    private byte[] lineSeparatorBytes;
+
+    /**
+     * Scans a stream
+     * @param in The encoded text; not closed
+     * @param charset Its charset, see supports()
+     */
+    LineScanner(InputStream in, Charset charset) {
+        this(in, new byte[DEFAULT_BUFFER_SIZE], 0, 0, false, charset);
+    }
+
+    /**
+     * Scans bytes already in memory
+     * @param bytes The encoded text
+     * @param length Number of bytes used, from the start of the array
+     * @param charset Its charset, see supports()
+     */
+    LineScanner(byte[] bytes, int length, Charset charset) {
+        this(null, bytes, 0, length, true, charset);
+    }
+
+    private LineScanner(InputStream in, byte[] buffer, int position, int limit, boolean endOfInput, Charset charset) {
+        if (!supports(charset)) {
+            throw new IllegalArgumentException("Cannot scan " + charset + " text for line ends byte by byte");
+        }
+        this.in = in;
+        this.buffer = buffer;
+        this.position = position;
+        this.limit = limit;
+        this.endOfInput = endOfInput;
+        this.charset = charset;
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        this.lineSeparatorBytes = lineSeparator.getBytes(charset);
+    }
+
+    /**
+     * @param charset A charset
+     * @return True if text in this charset can be split into lines at '\n' and '\r' bytes and
+     *         its ASCII bytes mean ASCII: UTF-8 and the single-byte charsets ParallelLineProcessor takes
+     */
+    static boolean supports(Charset charset) {
+        return ParallelLineProcessor.supports(charset)
+                && Arrays.equals("azAZ09 -\t".getBytes(charset), "azAZ09 -\t".getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Cuts lines longer than maxLineLength characters and appends the marker to them
+     * @param maxLineLength Longest line written unchanged, in chars as String.length counts them
+     * @param truncationMarker Text written after a cut line; a %d in it is replaced by the number
+     *                         of characters dropped
+     * @return This scanner
+     */
+    LineScanner truncateAt(int maxLineLength, String truncationMarker) {
+        this.maxLineLength = maxLineLength;
+        this.keptBytes = keptBytes(maxLineLength);
+        this.truncationMarker = truncationMarker;
+        this.skippedCount = new CharacterCount(charset);
+        return this;
+    }
+
+    /**
+     * Marks the last line of in-memory bytes as the start of a line that LineChunker already cut
+     * @param skippedCharacters Characters of the line dropped after these bytes
+     * @return This scanner
+     */
+    LineScanner endsInCutLine(long skippedCharacters) {
+        this.endSkipped = skippedCharacters;
+        return this;
+    }
+
+    /**
+     * @param maxLineLength Longest line written unchanged, in chars
+     * @return Bytes of a line that always decode to more than maxLineLength chars, in any supported
+     *         charset: UTF-8 takes at most 3 bytes per char, 4 for 2; plus a possibly split last character
+     */
+    static long keptBytes(int maxLineLength) {
+        return 4L * maxLineLength + 4;
+    }
+
+    /**
+     * @return The index at or just before cut that does not split a UTF-8 character, but not before from
+     */
+    static int characterBoundary(byte[] bytes, int from, int cut, Charset charset) {
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return cut;
+        }
+        int boundary = cut;
+        while (boundary > from && cut - boundary < 3 && (bytes[boundary] & 0xC0) == 0x80) {
+            boundary--;
+        }
+        return (bytes[boundary] & 0xC0) == 0x80 ? cut : boundary;
+    }
+
+    /**
+     * @return Number of chars, as String.length counts them, that well-formed bytes decode to; for
+     *         UTF-8 every byte that is not a continuation byte counts one, and a 4-byte lead two.
+     *         Malformed input is counted by CharacterCount.
+     */
+    static long countCharacters(byte[] bytes, int from, int to, Charset charset) {
+        if (!charset.equals(StandardCharsets.UTF_8)) {
+            return to - from;
+        }
+        long count = 0;
+        for (int i = from; i < to; i++) {
+            int b = bytes[i] & 0xFF;
+            if ((b & 0xC0) != 0x80) {
+                count += b >= 0xF0 && b <= 0xF4 ? 2 : 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param lineSeparator Written after every line in place of the input's line ending
+     * @return This scanner
+     */
+    LineScanner lineSeparator(String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+        this.lineSeparatorBytes = lineSeparator.getBytes(charset);
+        return this;
+    }
+
+    /**
+     * Moves to the next line
+     * @return False at the end of the input
+     * @throws IOException If the stream cannot be read
+     */
+    boolean next() throws IOException {
+        if (skipLineFeed) {
+            if (position == limit) {
+                fill(position);
+            }
+            if (position < limit && buffer[position] == '\n') {
+                position++;
+            }
+            skipLineFeed = false;
+        }
+
+        int scanned = position;
+        long high = 0;
+        // Length of the line's kept bytes once it has been cut, otherwise -1
+        int kept = -1;
+        lineSkipped = 0;
+        while (true) {
+            int end = findLineEnd(scanned, limit);
+            if (kept < 0) {
+                high |= highBits;
+            }
+            if (end >= 0 || endOfInput) {
+                if (end < 0) {
+                    if (position == limit) {
+                        return false;
+                    }
+                    end = limit;
+                    lineSkipped += endSkipped;
+                } else {
+                    skipLineFeed = buffer[end] == '\r';
+                }
+                lineStart = position;
+                lineEnd = end;
+                if (kept >= 0) {
+                    lineEnd = position + kept;
+                    skippedCount.add(buffer, lineEnd, end);
+                    lineSkipped += skippedCount.finish();
+                }
+                lineAscii = high == 0;
+                position = end < limit ? end + 1 : limit;
+                return true;
+            }
+
+            if (kept >= 0) {
+                // Still skipping the rest of a cut line
+                skippedCount.add(buffer, position + kept, limit);
+                limit = position + kept;
+            } else if (limit - position > keptBytes) {
+                int cut = characterBoundary(buffer, position, position + (int) keptBytes, charset);
+                kept = cut - position;
+                skippedCount.add(buffer, cut, limit);
+                limit = cut;
+                findLineEnd(position, cut);
+                high = highBits;
+            }
+            // Keep the partial line, all of it scanned, and read more after it
+            scanned = fill(position);
+        }
+    }
+
+    // Set by findLineEnd: the high bits of the bytes it passed over
+    private long highBits;
+
+    /**
+     * @return Index of the first '\n' or '\r' in [from, to), or -1; highBits holds the high bits
+     *         of the bytes before it
+     */
+    private int findLineEnd(int from, int to) {
+        byte[] bytes = buffer;
+        long high = 0;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long word = (long) LONGS.get(bytes, i);
+            long lf = word ^ LF;
+            long cr = word ^ CR;
+            // A byte of lf or cr is zero where the word has that character; the lowest match is exact
+            long found = ((lf - ONES) & ~lf | (cr - ONES) & ~cr) & HIGH_BITS;
+            if (found != 0) {
+                int index = Long.numberOfTrailingZeros(found) >>> 3;
+                // Only the bytes before the line end belong to this line
+                highBits = high | (word & ((1L << (index << 3)) - 1) & HIGH_BITS);
+                return i + index;
+            }
+            high |= word & HIGH_BITS;
+        }
+        for (; i < to; i++) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r') {
+                highBits = high;
+                return i;
+            }
+            high |= b & 0x80;
+        }
+        highBits = high;
+        return -1;
+    }
+
+    /**
+     * Moves the bytes from keepFrom to the start of the buffer, growing it if they fill it, and
+     * reads more after them
+     * @return The new index of the first byte that was not kept
+     */
+    private int fill(int keepFrom) throws IOException {
+        int kept = limit - keepFrom;
+        if (kept == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        } else if (keepFrom > 0) {
+            System.arraycopy(buffer, keepFrom, buffer, 0, kept);
+        }
+        position = 0;
+        limit = kept;
+        if (in == null) {
+            endOfInput = true;
+            return kept;
+        }
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+        return kept;
+    }
+
+    /**
+     * @return The current line, decoded; only its kept part if it was cut while it was read
+     */
+    String line() {
+        // ASCII decodes the same in every supported charset, and Latin-1 decoding is the cheapest
+        return new String(buffer, lineStart, lineEnd - lineStart,
+                lineAscii ? StandardCharsets.ISO_8859_1 : charset);
+    }
+
+    /**
+     * @return True if the current line is all ASCII
+     */
+    boolean isAscii() {
+        return lineAscii;
+    }
+
+    /**
+     * Writes the current line, cut at the maximum length, followed by the line separator; the
+     * bytes are the same as writing line() through a Writer in the scanner's charset
+     * @param out Receives the line
+     * @throws IOException If the stream cannot be written
+     */
+    void writeLine(OutputStream out) throws IOException {
+        int length = lineEnd - lineStart;
+        if (lineAscii) {
+            if (length > maxLineLength) {
+                out.write(buffer, lineStart, maxLineLength);
+                writeMarker(out, length - maxLineLength + lineSkipped);
+            } else {
+                out.write(buffer, lineStart, length);
+            }
+        } else if (utf8 && length <= maxLineLength && isWellFormedUtf8(buffer, lineStart, lineEnd)) {
+            // A UTF-8 line never has more chars than bytes, so it needs no cut
+            out.write(buffer, lineStart, length);
+        } else {
+            String line = line();
+            if (line.length() > maxLineLength) {
+                out.write(line.substring(0, maxLineLength).getBytes(charset));
+                writeMarker(out, line.length() - maxLineLength + lineSkipped);
+            } else {
+                out.write(line.getBytes(charset));
+            }
+        }
+        out.write(lineSeparatorBytes);
+    }
+
+    /**
+     * Hands the current line to a report writer, as bytes straight from the buffer when they are
+     * ASCII or well-formed UTF-8 and decoded otherwise; the whole line, truncateAt does not apply
+     * @param writer Receives the line
+     * @throws IOException If the writer cannot write it
+     */
+    void writeLine(ReportWriter writer) throws IOException {
+        if (lineAscii || utf8 && isWellFormedUtf8(buffer, lineStart, lineEnd)) {
+            writer.writeLine(buffer, lineStart, lineEnd);
+        } else {
+            writer.writeLine(line());
+        }
+    }
+
+    private void writeMarker(OutputStream out, long dropped) throws IOException {
+        out.write(String.format(Locale.ROOT, truncationMarker, dropped).getBytes(charset));
+    }
+
+    /**
+     * @return Index of the first '\n' in [from, to), or -1; searched a word at a time like the line ends
+     */
+    static int indexOfNewline(byte[] bytes, int from, int to) {
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            long lf = (long) LONGS.get(bytes, i) ^ LF;
+            long found = (lf - ONES) & ~lf & HIGH_BITS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+        }
+        for (; i < to; i++) {
+            if (bytes[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return True if the bytes are well-formed UTF-8 as Java's decoder accepts it: no overlong
+     *         forms, no encoded surrogates, nothing above U+10FFFF
+     */
+    static boolean isWellFormedUtf8(byte[] bytes, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                i++;
+                continue;
+            }
+            int length;
+            int min = 0x80;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                length = 2;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                length = 3;
+                if (b == 0xE0) {
+                    min = 0xA0;
+                } else if (b == 0xED) {
+                    max = 0x9F;
+                }
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                length = 4;
+                if (b == 0xF0) {
+                    min = 0x90;
+                } else if (b == 0xF4) {
+                    max = 0x8F;
+                }
+            } else {
+                return false;
+            }
+            if (i + length > to) {
+                return false;
+            }
+            int second = bytes[i + 1] & 0xFF;
+            if (second < min || second > max) {
+                return false;
+            }
+            for (int k = 2; k < length; k++) {
+                int continuation = bytes[i + k] & 0xFF;
+                if (continuation < 0x80 || continuation > 0xBF) {
+                    return false;
+                }
+            }
+            i += length;
+        }
+        return true;
+    }
+
+    /**
+     * Counts the chars the skipped part of a cut line decodes to, as a Reader would decode it,
+     * while the part is read in pieces. Well-formed UTF-8 is counted byte by byte; a piece with
+     * malformed input is decoded, so each replaced sequence counts one char. A character split
+     * between two pieces is held back and counted once it is complete. The cut itself never
+     * splits a sequence the decoder would read as one, see characterBoundary.
+     */
+    static final class CharacterCount {
+        private final Charset charset;
+        private final boolean utf8;
+        private CharsetDecoder decoder;
+        private CharBuffer chars;
+        // A lead byte and the continuation bytes read after it; six are always past its sequence
+        private final byte[] pending = new byte[6];
+        private int pendingLength;
+        private long count;
+
+        CharacterCount(Charset charset) {
+            this.charset = charset;
+            this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Counts the next piece of the line
+         */
+        void add(byte[] bytes, int from, int to) {
+            if (!utf8) {
+                // Every byte of a single-byte charset decodes to one char, replaced or not
+                count += to - from;
+                return;
+            }
+            if (pendingLength > 0) {
+                while (from < to && pendingLength < pending.length && (bytes[from] & 0xC0) == 0x80) {
+                    pending[pendingLength++] = bytes[from++];
+                }
+                if (from == to && pendingLength < pending.length) {
+                    return;
+                }
+                count += decodedLength(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+
+            int end = incompleteTail(bytes, from, to);
+            count += isWellFormedUtf8(bytes, from, end)
+                    ? countCharacters(bytes, from, end, charset)
+                    : decodedLength(bytes, from, end);
+            System.arraycopy(bytes, end, pending, 0, to - end);
+            pendingLength = to - end;
+        }
+
+        /**
+         * Ends the line
+         * @return Chars counted since the last call
+         */
+        long finish() {
+            if (pendingLength > 0) {
+                count += decodedLength(pending, 0, pendingLength);
+                pendingLength = 0;
+            }
+            long finished = count;
+            count = 0;
+            return finished;
+        }
+
+        // Start of a multi-byte character at the end of the piece that is missing bytes, or to
+        private static int incompleteTail(byte[] bytes, int from, int to) {
+            for (int i = to - 1; i >= Math.max(from, to - 3); i--) {
+                int b = bytes[i] & 0xFF;
+                if ((b & 0xC0) != 0x80) {
+                    int length = b >= 0xC2 && b <= 0xDF ? 2 : b >= 0xE0 && b <= 0xEF ? 3 : b >= 0xF0 && b <= 0xF4 ? 4 : 1;
+                    return to - i < length ? i : to;
+                }
+            }
+            return to;
+        }
+
+        private long decodedLength(byte[] bytes, int from, int to) {
+            if (decoder == null) {
+                decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                chars = CharBuffer.allocate(1024);
+            }
+            decoder.reset();
+            ByteBuffer in = ByteBuffer.wrap(bytes, from, to - from);
+            long length = 0;
+            CoderResult result;
+            do {
+                chars.clear();
+                result = decoder.decode(in, chars, true);
+                length += chars.position();
+            } while (result.isOverflow());
+            chars.clear();
+            decoder.flush(chars);
+            return length + chars.position();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An append-only log kept as a series of size- and age-capped segment files.
+ *
+ * The active segment (e.g. error_log.txt) is appended to with positional channel writes at the
+ * cursor: each append is one copy into the page cache, which other readers of the file see at
+ * once, and the file never holds more than what was appended. When the segment reaches its size
+ * cap or age cap it is forced to disk and renamed to error_log.&lt;yyyyMMdd-HHmmss-SSS&gt;.txt
+ * (with a -1, -2... suffix if that name is taken); only the newest rolled segments up to the
+ * retention count are kept. An active segment left by an earlier run is rolled on open, so
+ * history survives restarts. Not thread safe.
+ *
+ * The segment is not written through a memory-mapped region. A mapping has to be sized ahead of
+ * the data, so a crash leaves zero padding in the file. It also has to be remapped as the segment
+ * grows and cannot be unmapped on demand before a roll. One positional write per record costs
+ * about the same copy without any of that.
+ */
+final class LogSegments {
+
+    // Wait after a failed roll before trying again
+    private static final long ROLL_RETRY_MILLIS = 1000;
+    private static final DateTimeFormatter SEGMENT_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+
+    private final Path active;
+    private final String baseName;
+    private final String extension;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final int retain;
+
+    private FileChannel channel;
+    private long cursor;
+    private long openedMillis;
+    private long retryRollMillis;
+    private long rolls;
+
+    /**
+     * Opens the active segment, rolling any segment an earlier run left behind
+     * @param active Path of the active segment
+     * @param maxBytes Size at which a segment is rolled
+     * @param maxAgeMillis Age at which a segment is rolled
+     * @param retain Number of rolled segments to keep
+     * @throws IOException If the segment cannot be opened
+     */
+    LogSegments(Path active, long maxBytes, long maxAgeMillis, int retain) throws IOException {
+        this.active = active.toAbsolutePath();
+        String name = this.active.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.baseName = dot > 0 ? name.substring(0, dot) : name;
+        this.extension = dot > 0 ? name.substring(dot) : "";
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.retain = retain;
+
+        if (Files.exists(this.active)) {
+            if (Files.size(this.active) > 0) {
+                try {
+                    rollActiveFile();
+                } catch (IOException e) {
+                    // Carry on appending to it rather than lose it
+                    System.err.println("Failed to roll " + this.active + ": " + e.getMessage());
+                }
+            } else {
+                Files.delete(this.active);
+            }
+        }
+        open();
+    }
+
+    /**
+     * Appends bytes, rolling first if the active segment is full or too old. A record is never
+     * split between segments, so one larger than the size cap makes an oversized segment.
+     * @param bytes The bytes
+     * @param offset First byte
+     * @param length Number of bytes
+     * @throws IOException If the segment cannot be extended or rolled
+     */
+    void append(byte[] bytes, int offset, int length) throws IOException {
+        if (channel == null) {
+            open();
+        }
+        long now = System.currentTimeMillis();
+        if (cursor > 0 && now >= retryRollMillis && (cursor + length > maxBytes || now - openedMillis >= maxAgeMillis)) {
+            try {
+                roll();
+            } catch (IOException e) {
+                // The log cannot log its own failure; keep appending to the open segment and retry later
+                System.err.println("Failed to roll " + active + ": " + e.getMessage());
+                retryRollMillis = now + ROLL_RETRY_MILLIS;
+                if (channel == null) {
+                    throw e;
+                }
+            }
+        }
+        ByteBuffer source = ByteBuffer.wrap(bytes, offset, length);
+        while (source.hasRemaining()) {
+            cursor += channel.write(source, cursor);
+        }
+    }
+
+    /**
+     * Closes the active segment and starts a new one
+     * @throws IOException If an I/O error occurs
+     */
+    void roll() throws IOException {
+        try {
+            close();
+            rollActiveFile();
+        } finally {
+            // After a failed rename this reopens the same segment and appends to it
+            if (channel == null) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * Writes the active segment to disk and closes it
+     * @throws IOException If an I/O error occurs
+     */
+    void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    Path getActivePath() {
+        return active;
+    }
+
+    /**
+     * @return Bytes in the active segment
+     */
+    long getSize() {
+        return cursor;
+    }
+
+    /**
+     * @return Segments rolled since the log was opened
+     */
+    long getRollCount() {
+        return rolls;
+    }
+
+    private void open() throws IOException {
+        FileChannel opened = FileChannel.open(active, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            cursor = opened.size();
+        } catch (IOException e) {
+            opened.close();
+            throw e;
+        }
+        channel = opened;
+        openedMillis = System.currentTimeMillis();
+    }
+
+    private void rollActiveFile() throws IOException {
+        String stamp = LocalDateTime.now().format(SEGMENT_TIME);
+        Path target = active.resolveSibling(baseName + "." + stamp + extension);
+        for (int n = 1; Files.exists(target); n++) {
+            target = active.resolveSibling(baseName + "." + stamp + "-" + n + extension);
+        }
+        Files.move(active, target);
+        rolls++;
+        deleteOldSegments();
+    }
+
+    private void deleteOldSegments() throws IOException {
+        List<RolledSegment> segments = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(active.getParent(), baseName + ".*" + extension)) {
+            for (Path entry : entries) {
+                RolledSegment segment = RolledSegment.parse(entry, baseName, extension);
+                // Other files that happen to match the pattern are left alone
+                if (segment != null) {
+                    segments.add(segment);
+                }
+            }
+        }
+        // Names do not sort in time order: "-1" sorts before the "." of the name it was added to
+        segments.sort(Comparator.comparing((RolledSegment segment) -> segment.time).thenComparingInt(segment -> segment.suffix));
+        for (int i = 0; i < segments.size() - retain; i++) {
+            Files.deleteIfExists(segments.get(i).path);
+        }
+    }
+
+    /**
+     * A rolled segment file and the time and collision suffix in its name
+     */
+    private static final class RolledSegment {
+        final Path path;
+        final LocalDateTime time;
+        final int suffix;
+
+        private RolledSegment(Path path, LocalDateTime time, int suffix) {
+            this.path = path;
+            this.time = time;
+            this.suffix = suffix;
+        }
+
+        /**
+         * @return The segment named base.&lt;stamp&gt;[-n]extension, or null for any other file
+         */
+        static RolledSegment parse(Path path, String baseName, String extension) {
+            String name = path.getFileName().toString();
+            if (name.length() <= baseName.length() + 1 + extension.length()
+                    || !name.startsWith(baseName + ".") || !name.endsWith(extension)) {
+                return null;
+            }
+            String stamp = name.substring(baseName.length() + 1, name.length() - extension.length());
+            int suffix = 0;
+            // The stamp itself is yyyyMMdd-HHmmss-SSS; a third '-' starts the suffix
+            int dash = stamp.indexOf('-', stamp.indexOf('-', stamp.indexOf('-') + 1) + 1);
+            try {
+                if (dash > 0) {
+                    suffix = Integer.parseInt(stamp.substring(dash + 1));
+                    stamp = stamp.substring(0, dash);
+                }
+                return new RolledSegment(path, LocalDateTime.parse(stamp, SEGMENT_TIME), suffix);
+            } catch (NumberFormatException | DateTimeParseException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters, gauges and latency histograms.
+ *
+ * Metrics are registered by name plus label pairs and kept for the life of the process. Updating
+ * one is a LongAdder increment or a LatencyHistogram record, so callers on hot paths look the
+ * metric up once and keep it. Nothing is formatted until someone reads:
+ *   JMX            the MBean DefendYourCode:type=Metrics (jconsole, VisualVM, ...), registered on a
+ *                  background thread unless -Ddefend.metrics.jmx=false
+ *   text file      Prometheus text format written to -Ddefend.metrics.file every
+ *                  -Ddefend.metrics.intervalMillis (default 10000) and at exit; off unless set
+ */
+public final class Metrics {
+
+    /**
+     * Read-only view of the metrics for JMX clients
+     */
+    public interface MetricsMXBean {
+        /**
+         * @return Every counter by name and labels
+         */
+        Map<String, Long> getCounters();
+
+        /**
+         * @return Every gauge by name and labels
+         */
+        Map<String, Double> getGauges();
+
+        /**
+         * @return Latency quantiles in milliseconds, by name, labels and quantile
+         */
+        Map<String, Double> getLatencyMillis();
+
+        /**
+         * @return All metrics in Prometheus text format
+         */
+        String getPrometheusText();
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final long DEFAULT_DUMP_INTERVAL_MILLIS = 10_000;
+
+    private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    static {
+        if (Boolean.parseBoolean(System.getProperty("defend.metrics.jmx", "true"))) {
+            // Starting the platform MBean server takes a while; keep it off the caller's path
+            Thread registration = new Thread(Metrics::registerMBean, "metrics-jmx-registration");
+            registration.setDaemon(true);
+            registration.start();
+        }
+
+        String file = System.getProperty("defend.metrics.file");
+        if (file != null) {
+            startDumping(Paths.get(file), Long.getLong("defend.metrics.intervalMillis", DEFAULT_DUMP_INTERVAL_MILLIS));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Settable gauge
+     */
+    public static final class Gauge implements DoubleSupplier {
+        private volatile double value;
+
+        public void set(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double getAsDouble() {
+            return value;
+        }
+    }
+
+    /**
+     * @param name Metric name, ending in _total by convention
+     * @param help One-line description
+     * @param labels Label names and values, alternating
+     * @return The counter, created on first use
+     */
+    public static LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) family(name, help, "counter").metrics.computeIfAbsent(labelText(labels), k -> new LongAdder());
+    }
+
+    /**
+     * @param name Metric name, ending in _seconds by convention; values are recorded in nanoseconds
+     * @param help One-line description
+     * @param labels Label names and values, alternating
+     * @return The histogram, created on first use
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        return (LatencyHistogram) family(name, help, "summary").metrics
+                .computeIfAbsent(labelText(labels), k -> new LatencyHistogram());
+    }
+
+    /**
+     * @param name Metric name
+     * @param help One-line description
+     * @param labels Label names and values, alternating
+     * @return A gauge holding the last value set, created on first use
+     */
+    public static Gauge gauge(String name, String help, String... labels) {
+        return (Gauge) family(name, help, "gauge").metrics.computeIfAbsent(labelText(labels), k -> new Gauge());
+    }
+
+    /**
+     * Registers a gauge whose value is read from the supplier whenever the metrics are read
+     * @param name Metric name
+     * @param help One-line description
+     * @param supplier Supplies the current value
+     * @param labels Label names and values, alternating
+     */
+    public static void gauge(String name, String help, DoubleSupplier supplier, String... labels) {
+        family(name, help, "gauge").metrics.put(labelText(labels), supplier);
+    }
+
+    /**
+     * @return All metrics in Prometheus text exposition format
+     */
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder(4096);
+        for (Family family : new TreeMap<>(families).values()) {
+            text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> entry : new TreeMap<>(family.metrics).entrySet()) {
+                String labels = entry.getKey();
+                Object metric = entry.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    long count = histogram.getCount();
+                    for (double quantile : QUANTILES) {
+                        text.append(family.name).append(withLabel(labels, "quantile", Double.toString(quantile)))
+                                .append(' ').append(count == 0 ? "NaN" : seconds(histogram.getValueAtQuantile(quantile)))
+                                .append('\n');
+                    }
+                    text.append(family.name).append("_sum").append(labels).append(' ')
+                            .append(seconds(histogram.getSum())).append('\n');
+                    text.append(family.name).append("_count").append(labels).append(' ')
+                            .append(count).append('\n');
+                } else {
+                    text.append(family.name).append(labels).append(' ').append(valueOf(metric)).append('\n');
+                }
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the Prometheus text to a file, replacing it atomically so readers never see half of it
+     * @param file The file
+     * @throws IOException If it cannot be written
+     */
+    public static void writeTo(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, toPrometheusText().getBytes(StandardCharsets.UTF_8));
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void startDumping(Path file, long intervalMillis) {
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Runnable dump = () -> {
+            try {
+                writeTo(file);
+            } catch (IOException e) {
+                ErrorLogger.logError("Could not write metrics to " + file + ": " + e.getMessage());
+            }
+        };
+        dumper.scheduleAtFixedRate(dump, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(dump, "metrics-final-dump"));
+    }
+
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(),
+                    new ObjectName("DefendYourCode:type=Metrics"));
+        } catch (JMException e) {
+            ErrorLogger.logError("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static String labelText(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"");
+            for (char c : labels[i + 1].toCharArray()) {
+                if (c == '\\' || c == '"') {
+                    text.append('\\').append(c);
+                } else if (c == '\n') {
+                    text.append("\\n");
+                } else {
+                    text.append(c);
+                }
+            }
+            text.append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        return labels.isEmpty() ? "{" + label + "}" : labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static Object valueOf(Object metric) {
+        if (metric instanceof LongAdder) {
+            return ((LongAdder) metric).sum();
+        }
+        return ((DoubleSupplier) metric).getAsDouble();
+    }
+
+    /**
+     * All metrics sharing one name
+     */
+    private static final class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Object> metrics = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    /**
+     * The registered MBean; every read takes a fresh snapshot
+     */
+    private static final class MBean implements MetricsMXBean {
+        @Override
+        public Map<String, Long> getCounters() {
+            Map<String, Long> counters = new TreeMap<>();
+            for (Family family : families.values()) {
+                for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+                    if (entry.getValue() instanceof LongAdder) {
+                        counters.put(family.name + entry.getKey(), ((LongAdder) entry.getValue()).sum());
+                    }
+                }
+            }
+            return counters;
+        }
+
+        @Override
+        public Map<String, Double> getGauges() {
+            Map<String, Double> gauges = new TreeMap<>();
+            for (Family family : families.values()) {
+                for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+                    if (entry.getValue() instanceof DoubleSupplier) {
+                        gauges.put(family.name + entry.getKey(), ((DoubleSupplier) entry.getValue()).getAsDouble());
+                    }
+                }
+            }
+            return gauges;
+        }
+
+        @Override
+        public Map<String, Double> getLatencyMillis() {
+            Map<String, Double> latencies = new TreeMap<>();
+            for (Family family : families.values()) {
+                for (Map.Entry<String, Object> entry : family.metrics.entrySet()) {
+                    if (entry.getValue() instanceof LatencyHistogram) {
+                        LatencyHistogram histogram = (LatencyHistogram) entry.getValue();
+                        for (double quantile : QUANTILES) {
+                            latencies.put(family.name + withLabel(entry.getKey(), "quantile", Double.toString(quantile)),
+                                    histogram.getValueAtQuantile(quantile) / 1e6);
+                        }
+                    }
+                }
+            }
+            return latencies;
+        }
+
+        @Override
+        public String getPrometheusText() {
+            return toPrometheusText();
+        }
+    }
+}
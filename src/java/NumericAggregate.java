@@ -0,0 +1,215 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * Running count, sum, product, minimum and maximum of a sequence of integers.
+ *
+ * Everything stays in primitive longs while it fits. The sum spills into a BigInteger only when
+ * the long total would actually overflow, and then carries on in a long again. The product is
+ * kept as a long until the next factor would overflow it (detected with Math.multiplyHigh); the
+ * full long is then set aside and multiplied out as a balanced product tree at the end, which
+ * is far cheaper than growing one BigInteger a factor at a time. Values outside the long range
+ * are accepted as BigIntegers. Aggregates of separate chunks are combined with merge(), and the
+ * results are exactly those of folding the values with BigInteger.add and multiply.
+ */
+public final class NumericAggregate {
+
+    private long count;
+
+    private long sum;
+    private BigInteger sumOverflow = BigInteger.ZERO;
+
+    private boolean productIsZero;
+    private long product = 1;
+    private long[] factors = new long[0];
+    private int factorCount;
+    private BigInteger bigFactor = BigInteger.ONE;
+
+    private long longCount;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+    private BigInteger bigMin;
+    private BigInteger bigMax;
+
+    /**
+     * Adds one value
+     * @param value The value
+     */
+    public void add(long value) {
+        count++;
+        longCount++;
+        addToSum(value);
+        multiply(value);
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Adds a value that may not fit in a long
+     * @param value The value
+     */
+    public void add(BigInteger value) {
+        if (value.bitLength() < 64) {
+            add(value.longValue());
+            return;
+        }
+        count++;
+        sumOverflow = sumOverflow.add(value);
+        if (!productIsZero) {
+            bigFactor = bigFactor.multiply(value);
+        }
+        bigMin = bigMin == null || value.compareTo(bigMin) < 0 ? value : bigMin;
+        bigMax = bigMax == null || value.compareTo(bigMax) > 0 ? value : bigMax;
+    }
+
+    /**
+     * Adds the values of another aggregate to this one
+     * @param other Aggregate of a different set of values
+     */
+    public void merge(NumericAggregate other) {
+        count += other.count;
+        longCount += other.longCount;
+        addToSum(other.sum);
+        sumOverflow = sumOverflow.add(other.sumOverflow);
+
+        if (other.productIsZero) {
+            setProductZero();
+        } else if (!productIsZero) {
+            for (int i = 0; i < other.factorCount; i++) {
+                pushFactor(other.factors[i]);
+            }
+            multiply(other.product);
+            bigFactor = bigFactor.multiply(other.bigFactor);
+        }
+
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        if (other.bigMin != null) {
+            bigMin = bigMin == null || other.bigMin.compareTo(bigMin) < 0 ? other.bigMin : bigMin;
+        }
+        if (other.bigMax != null) {
+            bigMax = bigMax == null || other.bigMax.compareTo(bigMax) > 0 ? other.bigMax : bigMax;
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The exact sum, zero when empty
+     */
+    public BigInteger getSum() {
+        return sumOverflow.signum() == 0 ? BigInteger.valueOf(sum) : sumOverflow.add(BigInteger.valueOf(sum));
+    }
+
+    /**
+     * @return The exact product, one when empty
+     */
+    public BigInteger getProduct() {
+        if (productIsZero) {
+            return BigInteger.ZERO;
+        }
+        return productOf(factors, 0, factorCount).multiply(BigInteger.valueOf(product)).multiply(bigFactor);
+    }
+
+    /**
+     * @return The smallest value, or null when empty
+     */
+    public BigInteger getMin() {
+        if (count == 0) {
+            return null;
+        }
+        BigInteger smallest = longCount == 0 ? null : BigInteger.valueOf(min);
+        if (bigMin == null) {
+            return smallest;
+        }
+        return smallest == null || bigMin.compareTo(smallest) < 0 ? bigMin : smallest;
+    }
+
+    /**
+     * @return The largest value, or null when empty
+     */
+    public BigInteger getMax() {
+        if (count == 0) {
+            return null;
+        }
+        BigInteger largest = longCount == 0 ? null : BigInteger.valueOf(max);
+        if (bigMax == null) {
+            return largest;
+        }
+        return largest == null || bigMax.compareTo(largest) > 0 ? bigMax : largest;
+    }
+
+    /**
+     * @param scale Digits after the decimal point
+     * @return The mean rounded half-even, or null when empty
+     */
+    public BigDecimal getMean(int scale) {
+        if (count == 0) {
+            return null;
+        }
+        return new BigDecimal(getSum()).divide(BigDecimal.valueOf(count), scale, RoundingMode.HALF_EVEN);
+    }
+
+    private void addToSum(long value) {
+        long result = sum + value;
+        // Overflow iff both operands have the sign the result lacks (the test Math.addExact uses)
+        if (((sum ^ result) & (value ^ result)) < 0) {
+            sumOverflow = sumOverflow.add(BigInteger.valueOf(sum));
+            result = value;
+        }
+        sum = result;
+    }
+
+    private void multiply(long value) {
+        if (productIsZero) {
+            return;
+        }
+        if (value == 0) {
+            setProductZero();
+            return;
+        }
+        long high = Math.multiplyHigh(product, value);
+        long low = product * value;
+        if (high != (low >> 63)) {
+            // The product needs more than 64 bits: set the running product aside and start again
+            pushFactor(product);
+            product = value;
+        } else {
+            product = low;
+        }
+    }
+
+    private void pushFactor(long factor) {
+        if (factorCount == factors.length) {
+            factors = Arrays.copyOf(factors, Math.max(16, factorCount * 2));
+        }
+        factors[factorCount++] = factor;
+    }
+
+    private void setProductZero() {
+        productIsZero = true;
+        factors = new long[0];
+        factorCount = 0;
+        bigFactor = BigInteger.ONE;
+    }
+
+    // Multiplies factors[from, to) pairing operands of similar size, so BigInteger can use its fast algorithms
+    private static BigInteger productOf(long[] factors, int from, int to) {
+        if (to - from == 0) {
+            return BigInteger.ONE;
+        }
+        if (to - from == 1) {
+            return BigInteger.valueOf(factors[from]);
+        }
+        int middle = (from + to) >>> 1;
+        return productOf(factors, from, middle).multiply(productOf(factors, middle, to));
+    }
+}
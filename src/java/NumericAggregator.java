@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Aggregates the integer columns of a text file on a ForkJoinPool.
+ *
+ * Fields are separated by runs of spaces, tabs, commas or semicolons, and a line's n-th field
+ * belongs to column n. Fields that are whole integers (optional sign, ASCII digits) are added to
+ * their column's NumericAggregate; other fields are skipped but still occupy a column. Only the
+ * first MAX_COLUMNS columns are aggregated. The bytes are parsed directly, without decoding to
+ * Strings, so the file must be in an ASCII-compatible charset (see ParallelLineProcessor.supports).
+ * Chunks from LineChunker are parsed in parallel and their aggregates merged, giving the same
+ * results as a single pass.
+ */
+public final class NumericAggregator {
+
+    /** Columns beyond this are ignored */
+    public static final int MAX_COLUMNS = 64;
+
+    // Up to 18 digits always fit in a long
+    private static final int MAX_LONG_DIGITS = 18;
+    // Products beyond this many bits are summarised rather than written out
+    private static final int MAX_PRINTED_BITS = 1000;
+
+    private NumericAggregator() {
+    }
+
+    /**
+     * Aggregates every integer column of a file
+     * @param input The file
+     * @param options Supplies the pool and the chunk size
+     * @return One aggregate per column, in column order
+     * @throws IOException If the file cannot be read
+     */
+    public static List<NumericAggregate> aggregate(Path input, ProcessingOptions options) throws IOException {
+        ForkJoinPool pool = options.getPool();
+        int window = Math.max(2, pool.getParallelism() * 2);
+        ArrayDeque<ForkJoinTask<List<NumericAggregate>>> inFlight = new ArrayDeque<>(window);
+        List<NumericAggregate> columns = new ArrayList<>();
+
+        try (InputStream in = Files.newInputStream(input)) {
+            LineChunker chunker = new LineChunker(in, options.getChunkSize());
+            ByteBuffer block;
+            while ((block = chunker.next()) != null) {
+                if (inFlight.size() == window) {
+                    merge(columns, join(inFlight.poll()));
+                }
+                byte[] chunk = block.array();
+                int length = block.limit();
+                inFlight.add(pool.submit(() -> aggregate(chunk, 0, length)));
+            }
+            while (!inFlight.isEmpty()) {
+                merge(columns, join(inFlight.poll()));
+            }
+            return columns;
+        } finally {
+            for (ForkJoinTask<List<NumericAggregate>> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Aggregates every integer column across several files, as if they were one
+     * @param inputs The files
+     * @param options Supplies the pool and the chunk size
+     * @return One aggregate per column, in column order
+     * @throws IOException If a file cannot be read
+     */
+    public static List<NumericAggregate> aggregate(List<Path> inputs, ProcessingOptions options) throws IOException {
+        List<NumericAggregate> columns = new ArrayList<>();
+        for (Path input : inputs) {
+            merge(columns, aggregate(input, options));
+        }
+        return columns;
+    }
+
+    /**
+     * Aggregates the integer columns of whole lines held in a byte array
+     * @param bytes The text
+     * @param from First byte
+     * @param to End of the text, exclusive
+     * @return One aggregate per column seen
+     */
+    public static List<NumericAggregate> aggregate(byte[] bytes, int from, int to) {
+        List<NumericAggregate> columns = new ArrayList<>();
+        int column = 0;
+        int i = from;
+        while (i < to) {
+            byte b = bytes[i];
+            if (b == '\n' || b == '\r') {
+                column = 0;
+                i++;
+                continue;
+            }
+            if (isSeparator(b)) {
+                i++;
+                continue;
+            }
+
+            int start = i;
+            while (i < to && !isSeparator(bytes[i]) && bytes[i] != '\n' && bytes[i] != '\r') {
+                i++;
+            }
+            if (column < MAX_COLUMNS) {
+                addField(bytes, start, i, columns, column);
+            }
+            column++;
+        }
+        return columns;
+    }
+
+    /**
+     * Formats the aggregates as report lines
+     * @param columns Aggregates in column order
+     * @param newLine Line separator
+     * @return The text, one line per column that held integers
+     */
+    public static String describe(List<NumericAggregate> columns, String newLine) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            NumericAggregate column = columns.get(i);
+            if (column == null || column.getCount() == 0) {
+                continue;
+            }
+            text.append("Column ").append(i + 1).append(": ")
+                    .append(column.getCount()).append(column.getCount() == 1 ? " value" : " values")
+                    .append(", sum ").append(column.getSum())
+                    .append(", product ").append(describeProduct(column.getProduct()))
+                    .append(", min ").append(column.getMin())
+                    .append(", max ").append(column.getMax())
+                    .append(", mean ").append(column.getMean(6).stripTrailingZeros().toPlainString())
+                    .append(newLine);
+        }
+        if (text.length() == 0) {
+            text.append("No integer columns found").append(newLine);
+        }
+        return text.toString();
+    }
+
+    private static String describeProduct(BigInteger product) {
+        if (product.bitLength() <= MAX_PRINTED_BITS) {
+            return product.toString();
+        }
+        // log10(2) digits per bit; exact to within one digit without printing the number
+        long digits = (long) (product.bitLength() * 0.30102999566398120) + 1;
+        return (product.signum() < 0 ? "negative, " : "") + "about " + digits + " digits";
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == ',' || b == ';';
+    }
+
+    private static void addField(byte[] bytes, int start, int end, List<NumericAggregate> columns, int column) {
+        int digitsStart = start;
+        if (bytes[start] == '-' || bytes[start] == '+') {
+            digitsStart++;
+        }
+        if (digitsStart == end) {
+            return;
+        }
+
+        long value = 0;
+        for (int i = digitsStart; i < end; i++) {
+            int digit = bytes[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return;
+            }
+            value = value * 10 + digit;
+        }
+
+        while (columns.size() <= column) {
+            columns.add(null);
+        }
+        NumericAggregate aggregate = columns.get(column);
+        if (aggregate == null) {
+            aggregate = new NumericAggregate();
+            columns.set(column, aggregate);
+        }
+
+        boolean negative = bytes[start] == '-';
+        if (end - digitsStart <= MAX_LONG_DIGITS) {
+            aggregate.add(negative ? -value : value);
+        } else {
+            // Too long for the fast path: parse exactly
+            String digits = new String(bytes, digitsStart, end - digitsStart, StandardCharsets.US_ASCII);
+            BigInteger big = new BigInteger(digits);
+            aggregate.add(negative ? big.negate() : big);
+        }
+    }
+
+    private static void merge(List<NumericAggregate> into, List<NumericAggregate> chunk) {
+        for (int i = 0; i < chunk.size(); i++) {
+            NumericAggregate column = chunk.get(i);
+            if (column == null) {
+                continue;
+            }
+            while (into.size() <= i) {
+                into.add(null);
+            }
+            if (into.get(i) == null) {
+                into.set(i, column);
+            } else {
+                into.get(i).merge(column);
+            }
+        }
+    }
+
+    private static List<NumericAggregate> join(ForkJoinTask<List<NumericAggregate>> task) throws IOException {
+        try {
+            return task.join();
+        } catch (CancellationException e) {
+            throw new IOException("Aggregation was cancelled", e);
+        } catch (RuntimeException e) {
+            throw new IOException("Aggregation failed: " + e.getMessage(), e);
+        }
+    }
+}
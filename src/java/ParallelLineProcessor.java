@@ -0,0 +1,229 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Copies a text file line by line using several cores, producing exactly the bytes the
+ * single-threaded BufferedReader.readLine loop would.
+ *
+ * LineChunker cuts the input into chunks that end just after a '\n' byte, so no line (and no
+ * "\r\n" pair) spans two chunks. Each chunk is split into lines by a LineScanner, which
+ * decodes only what it must, and optionally truncated on a ForkJoinPool. The calling thread writes the finished chunks in
+ * their original order; at most twice the pool's parallelism are in flight, which bounds the
+ * memory held by out-of-order results. Only UTF-8 and single-byte charsets (ASCII, the ISO-8859
+ * and windows-125x families) can be cut this way; see supports().
+ */
+public class ParallelLineProcessor {
+
+    /**
+     * Receives input lines for the console echo, in input order
+     */
+    public interface LineEcho {
+        /**
+         * @param lineNumber 1-based line number
+         * @param line The line as read, before truncation
+         */
+        void echo(long lineNumber, String line);
+    }
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    private final Charset charset;
+    private int maxLineLength = Integer.MAX_VALUE;
+    private String truncationMarker = "";
+    private String lineSeparator = System.lineSeparator();
+    private LineEcho echo;
+    private long echoLimit;
+
+    // Lines passed to the echo so far; read by the chunk tasks to stop collecting early
+    private volatile long echoed;
+
+    /**
+     * @param options Supplies the pool and the chunk size
+     * @param charset Charset of both the input and the output
+     */
+    public ParallelLineProcessor(ProcessingOptions options, Charset charset) {
+        if (!supports(charset)) {
+            throw new IllegalArgumentException("Cannot split " + charset + " text on line boundaries");
+        }
+        this.pool = options.getPool();
+        this.chunkSize = options.getChunkSize();
+        this.charset = charset;
+    }
+
+    /**
+     * @param charset A charset
+     * @return True if input in this charset can be cut at '\n' bytes without splitting a character
+     */
+    public static boolean supports(Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return true;
+        }
+        // Single-byte charsets are stateless, so any byte boundary is a character boundary
+        return charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1
+                && Arrays.equals("\n".getBytes(charset), new byte[] {'\n'})
+                && Arrays.equals("\r".getBytes(charset), new byte[] {'\r'});
+    }
+
+    /**
+     * Cuts lines longer than maxLineLength characters and appends the marker to them; long lines
+     * are cut while they are read, see LineChunker
+     * @param maxLineLength Longest line written unchanged
+     * @param truncationMarker Text written after a cut line; a %d in it is replaced by the number
+     *                         of characters dropped
+     * @return This processor
+     */
+    public ParallelLineProcessor truncateAt(int maxLineLength, String truncationMarker) {
+        this.maxLineLength = maxLineLength;
+        this.truncationMarker = truncationMarker;
+        return this;
+    }
+
+    /**
+     * @param lineSeparator Written after every line in place of the input's line ending
+     * @return This processor
+     */
+    public ParallelLineProcessor lineSeparator(String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+        return this;
+    }
+
+    /**
+     * Passes the first lines of the input to a console echo
+     * @param echo Receives the lines
+     * @param echoLimit Number of lines passed
+     * @return This processor
+     */
+    public ParallelLineProcessor echo(LineEcho echo, long echoLimit) {
+        this.echo = echo;
+        this.echoLimit = echoLimit;
+        return this;
+    }
+
+    /**
+     * Transforms the input file and appends the result to the output
+     * @param input The input file
+     * @param out Receives the transformed lines; not closed
+     * @return Number of lines processed
+     * @throws IOException If reading or writing fails
+     */
+    public long process(Path input, OutputStream out) throws IOException {
+        int window = Math.max(2, pool.getParallelism() * 2);
+        ArrayDeque<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>(window);
+        long lines = 0;
+        echoed = 0;
+
+        try (InputStream in = Files.newInputStream(input)) {
+            LineChunker chunker = new LineChunker(in, chunkSize);
+            if (maxLineLength != Integer.MAX_VALUE) {
+                chunker.cutLinesAfter(LineScanner.keptBytes(maxLineLength), charset);
+            }
+            ByteBuffer block;
+            while ((block = chunker.next()) != null) {
+                if (inFlight.size() == window) {
+                    lines = write(inFlight.poll(), out, lines);
+                }
+                byte[] chunk = block.array();
+                int chunkLength = block.limit();
+                long skipped = chunker.getSkippedCharacters();
+                inFlight.add(pool.submit(() -> transform(chunk, chunkLength, skipped)));
+            }
+
+            while (!inFlight.isEmpty()) {
+                lines = write(inFlight.poll(), out, lines);
+            }
+            return lines;
+        } finally {
+            for (ForkJoinTask<Chunk> task : inFlight) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for the oldest chunk and writes it, then echoes its collected lines
+     */
+    private long write(ForkJoinTask<Chunk> task, OutputStream out, long linesBefore) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = task.join();
+        } catch (CancellationException e) {
+            throw new IOException("Chunk processing was cancelled", e);
+        } catch (RuntimeException e) {
+            throw new IOException("Chunk processing failed: " + e.getMessage(), e);
+        }
+        out.write(chunk.bytes);
+
+        if (echo != null) {
+            long lineNumber = linesBefore;
+            for (String line : chunk.echoLines) {
+                if (lineNumber >= echoLimit) {
+                    break;
+                }
+                echo.echo(++lineNumber, line);
+            }
+            echoed = lineNumber;
+        }
+        return linesBefore + chunk.lineCount;
+    }
+
+    /**
+     * Splits one chunk into lines as BufferedReader.readLine does ("\n", "\r" or "\r\n" end a
+     * line; a final unterminated line still counts) and writes them with the separator
+     * @param skipped Characters the chunker skipped after the chunk's last line
+     */
+    private Chunk transform(byte[] bytes, int length, long skipped) {
+        LineScanner scanner = new LineScanner(bytes, length, charset)
+                .truncateAt(maxLineLength, truncationMarker)
+                .lineSeparator(lineSeparator)
+                .endsInCutLine(skipped);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(length + length / 16);
+        List<String> echoLines = new ArrayList<>();
+        boolean collect = echo != null && echoed < echoLimit;
+        int lineCount = 0;
+
+        try {
+            while (scanner.next()) {
+                scanner.writeLine(output);
+                if (collect && echoLines.size() < echoLimit) {
+                    echoLines.add(scanner.line());
+                }
+                lineCount++;
+            }
+        } catch (IOException e) {
+            // Neither the chunk nor the output touches a stream
+            throw new UncheckedIOException(e);
+        }
+
+        return new Chunk(output.toByteArray(), lineCount, echoLines);
+    }
+
+    /**
+     * A transformed chunk waiting to be written
+     */
+    private static final class Chunk {
+        final byte[] bytes;
+        final int lineCount;
+        final List<String> echoLines;
+
+        Chunk(byte[] bytes, int lineCount, List<String> echoLines) {
+            this.bytes = bytes;
+            this.lineCount = lineCount;
+            this.echoLines = echoLines;
+        }
+    }
+}
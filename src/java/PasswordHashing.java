@@ -0,0 +1,241 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Password hashing and verification on raw bytes.
+ *
+ * Each thread keeps its own SHA-256 MessageDigest and PBKDF2WithHmacSHA256 SecretKeyFactory,
+ * so hashing does not look up a provider per call. PBKDF2 is the JDK's, which encodes the
+ * password as UTF-8. The legacy SHA-256 scheme encodes it into the thread's buffer in the
+ * platform charset, as its stored hashes were made. Password copies made here are zeroed
+ * after every hash; comparisons are constant-time.
+ */
+public final class PasswordHashing {
+
+    /** Length of every hash produced here */
+    public static final int HASH_LENGTH = 32;
+
+    private static final int PASSWORD_BYTES = 4096;
+    private static final int MAX_SALT_BYTES = 256;
+
+    // Legacy hashes used String.getBytes()
+    private static final Charset LEGACY_CHARSET = Charset.defaultCharset();
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    // Hash latency by algorithm, indexed by ordinal
+    private static final LatencyHistogram[] latency = new LatencyHistogram[PasswordKdf.Algorithm.values().length];
+
+    static {
+        for (PasswordKdf.Algorithm algorithm : PasswordKdf.Algorithm.values()) {
+            latency[algorithm.ordinal()] = Metrics.histogram("defend_password_hash_seconds",
+                    "Time to hash or verify one password", "kdf", algorithm.getId());
+        }
+    }
+
+    private PasswordHashing() {
+    }
+
+    /**
+     * Hashes a password into a caller-supplied buffer
+     * @param kdf Algorithm and cost
+     * @param password The password
+     * @param salt Salt bytes
+     * @param saltLength Number of salt bytes used
+     * @param out Receives HASH_LENGTH bytes from outOffset
+     * @param outOffset First destination index
+     */
+    public static void hash(PasswordKdf kdf, CharSequence password, byte[] salt, int saltLength,
+                            byte[] out, int outOffset) {
+        if (kdf.getAlgorithm() == PasswordKdf.Algorithm.SHA256) {
+            hashLegacy(CharBuffer.wrap(password), salt, saltLength, out, outOffset);
+            return;
+        }
+        char[] chars = new char[password.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = password.charAt(i);
+        }
+        try {
+            pbkdf2(kdf, chars, salt, saltLength, out, outOffset);
+        } finally {
+            Arrays.fill(chars, '\0');
+        }
+    }
+
+    /**
+     * Hashes a password held in a char array into a caller-supplied buffer
+     * @param kdf Algorithm and cost
+     * @param password Password characters
+     * @param salt Salt bytes
+     * @param saltLength Number of salt bytes used
+     * @param out Receives HASH_LENGTH bytes from outOffset
+     * @param outOffset First destination index
+     */
+    public static void hash(PasswordKdf kdf, char[] password, byte[] salt, int saltLength,
+                            byte[] out, int outOffset) {
+        if (kdf.getAlgorithm() == PasswordKdf.Algorithm.SHA256) {
+            hashLegacy(CharBuffer.wrap(password), salt, saltLength, out, outOffset);
+        } else {
+            pbkdf2(kdf, password, salt, saltLength, out, outOffset);
+        }
+    }
+
+    /**
+     * Checks a password against a stored hash
+     * @param kdf Algorithm and cost the hash was made with
+     * @param password The password to check
+     * @param salt Stored salt
+     * @param expected Stored hash
+     * @return True if the password produces the stored hash
+     */
+    public static boolean verify(PasswordKdf kdf, CharSequence password, byte[] salt, byte[] expected) {
+        Scratch s = scratch.get();
+        hash(kdf, password, salt, salt.length, s.result, 0);
+        return constantTimeEquals(s.result, expected);
+    }
+
+    /**
+     * Hashes a password given a hexadecimal salt
+     * @param kdf Algorithm and cost
+     * @param password The password
+     * @param saltHex Salt as hexadecimal
+     * @return The hash as hexadecimal
+     */
+    public static String hashHex(PasswordKdf kdf, CharSequence password, String saltHex) {
+        Scratch s = scratch.get();
+        if (saltHex.length() / 2 > MAX_SALT_BYTES) {
+            throw new IllegalArgumentException("Salt longer than " + MAX_SALT_BYTES + " bytes");
+        }
+        int saltLength = HexCodec.decode(saltHex, s.salt, 0);
+        hash(kdf, password, s.salt, saltLength, s.result, 0);
+        return HexCodec.encode(s.result, 0, HASH_LENGTH);
+    }
+
+    /**
+     * Compares two hashes in time that depends only on their lengths
+     * @param a First hash
+     * @param b Second hash
+     * @return True if equal
+     */
+    public static boolean constantTimeEquals(byte[] a, byte[] b) {
+        if (a.length != b.length) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < a.length; i++) {
+            difference |= a[i] ^ b[i];
+        }
+        return difference == 0;
+    }
+
+    // One SHA-256 pass over salt then password
+    private static void hashLegacy(CharBuffer password, byte[] salt, int saltLength, byte[] out, int outOffset) {
+        Scratch s = scratch.get();
+        long start = System.nanoTime();
+        int passwordLength = s.encodeLegacy(password);
+        try {
+            s.digest.update(salt, 0, saltLength);
+            s.digest.update(s.password, 0, passwordLength);
+            s.digest.digest(out, outOffset, HASH_LENGTH);
+            latency[PasswordKdf.Algorithm.SHA256.ordinal()].recordSince(start);
+        } catch (DigestException e) {
+            // Only thrown for a too-small output buffer, which the fixed sizes rule out
+            throw new IllegalStateException("SHA-256 digest failed", e);
+        } finally {
+            s.clear(passwordLength);
+        }
+    }
+
+    // The JDK's PBKDF2WithHmacSHA256, one 32 byte block
+    private static void pbkdf2(PasswordKdf kdf, char[] password, byte[] salt, int saltLength,
+                               byte[] out, int outOffset) {
+        Scratch s = scratch.get();
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(password, Arrays.copyOf(salt, saltLength), kdf.getIterations(), HASH_LENGTH * 8);
+        byte[] derived = null;
+        try {
+            derived = s.pbkdf2.generateSecret(spec).getEncoded();
+            System.arraycopy(derived, 0, out, outOffset, HASH_LENGTH);
+            latency[PasswordKdf.Algorithm.PBKDF2_SHA256.ordinal()].recordSince(start);
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("PBKDF2 failed", e);
+        } finally {
+            spec.clearPassword();
+            if (derived != null) {
+                Arrays.fill(derived, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Per-thread digest, key factory and buffers
+     */
+    private static final class Scratch {
+        final MessageDigest digest;
+        final SecretKeyFactory pbkdf2;
+        byte[] password = new byte[PASSWORD_BYTES];
+        final byte[] salt = new byte[MAX_SALT_BYTES];
+        final byte[] result = new byte[HASH_LENGTH];
+        private CharsetEncoder legacyEncoder;
+
+        Scratch() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+                pbkdf2 = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 or PBKDF2WithHmacSHA256 is not available", e);
+            }
+        }
+
+        // Platform charset with '?' (the charset's replacement) for anything unmappable, like String.getBytes
+        int encodeLegacy(CharBuffer text) {
+            if (legacyEncoder == null) {
+                legacyEncoder = LEGACY_CHARSET.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            CharsetEncoder encoder = legacyEncoder.reset();
+            ByteBuffer out = ByteBuffer.wrap(password);
+            while (true) {
+                CoderResult result = encoder.encode(text, out, true);
+                if (result.isUnderflow()) {
+                    result = encoder.flush(out);
+                }
+                if (result.isUnderflow()) {
+                    return out.position();
+                }
+                int length = out.position();
+                grow(length + (int) Math.ceil(encoder.maxBytesPerChar() * text.remaining()) + 4);
+                out = ByteBuffer.wrap(password);
+                out.position(length);
+            }
+        }
+
+        // Zeroes the encoded password and drops a grown buffer
+        void clear(int passwordLength) {
+            Arrays.fill(password, 0, passwordLength, (byte) 0);
+            if (password.length > PASSWORD_BYTES) {
+                password = new byte[PASSWORD_BYTES];
+            }
+        }
+
+        // Copies into a larger buffer and zeroes the old one, which still holds the start of the password
+        private void grow(int minLength) {
+            byte[] grown = Arrays.copyOf(password, Math.max(minLength, password.length * 2));
+            Arrays.fill(password, (byte) 0);
+            password = grown;
+        }
+    }
+}
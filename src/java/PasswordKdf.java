@@ -0,0 +1,288 @@
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Password key derivation: an algorithm plus its cost parameter.
+ *
+ * The parameters are stored next to every hash (see StoredCredential), so a hash keeps
+ * verifying after the host is recalibrated. The parameters used for new hashes come from
+ * system properties:
+ *   defend.kdf               pbkdf2-sha256 (default) or sha256 (the original single salted pass)
+ *   defend.kdf.iterations    fixed PBKDF2 iteration count; skips calibration
+ *   defend.kdf.targetMillis  per-hash latency budget used by calibration (default 50)
+ *   defend.kdf.concurrency   hashes expected to run at once during calibration (default 1)
+ * A value that cannot be used is logged to the error log and its default used instead.
+ */
+public final class PasswordKdf {
+
+    /**
+     * Supported derivation functions
+     */
+    public enum Algorithm {
+        /** One SHA-256 pass over salt then password, as originally stored in password.hash */
+        SHA256("sha256"),
+        /** PBKDF2 with HMAC-SHA256, computed by the JDK's PBKDF2WithHmacSHA256 */
+        PBKDF2_SHA256("pbkdf2-sha256");
+
+        private final String id;
+
+        Algorithm(String id) {
+            this.id = id;
+        }
+
+        /**
+         * @return The identifier written to the password file
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * @param id An identifier read from the password file
+         * @return The matching algorithm
+         */
+        public static Algorithm fromId(String id) {
+            for (Algorithm algorithm : values()) {
+                if (algorithm.id.equals(id)) {
+                    return algorithm;
+                }
+            }
+            throw new IllegalArgumentException("Unknown password hash algorithm: " + id);
+        }
+    }
+
+    private static final int MIN_ITERATIONS = 10_000;
+    private static final int CALIBRATION_PROBE_ITERATIONS = 20_000;
+
+    private static final PasswordKdf LEGACY = new PasswordKdf(Algorithm.SHA256, 1);
+
+    private static CompletableFuture<PasswordKdf> configured;
+
+    private final Algorithm algorithm;
+    private final int iterations;
+
+    private PasswordKdf(Algorithm algorithm, int iterations) {
+        this.algorithm = algorithm;
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return The original single-pass SHA-256 scheme
+     */
+    public static PasswordKdf legacy() {
+        return LEGACY;
+    }
+
+    /**
+     * @param iterations PBKDF2 iteration count
+     * @return PBKDF2-HMAC-SHA256 with the given cost
+     */
+    public static PasswordKdf pbkdf2(int iterations) {
+        if (iterations < 1) {
+            throw new IllegalArgumentException("Iteration count must be positive: " + iterations);
+        }
+        return new PasswordKdf(Algorithm.PBKDF2_SHA256, iterations);
+    }
+
+    /**
+     * @param algorithmId Algorithm identifier
+     * @param iterations Iteration count as stored
+     * @return The parameters described
+     */
+    public static PasswordKdf of(String algorithmId, int iterations) {
+        Algorithm algorithm = Algorithm.fromId(algorithmId);
+        return algorithm == Algorithm.SHA256 ? LEGACY : pbkdf2(iterations);
+    }
+
+    /**
+     * Starts choosing the parameters for new hashes on a background thread, so calibration
+     * overlaps with the prompts that come before the password
+     */
+    public static synchronized void configureInBackground() {
+        if (configured == null) {
+            configured = CompletableFuture.supplyAsync(PasswordKdf::fromSystemProperties);
+        }
+    }
+
+    /**
+     * @return The parameters for new hashes, calibrating on first use
+     */
+    public static PasswordKdf current() {
+        configureInBackground();
+        try {
+            return configured.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while calibrating password hashing", e);
+        } catch (ExecutionException e) {
+            ErrorLogger.logError("Password hashing calibration failed, using " + MIN_ITERATIONS + " iterations", e);
+            return pbkdf2(MIN_ITERATIONS);
+        }
+    }
+
+    private static PasswordKdf fromSystemProperties() {
+        Algorithm algorithm = Algorithm.PBKDF2_SHA256;
+        String id = System.getProperty("defend.kdf");
+        if (id != null) {
+            try {
+                algorithm = Algorithm.fromId(id.trim());
+            } catch (IllegalArgumentException e) {
+                ErrorLogger.logError("Invalid defend.kdf, using " + algorithm.getId() + ": " + id);
+            }
+        }
+        if (algorithm == Algorithm.SHA256) {
+            return LEGACY;
+        }
+
+        long iterations = positiveProperty("defend.kdf.iterations", -1, "calibrating");
+        if (iterations > 0) {
+            return pbkdf2((int) iterations);
+        }
+
+        long targetMillis = positiveProperty("defend.kdf.targetMillis", 50, "using 50");
+        int concurrency = (int) positiveProperty("defend.kdf.concurrency", 1, "using 1");
+        try {
+            return calibrate(targetMillis * 1_000_000L, concurrency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ErrorLogger.logError("Password hashing calibration failed, using " + MIN_ITERATIONS + " iterations", e);
+            return pbkdf2(MIN_ITERATIONS);
+        }
+    }
+
+    /**
+     * Reads a whole number property between 1 and Integer.MAX_VALUE
+     * @param fallback What happens instead, for the error log entry
+     * @return The value, or defaultValue if the property is not set or not usable
+     */
+    private static long positiveProperty(String name, long defaultValue, String fallback) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // Logged below
+        }
+        ErrorLogger.logError("Invalid " + name + ", " + fallback + ": " + value);
+        return defaultValue;
+    }
+
+    /**
+     * Measures PBKDF2 on this host with the given number of hashes running at once and picks
+     * the iteration count that fits the latency budget
+     * @param targetNanos Wanted latency of one hash
+     * @param concurrency Number of hashes computed simultaneously while measuring
+     * @return PBKDF2 parameters, never below the minimum iteration count
+     * @throws InterruptedException If interrupted while measuring
+     */
+    public static PasswordKdf calibrate(long targetNanos, int concurrency) throws InterruptedException {
+        PasswordKdf probe = pbkdf2(CALIBRATION_PROBE_ITERATIONS);
+        byte[] salt = new byte[16];
+
+        // Warm up the provider and the JIT before timing
+        probe.derive("calibration".toCharArray(), salt);
+        probe.derive("calibration".toCharArray(), salt);
+
+        long[] slowest = new long[1];
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[Math.max(1, concurrency)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                    long best = Long.MAX_VALUE;
+                    for (int round = 0; round < 3; round++) {
+                        long begin = System.nanoTime();
+                        probe.derive("calibration".toCharArray(), salt);
+                        best = Math.min(best, System.nanoTime() - begin);
+                    }
+                    synchronized (slowest) {
+                        slowest[0] = Math.max(slowest[0], best);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "kdf-calibration-" + i);
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long nanosPerIteration = Math.max(1, slowest[0] / CALIBRATION_PROBE_ITERATIONS);
+        long iterations = targetNanos / nanosPerIteration;
+        // Round down to a whole thousand so the stored value reads cleanly
+        iterations = Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, iterations / 1000 * 1000));
+        return pbkdf2((int) iterations);
+    }
+
+    /**
+     * @return The algorithm
+     */
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return The iteration count (1 for SHA256)
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password
+     * @param password The password
+     * @param saltHex The salt as hexadecimal
+     * @return The hash as hexadecimal
+     */
+    public String hash(String password, String saltHex) {
+        return PasswordHashing.hashHex(this, password, saltHex);
+    }
+
+    /**
+     * Derives the raw hash bytes
+     * @param password The password characters
+     * @param salt The salt
+     * @return 32 hash bytes
+     */
+    public byte[] derive(char[] password, byte[] salt) {
+        byte[] hash = new byte[PasswordHashing.HASH_LENGTH];
+        PasswordHashing.hash(this, password, salt, salt.length, hash, 0);
+        return hash;
+    }
+
+    /**
+     * @return The "algorithm:iterations" form stored in front of each hash
+     */
+    public String encode() {
+        return algorithm.getId() + ":" + iterations;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PasswordKdf)) {
+            return false;
+        }
+        PasswordKdf kdf = (PasswordKdf) other;
+        return algorithm == kdf.algorithm && iterations == kdf.iterations;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(new Object[] {algorithm, iterations});
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -1,15 +1,5 @@
 import java.util.Scanner;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.nio.charset.StandardCharsets;
 
 /**
  * Handles password validation, hashing, and verification
@@ -18,8 +8,8 @@ public class PasswordManager {
     // Constants for password validation
     private static final int MIN_PASSWORD_LENGTH = 8;
     private static final int MAX_PASSWORD_LENGTH = 30;
-    private static final String PASSWORD_PATTERN = "^(?=.*[0-9])(?=.*[a-z])(?=.*[A-Z])(?=.*[@#$%^&+=!])(?=\\S+$).{8,}$";
-    private static final String PASSWORD_FILE = "password.hash";
+    // The same rule as the prompts and batch mode
+    private static final ValidationRule PASSWORD_RULE = ValidationRules.PASSWORD;
 
     /**
      * Gets a valid password from the user, hashes it, and verifies it
@@ -27,6 +17,16 @@ public class PasswordManager {
      * @return The hash of the validated password
      */
     public static String getValidPasswordAndHash(Scanner scanner) {
+        return getValidPasswordAndHash(scanner, CredentialStore.DEFAULT_USER);
+    }
+
+    /**
+     * Gets a valid password for a user, hashes it, saves it under the user's key, and verifies it
+     * @param scanner The Scanner object for input
+     * @param userKey The key the credential is stored under (see CredentialStore.userKey)
+     * @return The hash of the validated password
+     */
+    public static String getValidPasswordAndHash(Scanner scanner, String userKey) {
         String password = "";
         String passwordHash = null;
         String salt = generateSalt();
@@ -38,7 +38,7 @@ public class PasswordManager {
         System.out.println("2. Must contain at least one digit (0-9)");
         System.out.println("3. Must contain at least one lowercase letter (a-z)");
         System.out.println("4. Must contain at least one uppercase letter (A-Z)");
-        System.out.println("5. Must contain at least one special character (@#$%^&+=!)");
+        System.out.println("5. Must contain at least one special character (!@#$%^&*()-_=+)");
         System.out.println("6. No whitespace allowed");
 
         // First password entry and validation
@@ -46,24 +46,24 @@ public class PasswordManager {
             System.out.print("\nEnter your password: ");
             password = scanner.nextLine();
 
+            ValidationResult result = PASSWORD_RULE.check(password);
+
             // Check if password is empty
-            if (password.isEmpty()) {
+            if (result.getViolation() == ValidationResult.Violation.EMPTY) {
                 System.out.println("Error: Password cannot be empty. Please try again.");
                 continue;
             }
 
             // Check length
-            if (password.length() < MIN_PASSWORD_LENGTH || password.length() > MAX_PASSWORD_LENGTH) {
+            if (result.getViolation() == ValidationResult.Violation.TOO_SHORT
+                    || result.getViolation() == ValidationResult.Violation.TOO_LONG) {
                 System.out.println("Error: Password must be between " + MIN_PASSWORD_LENGTH +
                         " and " + MAX_PASSWORD_LENGTH + " characters. Please try again.");
                 continue;
             }
 
-            // Check password pattern
-            Pattern pattern = Pattern.compile(PASSWORD_PATTERN);
-            Matcher matcher = pattern.matcher(password);
-
-            if (!matcher.matches()) {
+            // Check password requirements
+            if (!result.isValid()) {
                 System.out.println("Error: Password does not meet the requirements. Please try again.");
                 continue;
             }
@@ -72,15 +72,16 @@ public class PasswordManager {
         }
 
         // Hash the password with salt
-        passwordHash = hashPassword(password, salt);
+        PasswordKdf kdf = PasswordKdf.current();
+        passwordHash = hashPassword(password, salt, kdf);
 
-        // Save the hash and salt to file
+        // Save the hash, salt and hashing parameters to file
         try {
-            savePasswordHash(passwordHash, salt);
+            savePasswordHash(userKey, new StoredCredential(kdf, salt, passwordHash));
             System.out.println("Password hash saved successfully.");
         } catch (IOException e) {
-            ErrorLogger.logError("Could not save password hash to file: " + e.getMessage());
-            System.out.println("Warning: Could not save password hash to file. See error log for details.");
+            ErrorLogger.logError("Could not save password hash to the credential store: " + e.getMessage());
+            System.out.println("Warning: Could not save password hash. See error log for details.");
         }
 
         // Second password entry for verification
@@ -90,26 +91,22 @@ public class PasswordManager {
             String passwordVerify = scanner.nextLine();
 
             try {
-                // Retrieve saved hash and salt
-                String[] savedHashData = retrievePasswordHash();
-                String savedSalt = savedHashData[0];
-                String savedHash = savedHashData[1];
-
-                // Hash the verification password with the same salt
-                String verifyHash = hashPassword(passwordVerify, savedSalt);
+                // Retrieve saved hash, salt and hashing parameters
+                StoredCredential saved = retrievePasswordHash(userKey);
 
-                // Compare the hashes
-                if (savedHash.equals(verifyHash)) {
+                // Hash the verification password with the same salt and parameters
+                // and compare the raw hashes in constant time
+                if (saved.matches(passwordVerify)) {
                     System.out.println("Password verification successful!");
                     verified = true;
                 } else {
                     System.out.println("Error: Passwords do not match. Please try again.");
                 }
             } catch (IOException e) {
-                ErrorLogger.logError("Could not retrieve password hash from file: " + e.getMessage());
+                ErrorLogger.logError("Could not retrieve password hash from the credential store: " + e.getMessage());
                 System.out.println("Error: Could not verify password. See error log for details.");
                 // Return to the first password entry
-                return getValidPasswordAndHash(scanner);
+                return getValidPasswordAndHash(scanner, userKey);
             }
         }
 
@@ -121,88 +118,61 @@ public class PasswordManager {
      * @return A random salt as a hexadecimal string
      */
     private static String generateSalt() {
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        return bytesToHex(salt);
+        return SaltProvider.shared().nextHex();
     }
 
     /**
-     * Hashes a password with a salt using SHA-256
+     * Hashes a password with a salt using the current hashing parameters
      * @param password The password to hash
      * @param salt The salt to use
      * @return The hashed password
      */
-    private static String hashPassword(String password, String salt) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(hexToBytes(salt));
-            byte[] hashedPassword = md.digest(password.getBytes(StandardCharsets.UTF_8));
-            return bytesToHex(hashedPassword);
-        } catch (NoSuchAlgorithmException e) {
-            ErrorLogger.logError("Hashing algorithm not available: " + e.getMessage());
-            System.out.println("Error: Hashing algorithm not available.");
-            return null;
-        }
+    static String hashPassword(String password, String salt) {
+        return hashPassword(password, salt, PasswordKdf.current());
     }
 
     /**
-     * Saves the password hash and salt to a file
-     * @param hash The password hash
-     * @param salt The salt used
-     * @throws IOException If an I/O error occurs
+     * Hashes a password with a salt using the given hashing parameters
+     * @param password The password to hash
+     * @param salt The salt to use
+     * @param kdf The key derivation function and its cost
+     * @return The hashed password
      */
-    private static void savePasswordHash(String hash, String salt) throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(PASSWORD_FILE))) {
-            writer.write(salt + ":" + hash);
-        }
+    static String hashPassword(String password, String salt, PasswordKdf kdf) {
+        return kdf.hash(password, salt);
     }
 
     /**
-     * Retrieves the password hash and salt from the file
-     * @return Array containing [salt, hash]
+     * Saves the password hash, salt and hashing parameters to the credential store
+     * @param userKey The user the credential belongs to
+     * @param credential The credential to save
      * @throws IOException If an I/O error occurs
      */
-    private static String[] retrievePasswordHash() throws IOException {
-        try (BufferedReader reader = new BufferedReader(new FileReader(PASSWORD_FILE))) {
-            String line = reader.readLine();
-            if (line != null) {
-                String[] parts = line.split(":");
-                if (parts.length == 2) {
-                    return parts;
-                }
-            }
-            throw new IOException("Invalid password hash file format");
-        }
+    private static void savePasswordHash(String userKey, StoredCredential credential) throws IOException {
+        CredentialCache.shared().save(userKey, credential);
     }
 
     /**
-     * Converts a byte array to a hexadecimal string
-     * @param bytes The byte array
-     * @return The hexadecimal string
+     * Retrieves the password hash, salt and hashing parameters, from memory when the
+     * credential was used recently and from the credential store otherwise
+     * @param userKey The user whose credential is wanted
+     * @return The saved credential
+     * @throws IOException If an I/O error occurs or the user has no saved credential
      */
-    private static String bytesToHex(byte[] bytes) {
-        StringBuilder hexString = new StringBuilder(2 * bytes.length);
-        for (byte b : bytes) {
-            String hex = Integer.toHexString(0xff & b);
-            if (hex.length() == 1) {
-                hexString.append('0');
-            }
-            hexString.append(hex);
+    private static StoredCredential retrievePasswordHash(String userKey) throws IOException {
+        StoredCredential credential = CredentialCache.shared().get(userKey);
+        if (credential == null) {
+            throw new IOException("No saved password hash for " + userKey.replace('\0', ' '));
         }
-        return hexString.toString();
+        return credential;
     }
 
     /**
-     * Converts a hexadecimal string to a byte array
-     * @param hex The hexadecimal string
-     * @return The byte array
+     * Converts a byte array to a hexadecimal string
+     * @param bytes The byte array
+     * @return The hexadecimal string
      */
-    private static byte[] hexToBytes(String hex) {
-        byte[] bytes = new byte[hex.length() / 2];
-        for (int i = 0; i < bytes.length; i++) {
-            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
-        }
-        return bytes;
+    static String bytesToHex(byte[] bytes) {
+        return HexCodec.encode(bytes);
     }
 }
\ No newline at end of file
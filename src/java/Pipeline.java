@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs submissions through a series of stages: acquire, then each stage in turn, then report.
+ *
+ * Every stage has its own worker threads and reads from a bounded queue, so a slow stage makes
+ * the ones before it wait instead of piling up work in memory: a put into a full queue blocks,
+ * and the acquiring thread stops reading input once queueCapacity submissions per queue are in
+ * flight. Stages may finish submissions out of order; the caller's thread hands them to the report
+ * sink in input order. The same stages run one after another on the caller's thread through
+ * runInline, which is how single submissions (the prompts, the service) use them.
+ *
+ * Each stage's time per submission is recorded in defend_pipeline_stage_seconds and its queue
+ * length in defend_pipeline_queue_length, so stages can be sized from the metrics.
+ */
+public class Pipeline {
+
+    /**
+     * One step applied to every submission that is still in progress
+     */
+    public interface Stage {
+        /**
+         * @return Short name used in thread names and metric labels
+         */
+        String getName();
+
+        /**
+         * Does the work, recording a rejection or failure on the submission if there is one
+         * @param submission The submission; not finished yet
+         * @throws Exception Unexpected errors; the submission is then failed
+         */
+        void apply(Submission submission) throws Exception;
+    }
+
+    /**
+     * Supplies submissions to the acquire stage
+     */
+    public interface Source {
+        /**
+         * @return The next submission, or null at the end of the input
+         * @throws IOException If the input cannot be read; the run stops
+         */
+        Submission next() throws IOException;
+    }
+
+    /**
+     * Receives finished submissions in input order
+     */
+    public interface Sink {
+        void report(Submission submission) throws IOException;
+    }
+
+    // Tells a worker its upstream is done
+    private static final Submission END = new Submission(0, null);
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final List<Integer> workers = new ArrayList<>();
+    // Each stage's latency histogram, looked up once when the stage is added
+    private final Map<Stage, LatencyHistogram> stageLatency = new HashMap<>();
+    private final int queueCapacity;
+
+    private volatile boolean cancelled;
+    // First error from the source or a stage worker in the current run
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * @param queueCapacity Submissions each queue between two stages holds
+     */
+    public Pipeline(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Appends a stage
+     * @param stage The stage
+     * @param threads Worker threads for it
+     * @return This pipeline
+     */
+    public Pipeline stage(Stage stage, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Stage " + stage.getName() + " needs at least one thread");
+        }
+        stages.add(stage);
+        workers.add(threads);
+        stageLatency.put(stage, Metrics.histogram("defend_pipeline_stage_seconds",
+                "Time each pipeline stage spends per submission", "stage", stage.getName()));
+        return this;
+    }
+
+    /**
+     * Runs one submission through every stage on the calling thread
+     * @param submission The submission
+     * @return The same submission, finished unless no stage finished it
+     */
+    public Submission runInline(Submission submission) {
+        for (Stage stage : stages) {
+            applyStage(stage, submission);
+        }
+        return submission;
+    }
+
+    /**
+     * Runs every submission from the source through the stages and reports them in order
+     * @param source Supplies the submissions; read on a separate thread
+     * @param sink Receives finished submissions on the calling thread
+     * @return Number of submissions reported
+     * @throws IOException If the source, a stage worker or the sink fails, after the pipeline has
+     *         drained; errors other than an IOException are its cause
+     */
+    public long run(Source source, Sink sink) throws IOException {
+        List<BlockingQueue<Submission>> queues = new ArrayList<>();
+        for (int i = 0; i <= stages.size(); i++) {
+            BlockingQueue<Submission> queue = new ArrayBlockingQueue<>(queueCapacity);
+            queues.add(queue);
+            String name = i < stages.size() ? stages.get(i).getName() : "report";
+            Metrics.gauge("defend_pipeline_queue_length", "Submissions waiting for each pipeline stage",
+                    queue::size, "stage", name);
+        }
+        // Bounds the submissions between the source and the sink, including the ones the
+        // report is holding back until an earlier one finishes
+        Semaphore window = new Semaphore(queueCapacity * queues.size());
+        cancelled = false;
+        failure.set(null);
+
+        List<Thread> threads = new ArrayList<>();
+        Thread acquire = new Thread(() -> acquire(source, queues.get(0), window), "pipeline-acquire");
+        threads.add(acquire);
+        for (int i = 0; i < stages.size(); i++) {
+            Stage stage = stages.get(i);
+            AtomicInteger running = new AtomicInteger(workers.get(i));
+            int downstream = i + 1 < stages.size() ? workers.get(i + 1) : 1;
+            BlockingQueue<Submission> in = queues.get(i);
+            BlockingQueue<Submission> out = queues.get(i + 1);
+            for (int n = 0; n < workers.get(i); n++) {
+                threads.add(new Thread(() -> work(stage, in, out, running, downstream),
+                        "pipeline-" + stage.getName() + "-" + n));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        // Report stage: hold back submissions that overtook an earlier one
+        BlockingQueue<Submission> finished = queues.get(stages.size());
+        Map<Long, Submission> waiting = new HashMap<>();
+        long next = 0;
+        IOException sinkError = null;
+        try {
+            Submission submission;
+            while ((submission = finished.take()) != END) {
+                waiting.put(submission.sequence, submission);
+                while ((submission = waiting.remove(next)) != null) {
+                    next++;
+                    window.release();
+                    if (sinkError == null) {
+                        try {
+                            sink.report(submission);
+                        } catch (IOException e) {
+                            // Keep draining so no stage stays blocked on a full queue
+                            sinkError = e;
+                            cancelled = true;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelled = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipeline interrupted", e);
+        }
+
+        if (sinkError != null) {
+            throw sinkError;
+        }
+        Throwable error = failure.get();
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error != null) {
+            throw new IOException("Pipeline failed: " + error, error);
+        }
+        return next;
+    }
+
+    // Records the first error and stops reading input; what is in flight still drains
+    private void fail(Throwable error) {
+        failure.compareAndSet(null, error);
+        cancelled = true;
+    }
+
+    private void acquire(Source source, BlockingQueue<Submission> first, Semaphore window) {
+        try {
+            long sequence = 0;
+            while (!cancelled) {
+                window.acquire();
+                Submission submission = source.next();
+                if (submission == null) {
+                    break;
+                }
+                submission.sequence = sequence++;
+                first.put(submission);
+            }
+        } catch (InterruptedException e) {
+            // The run was interrupted; nobody is waiting for the end marker
+            return;
+        } catch (Throwable e) {
+            fail(e);
+        }
+        // Also after a failure, or the report would wait for the end forever
+        putEnd(first, workers.get(0));
+    }
+
+    private void work(Stage stage, BlockingQueue<Submission> in, BlockingQueue<Submission> out,
+                      AtomicInteger running, int downstream) {
+        try {
+            Submission submission;
+            while ((submission = in.take()) != END) {
+                try {
+                    applyStage(stage, submission);
+                } catch (Throwable e) {
+                    // applyStage fails the submission for an Exception; anything else stops the run
+                    ErrorLogger.logError("Pipeline " + stage.getName() + " worker error for record " + submission.lineNumber);
+                    fail(e);
+                    submission.fail(stage.getName() + " error: " + e);
+                }
+                // Passed on even when failed, so the report is not left waiting for it
+                out.put(submission);
+            }
+        } catch (InterruptedException e) {
+            // The run was interrupted
+            return;
+        }
+        // The last worker of a stage passes the end on to every worker of the next one
+        if (running.decrementAndGet() == 0) {
+            putEnd(out, downstream);
+        }
+    }
+
+    private static void putEnd(BlockingQueue<Submission> queue, int workers) {
+        try {
+            for (int i = 0; i < workers; i++) {
+                queue.put(END);
+            }
+        } catch (InterruptedException e) {
+            // The run was interrupted; nobody is waiting for the end marker
+        }
+    }
+
+    private void applyStage(Stage stage, Submission submission) {
+        if (submission.isFinished()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            stage.apply(submission);
+        } catch (Exception e) {
+            ErrorLogger.logError("Pipeline " + stage.getName() + " error for record " + submission.lineNumber, e);
+            submission.fail(stage.getName() + " error: " + e.getMessage());
+        }
+        stageLatency.get(stage).recordSince(start);
+    }
+}
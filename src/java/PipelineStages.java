@@ -0,0 +1,163 @@
+import java.io.IOException;
+
+/**
+ * The validate, hash, save and process stages shared by the prompts, batch mode and the service
+ */
+public final class PipelineStages {
+
+    /** Runs the DefendYourCodeJava checks on the raw fields and resolves the input file */
+    public static final Pipeline.Stage VALIDATE = stage("validate", PipelineStages::validate);
+
+    /** Hashes the password with a fresh salt and the current hashing parameters */
+    public static final Pipeline.Stage HASH = stage("hash", PipelineStages::hash);
+
+    /** Saves the credential under the user's key; the prompts' users sign in with it later */
+    public static final Pipeline.Stage SAVE = stage("save", PipelineStages::save);
+
+    /** Writes the report and accepts the submission */
+    public static final Pipeline.Stage PROCESS = stage("process", PipelineStages::process);
+
+    private PipelineStages() {
+    }
+
+    /**
+     * The standard stages with their worker counts from the system properties
+     * defend.pipeline.validateThreads, defend.pipeline.hashThreads and defend.pipeline.processThreads,
+     * and queues of defend.pipeline.queueCapacity submissions (64 by default)
+     * @param threads Worker count for any stage without its own property
+     * @return The pipeline
+     */
+    public static Pipeline standard(int threads) {
+        return new Pipeline(Integer.getInteger("defend.pipeline.queueCapacity", 64))
+                .stage(VALIDATE, Integer.getInteger("defend.pipeline.validateThreads", threads))
+                .stage(HASH, Integer.getInteger("defend.pipeline.hashThreads", threads))
+                .stage(PROCESS, Integer.getInteger("defend.pipeline.processThreads", threads));
+    }
+
+    /**
+     * The stages after the prompts, which check each value as it is typed: hash, save and
+     * process, for runInline on the prompting thread
+     * @return The pipeline
+     */
+    public static Pipeline prompts() {
+        return new Pipeline(1)
+                .stage(HASH, 1)
+                .stage(SAVE, 1)
+                .stage(PROCESS, 1);
+    }
+
+    private static void validate(Submission submission) {
+        String missing = submission.firstMissingField();
+        if (missing != null) {
+            String errorMsg = "Batch record " + submission.lineNumber + " validation error: Missing field " + missing;
+            ErrorLogger.logError(errorMsg);
+            submission.reject(errorMsg);
+            return;
+        }
+
+        String firstName = submission.get("firstName").trim();
+        String lastName = submission.get("lastName").trim();
+        String inputFile = submission.get("inputFile").trim();
+        String outputFile = submission.get("outputFile").trim();
+        String password = submission.get("password");
+
+        DefendYourCodeJava.Rejection rejection = DefendYourCodeJava.checkName(firstName, "first");
+        if (rejection == null) {
+            rejection = DefendYourCodeJava.checkName(lastName, "last");
+        }
+
+        int num1 = 0;
+        int num2 = 0;
+        if (rejection == null) {
+            String value = submission.get("num1").trim();
+            try {
+                num1 = Integer.parseInt(value);
+                DefendYourCodeJava.counted("integer", null);
+            } catch (NumberFormatException e) {
+                rejection = DefendYourCodeJava.invalidInteger("first", value);
+            }
+        }
+        if (rejection == null) {
+            String value = submission.get("num2").trim();
+            try {
+                num2 = Integer.parseInt(value);
+                DefendYourCodeJava.counted("integer", null);
+            } catch (NumberFormatException e) {
+                rejection = DefendYourCodeJava.invalidInteger("second", value);
+            }
+        }
+
+        if (rejection == null) {
+            rejection = DefendYourCodeJava.checkFileName(inputFile, "input");
+        }
+        if (rejection == null) {
+            rejection = DefendYourCodeJava.checkFileName(outputFile, "output");
+        }
+        if (rejection == null) {
+            rejection = DefendYourCodeJava.checkPassword(password);
+        }
+
+        if (rejection != null) {
+            rejection.log();
+            submission.reject(rejection.logMessage);
+            return;
+        }
+
+        submission.firstName = firstName;
+        submission.lastName = lastName;
+        submission.num1 = num1;
+        submission.num2 = num2;
+        submission.inputFile = DefendYourCodeJava.resolveInputFile(inputFile);
+        submission.outputFile = outputFile;
+        submission.password = password;
+    }
+
+    private static void hash(Submission submission) {
+        PasswordKdf kdf = PasswordKdf.current();
+        String salt = DefendYourCodeJava.generateSalt();
+        String hash = DefendYourCodeJava.hashPassword(submission.password, salt, kdf);
+        submission.credential = new StoredCredential(kdf, salt, hash);
+        submission.password = null;
+    }
+
+    private static void save(Submission submission) {
+        try {
+            CredentialCache.shared().save(CredentialStore.userKey(submission.firstName, submission.lastName),
+                    submission.credential);
+        } catch (IOException e) {
+            ErrorLogger.logError("Error saving password", e);
+            submission.fail("Error saving password: " + e.getMessage());
+        }
+    }
+
+    private static void process(Submission submission) {
+        try {
+            FileProcessor.writeReport(FileProcessor.ReportStyle.PROMPT, submission.firstName, submission.lastName,
+                    submission.num1, submission.num2, submission.inputFile, submission.outputFile, submission.echo,
+                    ProcessingOptions.defaults());
+        } catch (IOException e) {
+            ErrorLogger.logError("Batch record " + submission.lineNumber + " file processing error", e);
+            submission.fail("File processing error: " + e.getMessage());
+            return;
+        }
+        submission.accept(submission.outputFile);
+    }
+
+    private interface Step {
+        void apply(Submission submission) throws Exception;
+    }
+
+    private static Pipeline.Stage stage(String name, Step step) {
+        return new Pipeline.Stage() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void apply(Submission submission) throws Exception {
+                step.apply(submission);
+            }
+        };
+    }
+}
@@ -0,0 +1,368 @@
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options controlling how FileProcessor copies the input file into the report
+ */
+public class ProcessingOptions {
+
+    /**
+     * How the input file body is moved into the output file
+     */
+    public enum CopyMode {
+        /** Split into lines and rewrite each with the report's line separator, echoing each line to the console */
+        LINES,
+        /** Copy the raw bytes with FileChannel.transferTo, no per-line work */
+        STREAMING,
+        /** Process newline-aligned chunks on a ForkJoinPool and write them back in order */
+        PARALLEL
+    }
+
+    /**
+     * Layout of the report file, see ReportWriter
+     */
+    public enum OutputFormat {
+        /** The human-readable report */
+        TEXT,
+        /** A JSON header record, then one JSON record per input line */
+        JSONL,
+        /** Length-prefixed binary records */
+        BINARY
+    }
+
+    // Inputs at or above this size use STREAMING when the mode is left on automatic
+    private static final long DEFAULT_STREAMING_THRESHOLD = 10L * 1024 * 1024;
+
+    // Inputs at or above this size are split across cores when lines must be transformed
+    private static final long DEFAULT_PARALLEL_THRESHOLD = 4L * 1024 * 1024;
+    private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    private static final long DEFAULT_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+
+    private CopyMode copyMode;
+    private long streamingThreshold = Long.getLong("defend.streamingThreshold", DEFAULT_STREAMING_THRESHOLD);
+    private long parallelThreshold = Long.getLong("defend.parallelThreshold", DEFAULT_PARALLEL_THRESHOLD);
+    private int chunkSize = Integer.getInteger("defend.parallelChunkSize", DEFAULT_CHUNK_SIZE);
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private String echo = System.getProperty("defend.echo");
+    private boolean aggregate = Boolean.getBoolean("defend.aggregate");
+    private OutputFormat outputFormat = outputFormatProperty();
+    private boolean gzip = Boolean.getBoolean("defend.gzip");
+    private boolean resume = Boolean.getBoolean("defend.resume");
+    private boolean follow = Boolean.getBoolean("defend.follow");
+    private long followIntervalMillis = Long.getLong("defend.followIntervalMillis", 1000);
+    private long followIdleMillis = Long.getLong("defend.followIdleMillis", 0);
+    private String cacheDirectory = System.getProperty("defend.cacheDir");
+    private long cacheMaxBytes = Long.getLong("defend.cacheMaxBytes", DEFAULT_CACHE_MAX_BYTES);
+    private Charset charset = charsetProperty();
+
+    /**
+     * @return Options that pick the copy mode from the input file size
+     */
+    public static ProcessingOptions defaults() {
+        return new ProcessingOptions();
+    }
+
+    /**
+     * Forces a copy mode instead of choosing one by input size
+     * @param copyMode The copy mode to use
+     * @return These options
+     */
+    public ProcessingOptions setCopyMode(CopyMode copyMode) {
+        this.copyMode = copyMode;
+        return this;
+    }
+
+    /**
+     * Sets the input size at which the automatic choice switches to STREAMING
+     * @param streamingThreshold Size in bytes
+     * @return These options
+     */
+    public ProcessingOptions setStreamingThreshold(long streamingThreshold) {
+        this.streamingThreshold = streamingThreshold;
+        return this;
+    }
+
+    /**
+     * Sets the input size at which line-transforming copies switch to PARALLEL
+     * @param parallelThreshold Size in bytes
+     * @return These options
+     */
+    public ProcessingOptions setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+        return this;
+    }
+
+    /**
+     * Sets the size of the chunks handed to the pool in PARALLEL mode
+     * @param chunkSize Chunk size in bytes
+     * @return These options
+     */
+    public ProcessingOptions setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    /**
+     * Sets the pool used in PARALLEL mode
+     * @param pool The pool, the common pool by default
+     * @return These options
+     */
+    public ProcessingOptions setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * Chooses how input lines are echoed to the console, see EchoSink
+     * @param echo off, head:N, sample:N, progress[:MILLIS] or full; null for the caller's default
+     * @return These options
+     */
+    public ProcessingOptions setEcho(String echo) {
+        this.echo = echo;
+        return this;
+    }
+
+    public String getEcho() {
+        return echo;
+    }
+
+    /**
+     * Appends per-column integer statistics of the input (count, sum, product, min, max, mean)
+     * to the report, see NumericAggregator
+     * @param aggregate True to add the statistics
+     * @return These options
+     */
+    public ProcessingOptions setAggregate(boolean aggregate) {
+        this.aggregate = aggregate;
+        return this;
+    }
+
+    public boolean isAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Chooses the layout of the report file
+     * @param outputFormat TEXT by default, or -Ddefend.outputFormat=text|jsonl|binary
+     * @return These options
+     */
+    public ProcessingOptions setOutputFormat(OutputFormat outputFormat) {
+        this.outputFormat = outputFormat;
+        return this;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Compresses the report file with GZIP as it is written
+     * @param gzip True to compress, or -Ddefend.gzip=true
+     * @return These options
+     */
+    public ProcessingOptions setGzip(boolean gzip) {
+        this.gzip = gzip;
+        return this;
+    }
+
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * Appends only the input added since the last run to an existing report, using the checkpoint
+     * kept next to it, see IncrementalCopy. Applies to plain text reports without aggregates; others
+     * are written in full.
+     * @param resume True to resume, or -Ddefend.resume=true
+     * @return These options
+     */
+    public ProcessingOptions setResume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    /**
+     * After the report is written (or resumed), keeps appending to it as the input grows, until
+     * interrupted or idle for the follow idle time. Implies resume.
+     * @param follow True to follow, or -Ddefend.follow=true
+     * @return These options
+     */
+    public ProcessingOptions setFollow(boolean follow) {
+        this.follow = follow;
+        return this;
+    }
+
+    public boolean isFollow() {
+        return follow;
+    }
+
+    /**
+     * @param followIntervalMillis Time between checks of a followed input, 1000 by default
+     *                             (-Ddefend.followIntervalMillis)
+     * @return These options
+     */
+    public ProcessingOptions setFollowIntervalMillis(long followIntervalMillis) {
+        if (followIntervalMillis < 1) {
+            throw new IllegalArgumentException("Follow interval must be positive: " + followIntervalMillis);
+        }
+        this.followIntervalMillis = followIntervalMillis;
+        return this;
+    }
+
+    public long getFollowIntervalMillis() {
+        return followIntervalMillis;
+    }
+
+    /**
+     * @param followIdleMillis Stop following after the input is unchanged this long; 0, the
+     *                         default, follows until interrupted (-Ddefend.followIdleMillis)
+     * @return These options
+     */
+    public ProcessingOptions setFollowIdleMillis(long followIdleMillis) {
+        this.followIdleMillis = followIdleMillis;
+        return this;
+    }
+
+    public long getFollowIdleMillis() {
+        return followIdleMillis;
+    }
+
+    /**
+     * Keeps finished reports in a cache directory and serves a report again without writing it
+     * when the input content and report parameters are unchanged, see ReportCache. Not used with
+     * resume or follow, nor for plain text in STREAMING mode, where copying costs less than the
+     * digest that finds the cached report.
+     * @param cacheDirectory The directory, or null (the default) for no cache (-Ddefend.cacheDir)
+     * @return These options
+     */
+    public ProcessingOptions setCacheDirectory(String cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+        return this;
+    }
+
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @param cacheMaxBytes Size the cache is kept under by evicting the least recently used
+     *                      reports, 256MB by default (-Ddefend.cacheMaxBytes)
+     * @return These options
+     */
+    public ProcessingOptions setCacheMaxBytes(long cacheMaxBytes) {
+        this.cacheMaxBytes = cacheMaxBytes;
+        return this;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Sets the charset the input is read in and the report written in, instead of the platform
+     * default the copies used to take, which made the line copies and the verbatim STREAMING copy
+     * disagree on any input not in that charset
+     * @param charset UTF-8 by default, or -Ddefend.charset; UTF-8 or a single-byte ASCII-compatible
+     *                charset, see LineScanner.supports
+     * @return These options
+     */
+    public ProcessingOptions setCharset(Charset charset) {
+        if (!LineScanner.supports(charset)) {
+            throw new IllegalArgumentException("Unsupported report charset: " + charset);
+        }
+        this.charset = charset;
+        return this;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return True if the report is brought up to date incrementally rather than rewritten
+     */
+    public boolean isIncremental() {
+        return resume || follow;
+    }
+
+    /**
+     * @return True if the report is anything but uncompressed text, which the copy modes write directly
+     */
+    public boolean isStructuredOutput() {
+        return outputFormat != OutputFormat.TEXT || gzip;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Resolves the copy mode for an input of the given size
+     * @param inputSize Input file size in bytes
+     * @return The forced mode, or STREAMING for large inputs and LINES otherwise. A verbatim
+     *         copy is cheapest for large inputs, so PARALLEL is only used when forced.
+     */
+    public CopyMode copyModeFor(long inputSize) {
+        if (copyMode != null) {
+            return copyMode;
+        }
+        return inputSize >= streamingThreshold ? CopyMode.STREAMING : CopyMode.LINES;
+    }
+
+    /**
+     * Decides whether a copy that must transform every line (truncation, say) runs in parallel
+     * @param inputSize Input file size in bytes
+     * @return True if PARALLEL is forced, or the mode is automatic, the input is large and there
+     *         is more than one core (on one core the chunking only adds a copy)
+     */
+    public boolean parallelFor(long inputSize) {
+        if (copyMode != null) {
+            return copyMode == CopyMode.PARALLEL;
+        }
+        return inputSize >= parallelThreshold && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    private static OutputFormat outputFormatProperty() {
+        String format = System.getProperty("defend.outputFormat");
+        if (format == null) {
+            return OutputFormat.TEXT;
+        }
+        try {
+            return OutputFormat.valueOf(format.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            ErrorLogger.logError("Invalid output format, using text: " + format);
+            return OutputFormat.TEXT;
+        }
+    }
+
+    private static Charset charsetProperty() {
+        String name = System.getProperty("defend.charset");
+        if (name == null) {
+            return StandardCharsets.UTF_8;
+        }
+        try {
+            Charset charset = Charset.forName(name.trim());
+            if (LineScanner.supports(charset)) {
+                return charset;
+            }
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            // Logged below
+        }
+        ErrorLogger.logError("Invalid or unsupported charset, using UTF-8: " + name);
+        return StandardCharsets.UTF_8;
+    }
+}
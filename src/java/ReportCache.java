@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A local cache of finished reports, keyed by the content of the input and the report parameters.
+ *
+ * The key is the SHA-256 of the report parameters followed by the input bytes, so an input that
+ * was copied, renamed back or touched still hits, and any change to its content misses. A miss
+ * writes the report straight into a temporary file in the cache, which is then published as
+ * objects/&lt;key&gt; and copied to the output; a hit only does the copy. Every output is a file of
+ * its own, created with the usual permissions, so writing over an output later cannot touch the
+ * entry or the other outputs made from it. The key is digested before the report reads the
+ * input, so a report is only stored if the input's size and modification time are still what
+ * they were before the key (see stamp). Each entry's size and modification time are checked on
+ * a hit, and an entry changed behind the cache's back is dropped.
+ *
+ * Entries are evicted least recently used first once the cache outgrows its size cap; the time of
+ * last use is the modification time of the entry's .meta file. Safe for several threads and processes.
+ */
+final class ReportCache {
+
+    // Bumped whenever the report layout changes, so old entries stop matching
+    private static final String KEY_VERSION = "report-v1";
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final String META_SUFFIX = ".meta";
+
+    private final Path objects;
+    private final Path temporary;
+    private final long maxBytes;
+
+    /**
+     * @param directory Cache directory, created if missing
+     * @param maxBytes Total size of the entries kept
+     * @throws IOException If the directory cannot be created
+     */
+    ReportCache(Path directory, long maxBytes) throws IOException {
+        this.objects = Files.createDirectories(directory.resolve("objects"));
+        this.temporary = Files.createDirectories(directory.resolve("tmp"));
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Digests the report parameters and the input file
+     * @param input The input file
+     * @param parameters Everything besides the input bytes that shapes the report
+     * @return The key, as hex
+     * @throws IOException If the input cannot be read
+     */
+    static String key(Path input, String... parameters) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update(KEY_VERSION.getBytes(StandardCharsets.UTF_8));
+        for (String parameter : parameters) {
+            // Length prefixed, so ("ab", "c") and ("a", "bc") differ
+            byte[] bytes = String.valueOf(parameter).getBytes(StandardCharsets.UTF_8);
+            digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+            digest.update(bytes);
+        }
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ)) {
+            ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            while (in.read(block) >= 0) {
+                block.flip();
+                digest.update(block);
+                block.clear();
+            }
+        }
+        return HexCodec.encode(digest.digest());
+    }
+
+    /**
+     * Identifies the state of the input: taken before its key is digested and compared again
+     * before the report written from it is stored
+     * @param input The input file
+     * @return Its size, modification time and file identity
+     * @throws IOException If the input cannot be read
+     */
+    static String stamp(Path input) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(input, BasicFileAttributes.class);
+        return attributes.size() + ":" + attributes.lastModifiedTime().toInstant() + ":" + attributes.fileKey();
+    }
+
+    /**
+     * Puts the cached report for the key in place of the output
+     * @param key The key
+     * @param output The output file
+     * @return True on a hit, false if there is no intact entry for the key
+     * @throws IOException If the entry exists but cannot be copied
+     */
+    boolean serve(String key, Path output) throws IOException {
+        Path entry = objects.resolve(key);
+        Path meta = objects.resolve(key + META_SUFFIX);
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (IOException | IllegalArgumentException e) {
+            // No entry, or one still being published
+            count("miss");
+            return false;
+        }
+
+        try {
+            if (Files.size(entry) != Long.parseLong(properties.getProperty("size"))
+                    || Files.getLastModifiedTime(entry).toMillis() != Long.parseLong(properties.getProperty("modified"))) {
+                ErrorLogger.logError("Dropping report cache entry " + key + ": it was changed after it was stored");
+                remove(key);
+                count("miss");
+                return false;
+            }
+        } catch (IOException | RuntimeException e) {
+            remove(key);
+            count("miss");
+            return false;
+        }
+
+        place(entry, output);
+        Files.setLastModifiedTime(meta, FileTime.fromMillis(System.currentTimeMillis()));
+        count("hit");
+        return true;
+    }
+
+    /**
+     * @return A fresh file in the cache's temporary directory for a report to be written to
+     * @throws IOException If it cannot be created
+     */
+    Path newTemporaryFile() throws IOException {
+        return Files.createTempFile(temporary, "report-", ".tmp");
+    }
+
+    /**
+     * Publishes a report written to a temporary file under the key, puts it in place of the
+     * output and evicts old entries if the cache is over its cap. If the input changed since the
+     * key was taken, the report is only put in place: it may not match the content the key digested.
+     * @param key The key
+     * @param input The input file the report was written from
+     * @param inputStamp stamp(input), taken before the key
+     * @param written The finished report, from newTemporaryFile; moved into the cache or deleted
+     * @param output The output file
+     * @throws IOException If the report cannot be published or placed
+     */
+    void store(String key, Path input, String inputStamp, Path written, Path output) throws IOException {
+        if (!inputStamp.equals(stamp(input))) {
+            ErrorLogger.logError("Not caching the report for " + input + ": it changed while the report was written");
+            try {
+                place(written, output);
+            } finally {
+                discard(written);
+            }
+            return;
+        }
+
+        Path entry = objects.resolve(key);
+        Path meta = objects.resolve(key + META_SUFFIX);
+        // Another thread or process may have published the same report meanwhile; either copy will do
+        Files.move(written, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Properties properties = new Properties();
+        properties.setProperty("size", Long.toString(Files.size(entry)));
+        properties.setProperty("modified", Long.toString(Files.getLastModifiedTime(entry).toMillis()));
+        Path metaTemporary = newTemporaryFile();
+        try (Writer writer = Files.newBufferedWriter(metaTemporary, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(metaTemporary, meta, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        place(entry, output);
+        evict();
+    }
+
+    /**
+     * Discards a temporary file after a failed write
+     */
+    void discard(Path written) {
+        try {
+            Files.deleteIfExists(written);
+        } catch (IOException e) {
+            ErrorLogger.logError("Could not delete report cache temporary file " + written + ": " + e.getMessage());
+        }
+    }
+
+    // Copies the entry into a new file next to the output, then renames it over the output. A copy,
+    // not a link: an output shares nothing with the entry, and gets the permissions of a new file.
+    private void place(Path entry, Path output) throws IOException {
+        Path target = output.toAbsolutePath();
+        Path staged = target.resolveSibling("." + target.getFileName() + ".cache-" + ProcessHandle.current().pid()
+                + "-" + Thread.currentThread().getId());
+        Files.deleteIfExists(staged);
+        try {
+            // Not Files.copy, which gives the new file the entry's owner-only mode
+            try (FileChannel in = FileChannel.open(entry, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(staged, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    long copied = in.transferTo(position, size - position, out);
+                    if (copied <= 0) {
+                        break;
+                    }
+                    position += copied;
+                }
+            }
+            Files.move(staged, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(staged);
+            throw e;
+        }
+    }
+
+    // Deletes the least recently used entries until the rest fit under the cap
+    private void evict() throws IOException {
+        List<Path> metas = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(objects, "*" + META_SUFFIX)) {
+            for (Path meta : entries) {
+                metas.add(meta);
+                total += sizeOf(entryFor(meta));
+            }
+        }
+        Metrics.gauge("defend_report_cache_bytes", "Size of the report cache entries").set(total);
+        if (total <= maxBytes) {
+            return;
+        }
+
+        metas.sort(Comparator.comparingLong(ReportCache::lastUsed));
+        for (Path meta : metas) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= sizeOf(entryFor(meta));
+            String name = meta.getFileName().toString();
+            remove(name.substring(0, name.length() - META_SUFFIX.length()));
+            Metrics.counter("defend_report_cache_evictions_total", "Report cache entries evicted to stay under the cap")
+                    .increment();
+        }
+        Metrics.gauge("defend_report_cache_bytes", "Size of the report cache entries").set(total);
+    }
+
+    private void remove(String key) throws IOException {
+        // The meta file goes first, so a reader never sees metadata for a missing entry
+        Files.deleteIfExists(objects.resolve(key + META_SUFFIX));
+        Files.deleteIfExists(objects.resolve(key));
+    }
+
+    private Path entryFor(Path meta) {
+        String name = meta.getFileName().toString();
+        return meta.resolveSibling(name.substring(0, name.length() - META_SUFFIX.length()));
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastUsed(Path meta) {
+        try {
+            return Files.getLastModifiedTime(meta).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static void count(String result) {
+        Metrics.counter("defend_report_cache_requests_total", "Report cache lookups, by result", "result", result)
+                .increment();
+    }
+}
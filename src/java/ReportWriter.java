@@ -0,0 +1,475 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a report (a header, then the input file's lines) in one of the ProcessingOptions.OutputFormat
+ * layouts, optionally through a streaming GZIP stage.
+ *
+ * Records are encoded straight into one pre-sized buffer that is handed to the stream only when
+ * full, so a report costs a single pass over the input and no per-record byte arrays. Lines that
+ * are already UTF-8 bytes (see LineScanner.writeLine(ReportWriter)) are copied without decoding.
+ *   TEXT    the layout FileProcessor has always written, in the given charset
+ *   JSONL   UTF-8, one JSON object per line: first
+ *           {"type":"header","firstName":..,"lastName":..,"firstInteger":..,"secondInteger":..,
+ *            "sum":..,"product":..,"inputFile":..}
+ *           then {"type":"line","number":N,"text":..} for every input line
+ *   BINARY  the magic bytes "DYCR" and a version byte (1); the header as firstName, lastName,
+ *           firstInteger (int32), secondInteger (int32), sum (int64), product (int64), inputFile;
+ *           then each line as varint(length + 1) followed by its UTF-8 bytes; then varint 0 and
+ *           varint(line count). Strings are varint(length) plus UTF-8 bytes, varints are unsigned
+ *           LEB128, and fixed-width integers are big-endian.
+ * Always close() the writer; it finishes the GZIP trailer and closes the stream.
+ */
+public abstract class ReportWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String HEX_DIGITS = "0123456789abcdef";
+    private static final byte[] BINARY_MAGIC = {'D', 'Y', 'C', 'R', 1};
+
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    protected long lines;
+
+    private ReportWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Opens a writer
+     * @param out Destination, closed by close(); the caller closes it if open() throws
+     * @param format Layout of the records
+     * @param gzip True to compress the output with GZIP
+     * @param charset Charset of the TEXT layout; JSONL and BINARY are always UTF-8
+     * @param newLine Line separator of the TEXT layout
+     * @return The writer
+     * @throws IOException If the GZIP header cannot be written
+     */
+    public static ReportWriter open(OutputStream out, ProcessingOptions.OutputFormat format, boolean gzip,
+                                    Charset charset, String newLine) throws IOException {
+        OutputStream target = gzip ? new GZIPOutputStream(out, BUFFER_SIZE) : out;
+        switch (format) {
+            case JSONL:
+                return new Jsonl(target);
+            case BINARY:
+                return new Binary(target);
+            default:
+                return new Text(target, charset, newLine);
+        }
+    }
+
+    /**
+     * Writes the header; call once, before any line
+     * @param firstName User's first name
+     * @param lastName User's last name
+     * @param firstInt First integer
+     * @param secondInt Second integer
+     * @param inputFileName Input file name
+     * @throws IOException If an I/O error occurs
+     */
+    public abstract void writeHeader(String firstName, String lastName, int firstInt, int secondInt,
+                                     String inputFileName) throws IOException;
+
+    /**
+     * Writes one input line
+     * @param line The line, without its line separator
+     * @throws IOException If an I/O error occurs
+     */
+    public final void writeLine(CharSequence line) throws IOException {
+        lines++;
+        encodeLine(line);
+    }
+
+    /**
+     * Writes one input line given as its UTF-8 bytes
+     * @param utf8 Holds the line, well-formed UTF-8 without its line separator
+     * @param from Index of its first byte
+     * @param to Index after its last byte
+     * @throws IOException If an I/O error occurs
+     */
+    public final void writeLine(byte[] utf8, int from, int to) throws IOException {
+        lines++;
+        encodeLine(utf8, from, to);
+    }
+
+    protected abstract void encodeLine(CharSequence line) throws IOException;
+
+    protected abstract void encodeLine(byte[] utf8, int from, int to) throws IOException;
+
+    // Writes whatever must follow the last line
+    protected void writeTrailer() throws IOException {
+    }
+
+    public long getLineCount() {
+        return lines;
+    }
+
+    /**
+     * Writes the trailer and the buffered bytes, then closes the stream
+     * @throws IOException If an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeTrailer();
+            flushBuffer();
+        } finally {
+            // GZIPOutputStream.close() writes the trailer before closing the file
+            out.close();
+        }
+    }
+
+    // Makes room for at least the given number of bytes
+    protected final void reserve(int bytes) throws IOException {
+        if (position + bytes > buffer.length) {
+            flushBuffer();
+        }
+    }
+
+    protected final void put(byte b) throws IOException {
+        reserve(1);
+        buffer[position++] = b;
+    }
+
+    protected final void putAscii(String text) throws IOException {
+        reserve(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buffer[position++] = (byte) text.charAt(i);
+        }
+    }
+
+    protected final void putLong(long value) throws IOException {
+        reserve(20);
+        if (value == Long.MIN_VALUE) {
+            putAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        position += digits;
+    }
+
+    protected final void putFixed(long value, int bytes) throws IOException {
+        reserve(bytes);
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            buffer[position++] = (byte) (value >>> shift);
+        }
+    }
+
+    protected final void putVarint(long value) throws IOException {
+        reserve(10);
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    protected final void putBytes(byte[] bytes, int from, int to) throws IOException {
+        while (from < to) {
+            reserve(1);
+            int count = Math.min(to - from, buffer.length - position);
+            System.arraycopy(bytes, from, buffer, position, count);
+            position += count;
+            from += count;
+        }
+    }
+
+    // UTF-8, with '?' for unpaired surrogates as String.getBytes does; with escapeJson the text
+    // is also escaped for a JSON string
+    protected final void putUtf8(CharSequence text, boolean escapeJson) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            reserve(6);
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (escapeJson && (c < 0x20 || c == '"' || c == '\\')) {
+                    putEscape(c);
+                } else {
+                    buffer[position++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buffer[position++] = (byte) (0xC0 | c >> 6);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer[position++] = (byte) (0xF0 | codePoint >> 18);
+                buffer[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                buffer[position++] = '?';
+            } else {
+                buffer[position++] = (byte) (0xE0 | c >> 12);
+                buffer[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buffer[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    // Exact UTF-8 length of what putUtf8 writes without escaping
+    protected static int utf8Length(CharSequence text) {
+        int length = text.length();
+        int bytes = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                bytes++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    // Needs room for six bytes
+    protected final void putEscape(char c) {
+        buffer[position++] = '\\';
+        switch (c) {
+            case '"':
+            case '\\':
+                buffer[position++] = (byte) c;
+                break;
+            case '\n':
+                buffer[position++] = 'n';
+                break;
+            case '\r':
+                buffer[position++] = 'r';
+                break;
+            case '\t':
+                buffer[position++] = 't';
+                break;
+            case '\b':
+                buffer[position++] = 'b';
+                break;
+            case '\f':
+                buffer[position++] = 'f';
+                break;
+            default:
+                buffer[position++] = 'u';
+                buffer[position++] = '0';
+                buffer[position++] = '0';
+                buffer[position++] = (byte) HEX_DIGITS.charAt(c >> 4);
+                buffer[position++] = (byte) HEX_DIGITS.charAt(c & 0xF);
+        }
+    }
+
+    // Encodes with a charset encoder straight into the buffer, flushing it as it fills
+    protected final void putEncoded(CharsetEncoder encoder, CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        // Room for at least one character, so every round makes progress
+        int room = (int) Math.ceil(encoder.maxBytesPerChar()) * 2;
+        encoder.reset();
+        boolean flushing = false;
+        while (true) {
+            reserve(room);
+            ByteBuffer bytes = ByteBuffer.wrap(buffer, position, buffer.length - position);
+            CoderResult result = flushing ? encoder.flush(bytes) : encoder.encode(chars, bytes, true);
+            position = bytes.position();
+            if (result.isOverflow()) {
+                flushBuffer();
+            } else if (result.isUnderflow()) {
+                if (flushing) {
+                    return;
+                }
+                flushing = true;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * The human-readable layout, identical to FileProcessor's line copy
+     */
+    private static final class Text extends ReportWriter {
+        private final boolean utf8;
+        private final CharsetEncoder encoder;
+        private final String newLine;
+
+        Text(OutputStream out, Charset charset, String newLine) {
+            super(out);
+            this.utf8 = charset.equals(StandardCharsets.UTF_8);
+            // Replace what the charset cannot encode, as FileWriter does
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            this.newLine = newLine;
+        }
+
+        @Override
+        public void writeHeader(String firstName, String lastName, int firstInt, int secondInt,
+                                String inputFileName) throws IOException {
+            put(FileProcessor.buildHeader(FileProcessor.ReportStyle.PROCESS, firstName, lastName, firstInt, secondInt, inputFileName, newLine));
+        }
+
+        @Override
+        protected void encodeLine(CharSequence line) throws IOException {
+            put(line);
+            put(newLine);
+        }
+
+        @Override
+        protected void encodeLine(byte[] utf8, int from, int to) throws IOException {
+            if (this.utf8) {
+                putBytes(utf8, from, to);
+                put(newLine);
+            } else {
+                encodeLine(new String(utf8, from, to - from, StandardCharsets.UTF_8));
+            }
+        }
+
+        private void put(CharSequence text) throws IOException {
+            if (utf8) {
+                putUtf8(text, false);
+            } else {
+                putEncoded(encoder, text);
+            }
+        }
+    }
+
+    /**
+     * One JSON object per line
+     */
+    private static final class Jsonl extends ReportWriter {
+        Jsonl(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void writeHeader(String firstName, String lastName, int firstInt, int secondInt,
+                                String inputFileName) throws IOException {
+            putAscii("{\"type\":\"header\",\"firstName\":");
+            putString(firstName);
+            putAscii(",\"lastName\":");
+            putString(lastName);
+            putAscii(",\"firstInteger\":");
+            putLong(firstInt);
+            putAscii(",\"secondInteger\":");
+            putLong(secondInt);
+            putAscii(",\"sum\":");
+            putLong((long) firstInt + secondInt);
+            putAscii(",\"product\":");
+            putLong((long) firstInt * secondInt);
+            putAscii(",\"inputFile\":");
+            putString(inputFileName);
+            putAscii("}\n");
+        }
+
+        @Override
+        protected void encodeLine(CharSequence line) throws IOException {
+            putAscii("{\"type\":\"line\",\"number\":");
+            putLong(lines);
+            putAscii(",\"text\":");
+            putString(line);
+            putAscii("}\n");
+        }
+
+        @Override
+        protected void encodeLine(byte[] utf8, int from, int to) throws IOException {
+            putAscii("{\"type\":\"line\",\"number\":");
+            putLong(lines);
+            putAscii(",\"text\":\"");
+            // Bytes of multi-byte characters are all 0x80 and up, so only ASCII needs escaping
+            int run = from;
+            for (int i = from; i < to; i++) {
+                byte b = utf8[i];
+                if (b >= 0 && (b < 0x20 || b == '"' || b == '\\')) {
+                    putBytes(utf8, run, i);
+                    reserve(6);
+                    putEscape((char) b);
+                    run = i + 1;
+                }
+            }
+            putBytes(utf8, run, to);
+            putAscii("\"}\n");
+        }
+
+        private void putString(CharSequence text) throws IOException {
+            put((byte) '"');
+            putUtf8(text, true);
+            put((byte) '"');
+        }
+    }
+
+    /**
+     * Length-prefixed binary records
+     */
+    private static final class Binary extends ReportWriter {
+        Binary(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void writeHeader(String firstName, String lastName, int firstInt, int secondInt,
+                                String inputFileName) throws IOException {
+            for (byte b : BINARY_MAGIC) {
+                put(b);
+            }
+            putString(firstName);
+            putString(lastName);
+            putFixed(firstInt, 4);
+            putFixed(secondInt, 4);
+            putFixed((long) firstInt + secondInt, 8);
+            putFixed((long) firstInt * secondInt, 8);
+            putString(inputFileName);
+        }
+
+        @Override
+        protected void encodeLine(CharSequence line) throws IOException {
+            // Zero is reserved for the end marker
+            putVarint(utf8Length(line) + 1L);
+            putUtf8(line, false);
+        }
+
+        @Override
+        protected void encodeLine(byte[] utf8, int from, int to) throws IOException {
+            putVarint(to - from + 1L);
+            putBytes(utf8, from, to);
+        }
+
+        @Override
+        protected void writeTrailer() throws IOException {
+            putVarint(0);
+            putVarint(lines);
+        }
+
+        private void putString(CharSequence text) throws IOException {
+            putVarint(utf8Length(text));
+            putUtf8(text, false);
+        }
+    }
+}
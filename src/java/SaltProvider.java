@@ -0,0 +1,165 @@
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Supplies random password salts without constructing a SecureRandom per salt.
+ *
+ * Salts are generated ahead of time into a bounded pool by a background thread, so a burst of
+ * registrations takes them without waiting on seeding or entropy. When the pool runs dry the
+ * caller generates its own salt from a per-thread SecureRandom instead of blocking. Tuned with
+ * system properties:
+ *   defend.saltPool.size      salts kept ready (default 1024)
+ *   defend.saltPool.lowWater  depth at which the refill thread is woken (default a quarter of the size)
+ */
+public final class SaltProvider {
+
+    /** Length of every salt in bytes */
+    public static final int SALT_LENGTH = 16;
+
+    private static final int DEFAULT_POOL_SIZE = 1024;
+
+    private static SaltProvider shared;
+
+    // One generator per thread; SecureRandom instances are thread safe but contend when shared
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final ArrayBlockingQueue<byte[]> pool;
+    private final int lowWater;
+    private final Thread refillThread;
+
+    private final LongAdder pooled = new LongAdder();
+    private final LongAdder direct = new LongAdder();
+    private final LongAdder refilled = new LongAdder();
+    private final LongAdder refillNanos = new LongAdder();
+
+    /**
+     * Creates a provider and starts its refill thread
+     * @param poolSize Number of salts kept ready
+     * @param lowWater Pool depth at which the refill thread is woken
+     */
+    public SaltProvider(int poolSize, int lowWater) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Salt pool size must be positive: " + poolSize);
+        }
+        this.pool = new ArrayBlockingQueue<>(poolSize);
+        this.lowWater = Math.max(0, Math.min(lowWater, poolSize - 1));
+        this.refillThread = new Thread(this::refillLoop, "salt-pool-refill");
+        refillThread.setDaemon(true);
+        refillThread.start();
+    }
+
+    /**
+     * @return The provider configured from system properties, started on first use
+     */
+    public static synchronized SaltProvider shared() {
+        if (shared == null) {
+            int size = Integer.getInteger("defend.saltPool.size", DEFAULT_POOL_SIZE);
+            shared = new SaltProvider(size, Integer.getInteger("defend.saltPool.lowWater", size / 4));
+        }
+        return shared;
+    }
+
+    /**
+     * Takes a salt from the pool, or generates one on the calling thread if the pool is empty
+     * @return SALT_LENGTH random bytes
+     */
+    public byte[] next() {
+        byte[] salt = pool.poll();
+        if (salt != null) {
+            pooled.increment();
+        } else {
+            direct.increment();
+            salt = new byte[SALT_LENGTH];
+            random.get().nextBytes(salt);
+        }
+        if (pool.size() <= lowWater) {
+            LockSupport.unpark(refillThread);
+        }
+        return salt;
+    }
+
+    /**
+     * @return A salt as hexadecimal
+     */
+    public String nextHex() {
+        return HexCodec.encode(next());
+    }
+
+    /**
+     * @return Salts currently waiting in the pool
+     */
+    public int getPoolDepth() {
+        return pool.size();
+    }
+
+    /**
+     * @return Maximum number of salts kept in the pool
+     */
+    public int getPoolCapacity() {
+        return pool.size() + pool.remainingCapacity();
+    }
+
+    /**
+     * @return Salts handed out from the pool
+     */
+    public long getPooledCount() {
+        return pooled.sum();
+    }
+
+    /**
+     * @return Salts generated by callers because the pool was empty
+     */
+    public long getDirectCount() {
+        return direct.sum();
+    }
+
+    /**
+     * @return Salts generated by the refill thread
+     */
+    public long getRefilledCount() {
+        return refilled.sum();
+    }
+
+    /**
+     * @return Salts the refill thread produces per second while it is working
+     */
+    public double getFillRate() {
+        long nanos = refillNanos.sum();
+        return nanos == 0 ? 0 : refilled.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Salt pool: " + getPoolDepth() + "/" + getPoolCapacity() + " ready, " + getPooledCount()
+                + " from pool, " + getDirectCount() + " generated on demand, "
+                + String.format("%.0f", getFillRate()) + " salts/s refill rate";
+    }
+
+    private void refillLoop() {
+        SecureRandom generator = random.get();
+        while (true) {
+            long start = System.nanoTime();
+            int added = 0;
+            while (pool.remainingCapacity() > 0) {
+                byte[] salt = new byte[SALT_LENGTH];
+                generator.nextBytes(salt);
+                if (!pool.offer(salt)) {
+                    break;
+                }
+                added++;
+            }
+            if (added > 0) {
+                refilled.add(added);
+                refillNanos.add(System.nanoTime() - start);
+            }
+
+            // Sleep until a caller drains the pool to the low-water mark; the timeout covers a missed wakeup
+            while (pool.size() > lowWater) {
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+
+/**
+ * A saved password hash together with its salt and the KDF parameters that produced it.
+ *
+ * Written as "algorithm:iterations:salt:hash". The original "salt:hash" lines are still read
+ * and treated as single-pass SHA-256.
+ */
+public final class StoredCredential {
+
+    private final PasswordKdf kdf;
+    private final String salt;
+    private final String hash;
+    private final byte[] saltBytes;
+    private final byte[] hashBytes;
+
+    /**
+     * @param kdf Parameters used to produce the hash
+     * @param salt Salt as hexadecimal
+     * @param hash Hash as hexadecimal
+     */
+    public StoredCredential(PasswordKdf kdf, String salt, String hash) {
+        this.kdf = kdf;
+        this.salt = salt;
+        this.hash = hash;
+        this.saltBytes = HexCodec.decode(salt);
+        this.hashBytes = HexCodec.decode(hash);
+    }
+
+    /**
+     * @param kdf Parameters used to produce the hash
+     * @param saltBytes Salt bytes
+     * @param hashBytes Hash bytes
+     */
+    public StoredCredential(PasswordKdf kdf, byte[] saltBytes, byte[] hashBytes) {
+        this.kdf = kdf;
+        this.saltBytes = saltBytes;
+        this.hashBytes = hashBytes;
+        this.salt = HexCodec.encode(saltBytes);
+        this.hash = HexCodec.encode(hashBytes);
+    }
+
+    /**
+     * Parses a line from the password file
+     * @param line The line
+     * @return The credential
+     * @throws IOException If the line is not in a known format
+     */
+    public static StoredCredential parse(String line) throws IOException {
+        String[] parts = line.trim().split(":");
+        try {
+            if (parts.length == 2) {
+                return new StoredCredential(PasswordKdf.legacy(), parts[0], parts[1]);
+            }
+            if (parts.length == 4) {
+                return new StoredCredential(PasswordKdf.of(parts[0], Integer.parseInt(parts[1])), parts[2], parts[3]);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid password hash file format: " + e.getMessage());
+        }
+        throw new IOException("Invalid password hash file format");
+    }
+
+    /**
+     * @return The line written to the password file
+     */
+    public String format() {
+        return kdf.encode() + ":" + salt + ":" + hash;
+    }
+
+    /**
+     * Checks a password against this credential using the stored parameters. Works on the
+     * raw bytes, compares in constant time and allocates nothing.
+     * @param password The password to check
+     * @return True if it produces the stored hash
+     */
+    public boolean matches(CharSequence password) {
+        return PasswordHashing.verify(kdf, password, saltBytes, hashBytes);
+    }
+
+    public PasswordKdf getKdf() {
+        return kdf;
+    }
+
+    public String getSalt() {
+        return salt;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    byte[] getSaltBytes() {
+        return saltBytes;
+    }
+
+    byte[] getHashBytes() {
+        return hashBytes;
+    }
+}
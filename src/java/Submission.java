@@ -0,0 +1,128 @@
+import java.util.Map;
+
+/**
+ * One set of user inputs on its way through the Pipeline.
+ *
+ * A submission starts with the raw fields as acquired (from a manifest line, a service request or
+ * the prompts); the stages fill in the checked values, the credential and finally the outcome.
+ * Once a stage rejects or fails it, the later stages leave it alone.
+ */
+public class Submission {
+
+    /** Manifest field names, in CSV column order */
+    static final String[] FIELDS = {
+            "firstName", "lastName", "num1", "num2", "inputFile", "outputFile", "password"
+    };
+
+    /**
+     * Outcome of a submission
+     */
+    public enum Status {
+        ACCEPTED, REJECTED, FAILED
+    }
+
+    final int lineNumber;
+    private final Map<String, String> fields;
+
+    // Set by the validate stage
+    String firstName;
+    String lastName;
+    int num1;
+    int num2;
+    String inputFile;
+    String outputFile;
+    String password;
+
+    // Set by the hash stage; the password is dropped once it is hashed
+    StoredCredential credential;
+
+    // Echo input lines to the console while the report is written
+    boolean echo;
+
+    // Position in the pipeline's input, used to report results in input order
+    long sequence;
+
+    private Status status;
+    private String detail;
+
+    /**
+     * @param lineNumber Where the fields came from, e.g. the manifest line; used in log entries
+     * @param fields Field values keyed by the names in FIELDS
+     */
+    Submission(int lineNumber, Map<String, String> fields) {
+        this.lineNumber = lineNumber;
+        this.fields = fields;
+    }
+
+    /**
+     * Creates a submission whose values were already checked, e.g. one field at a time by the
+     * prompts; the password is added once it is checked too
+     */
+    static Submission checked(String firstName, String lastName, int num1, int num2,
+                              String inputFile, String outputFile) {
+        Submission submission = new Submission(0, null);
+        submission.firstName = firstName;
+        submission.lastName = lastName;
+        submission.num1 = num1;
+        submission.num2 = num2;
+        submission.inputFile = inputFile;
+        submission.outputFile = outputFile;
+        return submission;
+    }
+
+    String get(String field) {
+        return fields == null ? null : fields.get(field);
+    }
+
+    String firstMissingField() {
+        for (String field : FIELDS) {
+            if (get(field) == null) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    void accept(String detail) {
+        finish(Status.ACCEPTED, detail);
+    }
+
+    void reject(String detail) {
+        finish(Status.REJECTED, detail);
+    }
+
+    void fail(String detail) {
+        finish(Status.FAILED, detail);
+    }
+
+    private void finish(Status status, String detail) {
+        this.status = status;
+        this.detail = detail;
+        this.password = null;
+    }
+
+    /**
+     * @return True once a stage has accepted, rejected or failed this submission
+     */
+    public boolean isFinished() {
+        return status != null;
+    }
+
+    /**
+     * @return The outcome, or null while the submission is still in progress
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The output file when accepted, otherwise why not
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    public StoredCredential getCredential() {
+        return credential;
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Outcome of checking a value against a ValidationRule
+ */
+public final class ValidationResult {
+
+    /**
+     * Which part of a rule was violated
+     */
+    public enum Violation {
+        /** The value passed */
+        NONE,
+        /** The value was empty */
+        EMPTY,
+        /** Shorter than the minimum length */
+        TOO_SHORT,
+        /** Longer than the maximum length */
+        TOO_LONG,
+        /** Contains a character that is not allowed */
+        INVALID_CHARACTER,
+        /** Lacks a character from a required class */
+        MISSING_CLASS
+    }
+
+    /** Shared result for every passing check */
+    public static final ValidationResult OK = new ValidationResult(null, Violation.NONE, -1, null);
+
+    private final ValidationRule rule;
+    private final Violation violation;
+    private final int index;
+    private final String missingClass;
+
+    private ValidationResult(ValidationRule rule, Violation violation, int index, String missingClass) {
+        this.rule = rule;
+        this.violation = violation;
+        this.index = index;
+        this.missingClass = missingClass;
+    }
+
+    static ValidationResult failure(ValidationRule rule, Violation violation, int index, String missingClass) {
+        return new ValidationResult(rule, violation, index, missingClass);
+    }
+
+    /**
+     * @return True if the value passed
+     */
+    public boolean isValid() {
+        return violation == Violation.NONE;
+    }
+
+    /**
+     * @return The violation, NONE when valid
+     */
+    public Violation getViolation() {
+        return violation;
+    }
+
+    /**
+     * @return The rule that was violated, null when valid
+     */
+    public ValidationRule getRule() {
+        return rule;
+    }
+
+    /**
+     * @return Offending character index for INVALID_CHARACTER, the actual length for TOO_SHORT,
+     *         the limit for TOO_LONG, otherwise -1
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return Label of the missing class for MISSING_CLASS, otherwise null
+     */
+    public String getMissingClass() {
+        return missingClass;
+    }
+
+    @Override
+    public String toString() {
+        if (isValid()) {
+            return "OK";
+        }
+        String text = rule.getName() + ": " + violation;
+        if (missingClass != null) {
+            text += " (" + missingClass + ")";
+        } else if (index >= 0) {
+            text += " at " + index;
+        }
+        return text;
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * A validation rule compiled into a lookup table and checked in a single pass.
+ *
+ * Rules are declared once with a Builder: length bounds, the characters that may appear
+ * and the character classes that must appear at least once. Every ASCII character maps to
+ * a bit mask (bit 0 = allowed, bit n = member of required class n), so a check is one table
+ * lookup per character followed by a mask test for the required classes. A passing check
+ * returns the shared ValidationResult.OK and allocates nothing.
+ */
+public final class ValidationRule {
+
+    private static final int ALLOWED = 1;
+    private static final int MAX_REQUIRED_CLASSES = 30;
+
+    private final String name;
+    private final int minLength;
+    private final int maxLength;
+    private final int[] table;
+    private final int nonAsciiBits;
+    private final String[] requiredLabels;
+    private final int requiredMask;
+
+    private ValidationRule(Builder builder) {
+        this.name = builder.name;
+        this.minLength = builder.minLength;
+        this.maxLength = builder.maxLength;
+        this.requiredLabels = builder.requiredLabels;
+
+        this.table = new int[128];
+        int mask = 0;
+        for (int c = 0; c < 128; c++) {
+            if (builder.allowed.contains(c)) {
+                table[c] |= ALLOWED;
+            }
+            for (int i = 0; i < builder.requiredCount; i++) {
+                if (builder.required[i].contains(c)) {
+                    table[c] |= 1 << (i + 1);
+                }
+            }
+        }
+        for (int i = 0; i < builder.requiredCount; i++) {
+            mask |= 1 << (i + 1);
+        }
+        this.requiredMask = mask;
+        this.nonAsciiBits = builder.allowNonAscii ? ALLOWED : 0;
+    }
+
+    /**
+     * Starts declaring a rule
+     * @param name Rule name reported in results
+     * @return A new builder
+     */
+    public static Builder builder(String name) {
+        return new Builder(name);
+    }
+
+    /**
+     * @return The rule name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The maximum accepted length
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * Checks a value against this rule
+     * @param value The value to check
+     * @return ValidationResult.OK, or the first rule violated and where
+     */
+    public ValidationResult check(CharSequence value) {
+        int length = value.length();
+        if (length == 0 && minLength > 0) {
+            return ValidationResult.failure(this, ValidationResult.Violation.EMPTY, -1, null);
+        }
+        if (length < minLength) {
+            return ValidationResult.failure(this, ValidationResult.Violation.TOO_SHORT, length, null);
+        }
+        if (length > maxLength) {
+            return ValidationResult.failure(this, ValidationResult.Violation.TOO_LONG, maxLength, null);
+        }
+
+        int seen = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            int bits = c < 128 ? table[c] : nonAsciiBits;
+            if ((bits & ALLOWED) == 0) {
+                return ValidationResult.failure(this, ValidationResult.Violation.INVALID_CHARACTER, i, null);
+            }
+            seen |= bits;
+        }
+
+        return missingClass(seen);
+    }
+
+    /**
+     * Checks UTF-8 encoded bytes against this rule without decoding them. The result is the one
+     * check(CharSequence) gives for the decoded value: lengths and indexes count UTF-16 chars, so
+     * a four byte sequence counts as two.
+     * @param value Buffer holding the value
+     * @param from Index of the value's first byte
+     * @param to Index after the value's last byte
+     * @return ValidationResult.OK, or the first rule violated and where
+     */
+    public ValidationResult check(byte[] value, int from, int to) {
+        int length = 0;
+        int invalidAt = -1;
+        int seen = 0;
+        // No more chars than bytes, so a value this short cannot be TOO_LONG
+        boolean withinMax = to - from <= maxLength;
+        for (int i = from; i < to; i++) {
+            int b = value[i];
+            int bits;
+            int chars = 1;
+            if (b >= 0) {
+                bits = table[b];
+            } else if ((b & 0xC0) != 0x80) {
+                bits = nonAsciiBits;
+                // A four byte sequence is a surrogate pair in a String
+                if ((b & 0xF8) == 0xF0) {
+                    chars = 2;
+                }
+            } else {
+                // Continuation bytes belong to the character their lead byte started
+                continue;
+            }
+            if ((bits & ALLOWED) == 0 && invalidAt < 0) {
+                // Once the length cannot fail any more, the first invalid character is the result
+                if (withinMax && length + chars >= minLength) {
+                    return ValidationResult.failure(this, ValidationResult.Violation.INVALID_CHARACTER, length, null);
+                }
+                invalidAt = length;
+            }
+            seen |= bits;
+            length += chars;
+            // The length is checked before the characters, so a long value is TOO_LONG wherever it fails
+            if (length > maxLength) {
+                return ValidationResult.failure(this, ValidationResult.Violation.TOO_LONG, maxLength, null);
+            }
+        }
+
+        if (length == 0 && minLength > 0) {
+            return ValidationResult.failure(this, ValidationResult.Violation.EMPTY, -1, null);
+        }
+        if (length < minLength) {
+            return ValidationResult.failure(this, ValidationResult.Violation.TOO_SHORT, length, null);
+        }
+        if (invalidAt >= 0) {
+            return ValidationResult.failure(this, ValidationResult.Violation.INVALID_CHARACTER, invalidAt, null);
+        }
+        return missingClass(seen);
+    }
+
+    private ValidationResult missingClass(int seen) {
+        if ((seen & requiredMask) == requiredMask) {
+            return ValidationResult.OK;
+        }
+        // Report missing classes in the order they were declared
+        for (int i = 0; i < requiredLabels.length; i++) {
+            if ((seen & (1 << (i + 1))) == 0) {
+                return ValidationResult.failure(this, ValidationResult.Violation.MISSING_CLASS, -1, requiredLabels[i]);
+            }
+        }
+        return ValidationResult.OK;
+    }
+
+    /**
+     * A set of ASCII characters
+     */
+    public static final class CharClass {
+        private final boolean[] members = new boolean[128];
+
+        private CharClass() {
+        }
+
+        /**
+         * @param chars The characters in the class
+         * @return A class of exactly those characters
+         */
+        public static CharClass of(String chars) {
+            CharClass charClass = new CharClass();
+            for (int i = 0; i < chars.length(); i++) {
+                charClass.add(chars.charAt(i));
+            }
+            return charClass;
+        }
+
+        /**
+         * @param from First character, inclusive
+         * @param to Last character, inclusive
+         * @return A class of the characters in the range
+         */
+        public static CharClass range(char from, char to) {
+            CharClass charClass = new CharClass();
+            for (char c = from; c <= to; c++) {
+                charClass.add(c);
+            }
+            return charClass;
+        }
+
+        /**
+         * @return Every ASCII character
+         */
+        public static CharClass anyAscii() {
+            return range((char) 0, (char) 127);
+        }
+
+        /**
+         * @param other Another class
+         * @return A new class containing the members of both
+         */
+        public CharClass or(CharClass other) {
+            CharClass charClass = new CharClass();
+            for (int c = 0; c < 128; c++) {
+                charClass.members[c] = members[c] || other.members[c];
+            }
+            return charClass;
+        }
+
+        /**
+         * @param other Another class
+         * @return A new class containing the members of this class that are not in the other
+         */
+        public CharClass minus(CharClass other) {
+            CharClass charClass = new CharClass();
+            for (int c = 0; c < 128; c++) {
+                charClass.members[c] = members[c] && !other.members[c];
+            }
+            return charClass;
+        }
+
+        boolean contains(int c) {
+            return c >= 0 && c < 128 && members[c];
+        }
+
+        private void add(char c) {
+            if (c >= 128) {
+                throw new IllegalArgumentException("Character classes only hold ASCII characters");
+            }
+            members[c] = true;
+        }
+    }
+
+    /**
+     * Declares a rule; call build() once and share the result
+     */
+    public static final class Builder {
+        private final String name;
+        private int minLength = 1;
+        private int maxLength = Integer.MAX_VALUE;
+        private CharClass allowed = CharClass.anyAscii();
+        private boolean allowNonAscii = false;
+        private final CharClass[] required = new CharClass[MAX_REQUIRED_CLASSES];
+        private String[] requiredLabels = new String[0];
+        private int requiredCount = 0;
+
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param minLength Minimum length; a value shorter than this is TOO_SHORT (or EMPTY)
+         * @param maxLength Maximum length
+         * @return This builder
+         */
+        public Builder length(int minLength, int maxLength) {
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+            return this;
+        }
+
+        /**
+         * @param allowed The only ASCII characters that may appear
+         * @return This builder
+         */
+        public Builder allow(CharClass allowed) {
+            this.allowed = allowed;
+            return this;
+        }
+
+        /**
+         * Accepts any character outside ASCII (rejected by default)
+         * @return This builder
+         */
+        public Builder allowNonAscii() {
+            this.allowNonAscii = true;
+            return this;
+        }
+
+        /**
+         * Requires at least one character of a class
+         * @param label Description used in results, e.g. "uppercase letter"
+         * @param charClass The class
+         * @return This builder
+         */
+        public Builder require(String label, CharClass charClass) {
+            if (requiredCount == MAX_REQUIRED_CLASSES) {
+                throw new IllegalStateException("Too many required classes for rule " + name);
+            }
+            required[requiredCount++] = charClass;
+            String[] labels = new String[requiredCount];
+            System.arraycopy(requiredLabels, 0, labels, 0, requiredLabels.length);
+            labels[requiredCount - 1] = label;
+            requiredLabels = labels;
+            return this;
+        }
+
+        /**
+         * @return The compiled rule
+         */
+        public ValidationRule build() {
+            return new ValidationRule(this);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * The compiled validation rules shared by the interactive prompts and batch mode
+ */
+public final class ValidationRules {
+
+    private static final ValidationRule.CharClass UPPERCASE = ValidationRule.CharClass.range('A', 'Z');
+    private static final ValidationRule.CharClass LOWERCASE = ValidationRule.CharClass.range('a', 'z');
+    private static final ValidationRule.CharClass DIGITS = ValidationRule.CharClass.range('0', '9');
+
+    // Same members as the regex \s: space, tab, newline, vertical tab, form feed, carriage return
+    private static final ValidationRule.CharClass WHITESPACE = ValidationRule.CharClass.of(" \t\n\u000B\f\r");
+
+    /** Letters, hyphens, apostrophes and whitespace, 1 to 50 characters (was [a-zA-Z\-'\s]+) */
+    public static final ValidationRule NAME = ValidationRule.builder("name")
+            .length(1, 50)
+            .allow(UPPERCASE.or(LOWERCASE).or(ValidationRule.CharClass.of("-'")).or(WHITESPACE))
+            .build();
+
+    /** Alphanumerics, periods, underscores and hyphens, 1 to 255 characters (was ^[a-zA-Z0-9._\-]+$) */
+    public static final ValidationRule FILE_NAME = ValidationRule.builder("file name")
+            .length(1, 255)
+            .allow(UPPERCASE.or(LOWERCASE).or(DIGITS).or(ValidationRule.CharClass.of("._-")))
+            .build();
+
+    /**
+     * Password rule of the prompts, batch mode, the service and PasswordManager: 8 to 30
+     * characters, no whitespace, at least one uppercase letter, lowercase letter, number and one
+     * of !@#$%^&amp;*()-_=+. This was PASSWORD_PATTERN, with the special characters the prompts
+     * list; the prompts' own class [!@#$%^&amp;*()-_=+] read ")-_" as a range, so any digit or
+     * uppercase letter counted as special.
+     */
+    public static final ValidationRule PASSWORD = ValidationRule.builder("password")
+            .length(8, 30)
+            .allow(ValidationRule.CharClass.anyAscii().minus(WHITESPACE))
+            .allowNonAscii()
+            .require("uppercase letter", UPPERCASE)
+            .require("lowercase letter", LOWERCASE)
+            .require("number", DIGITS)
+            .require("special character", ValidationRule.CharClass.of("!@#$%^&*()-_=+"))
+            .build();
+
+    private ValidationRules() {
+    }
+}
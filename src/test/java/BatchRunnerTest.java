@@ -0,0 +1,67 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BatchRunnerTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void malformedJsonLinesAreRejectedAndReadingContinues() throws IOException {
+        Path manifest = dir.resolve("manifest.jsonl");
+        Files.write(manifest, String.join("\n",
+                "{\"firstName\": \"Ada\", \"lastName\": \"Lovelace\"}",
+                "{\"firstName\": \"Ada",
+                "{\"firstName\": \"\\uZZZZ\"}",
+                "not json",
+                "{\"firstName\": \"Alan\"}").getBytes("UTF-8"));
+
+        try (BatchRunner.ManifestSource source = new BatchRunner.ManifestSource(manifest.toString())) {
+            Submission first = source.next();
+            assertEquals(1, first.lineNumber);
+            assertNull(first.getStatus());
+            assertEquals("Ada", first.get("firstName"));
+
+            for (int line = 2; line <= 4; line++) {
+                Submission rejected = source.next();
+                assertNotNull(rejected);
+                assertEquals(line, rejected.lineNumber);
+                assertEquals(Submission.Status.REJECTED, rejected.getStatus());
+                assertTrue(rejected.getDetail().startsWith("Manifest line " + line + ":"), rejected.getDetail());
+            }
+
+            Submission last = source.next();
+            assertEquals(5, last.lineNumber);
+            assertEquals("Alan", last.get("firstName"));
+            assertNull(source.next());
+        }
+    }
+
+    @Test
+    void unterminatedCsvQuoteIsRejectedAndTheHeaderStillSkipped() throws IOException {
+        Path manifest = dir.resolve("manifest.csv");
+        Files.write(manifest, String.join("\n",
+                "firstName,lastName,num1,num2,inputFile,outputFile,password",
+                "\"Ada,Lovelace,1,2,in.txt,out.txt,Passw0rd!",
+                "Alan,Turing,1,2,in.txt,out.txt,Passw0rd!").getBytes("UTF-8"));
+
+        try (BatchRunner.ManifestSource source = new BatchRunner.ManifestSource(manifest.toString())) {
+            Submission rejected = source.next();
+            assertEquals(2, rejected.lineNumber);
+            assertEquals(Submission.Status.REJECTED, rejected.getStatus());
+
+            Submission next = source.next();
+            assertEquals(3, next.lineNumber);
+            assertEquals("Turing", next.get("lastName"));
+        }
+    }
+}
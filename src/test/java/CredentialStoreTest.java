@@ -0,0 +1,189 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CredentialStoreTest {
+
+    // Layout of the store file, as in CredentialStore
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 256;
+    private static final int S_KEY_LENGTH = 8;
+
+    @TempDir
+    Path dir;
+
+    private static StoredCredential credential(int seed) {
+        byte[] salt = new byte[16];
+        byte[] hash = new byte[32];
+        for (int i = 0; i < salt.length; i++) {
+            salt[i] = (byte) (seed + i);
+        }
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = (byte) (seed * 31 + i);
+        }
+        return new StoredCredential(PasswordKdf.pbkdf2(1000), salt, hash);
+    }
+
+    private static void assertSame(StoredCredential expected, StoredCredential actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getSalt(), actual.getSalt());
+        assertEquals(expected.getHash(), actual.getHash());
+    }
+
+    // Makes the sequence of the first used slot odd, as a writer that stopped mid-write leaves it
+    private static void leaveFirstSlotMidWrite(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+            for (long offset = HEADER_SIZE; offset < channel.size(); offset += SLOT_SIZE) {
+                slot.clear();
+                channel.read(slot, offset);
+                if (slot.getShort(S_KEY_LENGTH) != 0) {
+                    channel.write(ByteBuffer.allocate(4).putInt(0, slot.getInt(0) + 1), offset);
+                    return;
+                }
+            }
+        }
+        throw new AssertionError("No used slot in " + file);
+    }
+
+    @Test
+    void savedCredentialIsFoundAndReplaced() throws IOException {
+        CredentialStore store = CredentialStore.open(dir.resolve("credentials.store"));
+        String user = CredentialStore.userKey("Ada", "Lovelace");
+        assertNull(store.lookup(user));
+
+        store.save(user, credential(1));
+        assertSame(credential(1), store.lookup(user));
+        store.save(user, credential(2));
+        assertSame(credential(2), store.lookup(user));
+        assertNull(store.lookup(CredentialStore.userKey("Ada", "Byron")));
+    }
+
+    @Test
+    void namesWithSpacesDoNotShareAKey() throws IOException {
+        assertNotEquals(CredentialStore.userKey("Mary Ann", "Smith"), CredentialStore.userKey("Mary", "Ann Smith"));
+
+        CredentialStore store = CredentialStore.open(dir.resolve("credentials.store"));
+        store.save(CredentialStore.userKey("Mary Ann", "Smith"), credential(1));
+        store.save(CredentialStore.userKey("Mary", "Ann Smith"), credential(2));
+        assertSame(credential(1), store.lookup(CredentialStore.userKey("Mary Ann", "Smith")));
+        assertSame(credential(2), store.lookup(CredentialStore.userKey("Mary", "Ann Smith")));
+    }
+
+    @Test
+    void keyFromAnEarlierVersionIsFoundOnlyWhenItNamesOneUser() throws IOException {
+        CredentialStore store = CredentialStore.open(dir.resolve("credentials.store"));
+        store.save("Ada Lovelace", credential(1));
+        store.save("Mary Ann Smith", credential(2));
+
+        assertSame(credential(1), store.lookup(CredentialStore.userKey("Ada", "Lovelace")));
+        assertNull(store.lookup(CredentialStore.userKey("Mary Ann", "Smith")));
+        assertNull(store.lookup(CredentialStore.userKey("Mary", "Ann Smith")));
+    }
+
+    @Test
+    void storeGrowsAndReopens() throws IOException {
+        Path file = dir.resolve("credentials.store");
+        CredentialStore store = CredentialStore.open(file);
+        int users = 2000;
+        for (int i = 0; i < users; i++) {
+            store.save(CredentialStore.userKey("User", "N" + i), credential(i));
+        }
+        for (int i = 0; i < users; i++) {
+            assertSame(credential(i), store.lookup(CredentialStore.userKey("User", "N" + i)));
+        }
+
+        CredentialStore reopened = CredentialStore.open(file);
+        for (int i = 0; i < users; i++) {
+            assertSame(credential(i), reopened.lookup(CredentialStore.userKey("User", "N" + i)));
+        }
+    }
+
+    @Test
+    void writeFromAnotherStoreOnTheFileIsSeenAfterItGrew() throws IOException {
+        Path file = dir.resolve("credentials.store");
+        CredentialStore first = CredentialStore.open(file);
+        CredentialStore second = CredentialStore.open(file);
+        for (int i = 0; i < 1000; i++) {
+            first.save(CredentialStore.userKey("User", "N" + i), credential(i));
+        }
+        // second still maps the table first replaced; its write must land in the new one
+        second.save(CredentialStore.userKey("Ada", "Lovelace"), credential(7));
+        first.refresh();
+        assertSame(credential(7), first.lookup(CredentialStore.userKey("Ada", "Lovelace")));
+        assertSame(credential(999), first.lookup(CredentialStore.userKey("User", "N999")));
+    }
+
+    @Test
+    void readersOnlySeeWholeCredentialsWhileAWriterReplacesThem() throws Exception {
+        CredentialStore store = CredentialStore.open(dir.resolve("credentials.store"));
+        String user = CredentialStore.userKey("Ada", "Lovelace");
+        store.save(user, credential(1));
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<String> torn = new AtomicReference<>();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get()) {
+                    StoredCredential seen = store.lookup(user);
+                    String salt = seen.getSalt();
+                    String hash = seen.getHash();
+                    boolean one = salt.equals(credential(1).getSalt()) && hash.equals(credential(1).getHash());
+                    boolean two = salt.equals(credential(2).getSalt()) && hash.equals(credential(2).getHash());
+                    if (!one && !two) {
+                        torn.compareAndSet(null, salt + ":" + hash);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        try {
+            for (int i = 0; i < 2000; i++) {
+                store.save(user, credential(1 + (i & 1)));
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull(torn.get());
+    }
+
+    @Test
+    void slotLeftMidWriteIsRepairedWhenTheStoreOpens() throws IOException {
+        Path file = dir.resolve("credentials.store");
+        CredentialStore.open(file).save(CredentialStore.userKey("Ada", "Lovelace"), credential(1));
+        leaveFirstSlotMidWrite(file);
+
+        CredentialStore reopened = CredentialStore.open(file);
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+                assertSame(credential(1), reopened.lookup(CredentialStore.userKey("Ada", "Lovelace"))));
+    }
+
+    @Test
+    void slotLeftMidWriteWhileOpenDoesNotHangLookup() throws IOException {
+        Path file = dir.resolve("credentials.store");
+        CredentialStore store = CredentialStore.open(file);
+        store.save(CredentialStore.userKey("Ada", "Lovelace"), credential(1));
+        leaveFirstSlotMidWrite(file);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () ->
+                assertSame(credential(1), store.lookup(CredentialStore.userKey("Ada", "Lovelace"))));
+    }
+}
@@ -0,0 +1,71 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CsvValidatorTest {
+
+    // A header, a blank line, a CRLF line, quoted fields with commas and "" escapes, a short row,
+    // an unterminated quote and no final line end
+    private static final String CSV = String.join("\n",
+            "name,num,note",
+            "Ada,42,plain",
+            "Ada,2147483648,\"quoted, with \"\"escapes\"\"\"",
+            "",
+            "Grace,-2147483648,x\r",
+            "Alan,12a,\"a,b\"",
+            "Ada,\"1,5\",\" 7 \"",
+            "Ada",
+            "Ada,\"12",
+            "Grace,\" +5 \"");
+
+    private static final List<String> REJECTIONS = Arrays.asList(
+            "3\tnum\tinteger\tout_of_range",
+            "6\tnum\tinteger\tnot_an_integer",
+            "7\tnum\tinteger\tnot_an_integer",
+            "8\tnum\tinteger\tmissing_column",
+            "9\tnum\tcsv\tunterminated_quote");
+
+    @TempDir
+    Path dir;
+
+    private byte[] validate(Path csv, String rules, int rangeSize) throws IOException {
+        Path rejections = dir.resolve("rejections-" + rangeSize + ".txt");
+        CsvValidator.runValidation(csv.toString(), rules, rejections.toString(),
+                ProcessingOptions.defaults().setChunkSize(rangeSize));
+        return Files.readAllBytes(rejections);
+    }
+
+    @Test
+    void rangesOfAnySizeFindTheSameRejections() throws IOException {
+        Path csv = dir.resolve("data.csv");
+        byte[] bytes = CSV.getBytes(StandardCharsets.UTF_8);
+        Files.write(csv, bytes);
+
+        byte[] whole = validate(csv, "name=name,num=integer", bytes.length);
+        assertEquals(REJECTIONS, Arrays.asList(new String(whole, StandardCharsets.UTF_8).split(System.lineSeparator())));
+        // Every range boundary, including ones inside quotes and between '\r' and '\n'
+        for (int rangeSize = 1; rangeSize < bytes.length; rangeSize++) {
+            assertArrayEquals(whole, validate(csv, "name=name,num=integer", rangeSize), "range size " + rangeSize);
+        }
+    }
+
+    // The header starts with a byte order mark, which is not part of the first column name
+    @Test
+    void rejectionsAreWrittenAsUtf8() throws IOException {
+        Path csv = dir.resolve("data.csv");
+        Files.write(csv, "\uFEFFnombre,número\nJose,uno\n".getBytes(StandardCharsets.UTF_8));
+
+        byte[] rejections = validate(csv, "nombre=name,número=integer", 1024);
+        assertEquals("2\tnúmero\tinteger\tnot_an_integer" + System.lineSeparator(),
+                new String(rejections, StandardCharsets.UTF_8));
+    }
+}
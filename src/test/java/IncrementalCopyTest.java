@@ -0,0 +1,155 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class IncrementalCopyTest {
+
+    // Line endings of every kind, and text without one, so appends end mid-line
+    private static final String[] PIECES = {"alpha", "beta gamma", "\n", "\r\n", "\r", "", "12345", "\n\n"};
+
+    @TempDir
+    Path dir;
+
+    private Path input() {
+        return dir.resolve("input.txt");
+    }
+
+    private static ProcessingOptions options(ProcessingOptions.CopyMode mode) {
+        return ProcessingOptions.defaults().setCopyMode(mode).setEcho("off");
+    }
+
+    private IncrementalCopy copy(ProcessingOptions.CopyMode mode) {
+        String header = FileProcessor.buildHeader(FileProcessor.ReportStyle.PROCESS, "Ada", "Lovelace", 1, 2,
+                input().toString(), System.lineSeparator());
+        return new IncrementalCopy(header, input(), dir.resolve("report.txt"), mode, options(mode));
+    }
+
+    // The report a full copy in the same mode writes
+    private byte[] fullCopy(ProcessingOptions.CopyMode mode) throws IOException {
+        Path expected = dir.resolve("expected.txt");
+        FileProcessor.processFiles("Ada", "Lovelace", 1, 2, input().toString(), expected.toString(), "hash",
+                options(mode));
+        return Files.readAllBytes(expected);
+    }
+
+    private byte[] report() throws IOException {
+        return Files.readAllBytes(dir.resolve("report.txt"));
+    }
+
+    private void append(String text) throws IOException {
+        Files.write(input(), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void resumeMatchesAFullCopyAfterEveryAppend(ProcessingOptions.CopyMode mode) throws IOException {
+        Random random = new Random(mode.ordinal());
+        append("first line\r\nsecond");
+        assertEquals(IncrementalCopy.Outcome.WRITTEN, runCopy(mode));
+        assertArrayEquals(fullCopy(mode), report());
+
+        for (int i = 0; i < 300; i++) {
+            StringBuilder text = new StringBuilder();
+            for (int n = random.nextInt(4); n >= 0; n--) {
+                text.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            append(text.toString());
+            IncrementalCopy.Outcome outcome = runCopy(mode);
+            assertNotEquals(IncrementalCopy.Outcome.REWRITTEN, outcome, "append " + i);
+            assertNotEquals(IncrementalCopy.Outcome.WRITTEN, outcome, "append " + i);
+            assertArrayEquals(fullCopy(mode), report(), "append " + i);
+        }
+    }
+
+    private IncrementalCopy.Outcome runCopy(ProcessingOptions.CopyMode mode) throws IOException {
+        IncrementalCopy copy = copy(mode);
+        copy.start();
+        return copy.getOutcome();
+    }
+
+    @Test
+    void resumedLineReportMatchesAFullCopy() throws IOException {
+        resumeMatchesAFullCopyAfterEveryAppend(ProcessingOptions.CopyMode.LINES);
+    }
+
+    @Test
+    void resumedStreamingReportMatchesAFullCopy() throws IOException {
+        resumeMatchesAFullCopyAfterEveryAppend(ProcessingOptions.CopyMode.STREAMING);
+    }
+
+    @Test
+    void resumeOnlyReadsTheNewInput() throws IOException {
+        append("one\ntwo\n");
+        runCopy(ProcessingOptions.CopyMode.LINES);
+        append("three\nfour");
+
+        IncrementalCopy copy = copy(ProcessingOptions.CopyMode.LINES);
+        assertEquals("three\nfour".length(), copy.start());
+        assertEquals(IncrementalCopy.Outcome.RESUMED, copy.getOutcome());
+        assertEquals("one\ntwo\nthree\n".length(), copy.getOffset());
+        assertEquals(IncrementalCopy.Outcome.UNCHANGED, runCopy(ProcessingOptions.CopyMode.LINES));
+    }
+
+    @Test
+    void changedPrefixRewritesTheReport() throws IOException {
+        append("one\ntwo\n");
+        runCopy(ProcessingOptions.CopyMode.LINES);
+        Files.write(input(), "ONE\ntwo\nthree\n".getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(IncrementalCopy.Outcome.REWRITTEN, runCopy(ProcessingOptions.CopyMode.LINES));
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.LINES), report());
+    }
+
+    @Test
+    void differentCopyModeRewritesTheReport() throws IOException {
+        append("one\r\ntwo\rthree\n");
+        runCopy(ProcessingOptions.CopyMode.LINES);
+
+        assertEquals(IncrementalCopy.Outcome.REWRITTEN, runCopy(ProcessingOptions.CopyMode.STREAMING));
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.STREAMING), report());
+        append("four\r\n");
+        assertEquals(IncrementalCopy.Outcome.RESUMED, runCopy(ProcessingOptions.CopyMode.STREAMING));
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.STREAMING), report());
+    }
+
+    @Test
+    void editedReportIsRewritten() throws IOException {
+        append("one\ntwo\n");
+        runCopy(ProcessingOptions.CopyMode.LINES);
+        Files.write(dir.resolve("report.txt"), "edited".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        append("three\n");
+
+        assertEquals(IncrementalCopy.Outcome.REWRITTEN, runCopy(ProcessingOptions.CopyMode.LINES));
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.LINES), report());
+    }
+
+    @Test
+    void pollStartsOverWhenTheInputIsRotatedOrTruncated() throws IOException {
+        append("old one\nold two\n");
+        IncrementalCopy copy = copy(ProcessingOptions.CopyMode.LINES);
+        copy.start();
+        append("old three\n");
+        copy.poll();
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.LINES), report());
+
+        // Rotated: a new file under the same name
+        Files.move(input(), dir.resolve("input.txt.1"));
+        append("new one\n");
+        copy.poll();
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.LINES), report());
+
+        // Truncated in place and written again
+        Files.write(input(), "x\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+        copy.poll();
+        assertArrayEquals(fullCopy(ProcessingOptions.CopyMode.LINES), report());
+        assertEquals(0, copy.poll());
+    }
+}
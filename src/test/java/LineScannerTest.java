@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LineScannerTest {
+
+    private static final int MAX_LINE_LENGTH = 4;
+    private static final String MARKER = "[+%d]";
+
+    @TempDir
+    Path dir;
+
+    // Long lines of malformed UTF-8 around the cut after keptBytes(4) = 20 bytes: lone continuation
+    // bytes, truncated and overlong sequences, and a 4-byte character across the cut
+    private static byte[] malformedInput() {
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        int[][] lines = {
+                {'a', 0x80, 0x80, 0x80, 0x80, 0xBF},
+                {0xE2, 0x82, 'b', 0xF0, 0x80, 0x80, 0x80, 0xC0, 0xAF},
+                {0xF0, 0x9F, 0x98, 0x80, 0xED, 0xA0, 0x80, 0xF4, 0x90, 0x80, 0x80},
+        };
+        for (int[] pattern : lines) {
+            for (int repeat = 0; repeat < 12; repeat++) {
+                for (int b : pattern) {
+                    input.write(b);
+                }
+            }
+            input.write('\n');
+        }
+        return input.toByteArray();
+    }
+
+    private static String expected(byte[] input) throws IOException {
+        StringBuilder out = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(input), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.length() > MAX_LINE_LENGTH) {
+                out.append(line, 0, MAX_LINE_LENGTH).append(String.format(Locale.ROOT, MARKER, line.length() - MAX_LINE_LENGTH));
+            } else {
+                out.append(line);
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    @Test
+    void droppedCountOfMalformedUtf8MatchesReaderAcrossReads() throws IOException {
+        byte[] input = malformedInput();
+        // Three bytes per read, so characters and malformed sequences are split between reads
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(input)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+        LineScanner scanner = new LineScanner(in, StandardCharsets.UTF_8)
+                .truncateAt(MAX_LINE_LENGTH, MARKER)
+                .lineSeparator("\n");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (scanner.next()) {
+            scanner.writeLine(out);
+        }
+        assertEquals(expected(input), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parallelDroppedCountOfMalformedUtf8MatchesReader() throws IOException {
+        byte[] input = malformedInput();
+        Path file = dir.resolve("input.txt");
+        Files.write(file, input);
+        // Chunks shorter than a line, so the chunker cuts lines and refills while skipping them
+        for (int chunkSize = 7; chunkSize <= 40; chunkSize++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new ParallelLineProcessor(ProcessingOptions.defaults().setChunkSize(chunkSize), StandardCharsets.UTF_8)
+                    .truncateAt(MAX_LINE_LENGTH, MARKER)
+                    .lineSeparator("\n")
+                    .process(file, out);
+            assertEquals(expected(input), out.toString(StandardCharsets.UTF_8), "chunk size " + chunkSize);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.jupiter.api.Test;
+
+class PasswordHashingTest {
+
+    private static final byte[] SALT = HexCodec.decode("000102030405060708090a0b0c0d0e0f");
+
+    // 10,000 chars, 15,000 UTF-8 bytes: well past the 4096 byte scratch buffer
+    private static String longPassword() {
+        StringBuilder password = new StringBuilder();
+        while (password.length() < 10_000) {
+            password.append("Pw1é€");
+        }
+        return password.toString();
+    }
+
+    @Test
+    void pbkdf2MatchesJdkForPasswordLongerThanScratchBuffer() throws Exception {
+        String password = longPassword();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), SALT, 1000, 256);
+        byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+
+        byte[] hash = new byte[PasswordHashing.HASH_LENGTH];
+        PasswordHashing.hash(PasswordKdf.pbkdf2(1000), password, SALT, SALT.length, hash, 0);
+        assertArrayEquals(expected, hash);
+
+        PasswordHashing.hash(PasswordKdf.pbkdf2(1000), password.toCharArray(), SALT, SALT.length, hash, 0);
+        assertArrayEquals(expected, hash);
+        assertTrue(PasswordHashing.verify(PasswordKdf.pbkdf2(1000), password, SALT, expected));
+    }
+
+    @Test
+    void legacyHashesPlatformBytesOfPasswordLongerThanScratchBuffer() throws Exception {
+        String password = longPassword();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(SALT);
+        byte[] expected = md.digest(password.getBytes(Charset.defaultCharset()));
+
+        byte[] hash = new byte[PasswordHashing.HASH_LENGTH];
+        PasswordHashing.hash(PasswordKdf.legacy(), password, SALT, SALT.length, hash, 0);
+        assertArrayEquals(expected, hash);
+    }
+
+    @Test
+    void shortPasswordHashesTheSameAfterALongOne() throws Exception {
+        PasswordHashing.hash(PasswordKdf.pbkdf2(10), longPassword(), SALT, SALT.length, new byte[32], 0);
+
+        PBEKeySpec spec = new PBEKeySpec("Passw0rd!".toCharArray(), SALT, 10, 256);
+        byte[] expected = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        assertEquals(HexCodec.encode(expected), PasswordHashing.hashHex(PasswordKdf.pbkdf2(10), "Passw0rd!",
+                HexCodec.encode(SALT)));
+        assertArrayEquals(expected, PasswordKdf.pbkdf2(10).derive("Passw0rd!".toCharArray(), SALT));
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class PipelineTest {
+
+    private interface Body {
+        void apply(Submission submission) throws Exception;
+    }
+
+    private static Pipeline.Stage stage(String name, Body body) {
+        return new Pipeline.Stage() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public void apply(Submission submission) throws Exception {
+                body.apply(submission);
+            }
+        };
+    }
+
+    // Supplies count submissions, then throws the error if there is one
+    private static Pipeline.Source source(int count, RuntimeException error) {
+        int[] supplied = {0};
+        return () -> {
+            if (supplied[0] == count) {
+                if (error != null) {
+                    throw error;
+                }
+                return null;
+            }
+            supplied[0]++;
+            return new Submission(supplied[0], new HashMap<>());
+        };
+    }
+
+    @Test
+    void runReportsEverySubmissionInOrder() throws IOException {
+        Pipeline pipeline = new Pipeline(2).stage(stage("noop", submission -> { }), 3);
+        List<Integer> reported = new ArrayList<>();
+        assertEquals(20, pipeline.run(source(20, null), submission -> reported.add(submission.lineNumber)));
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i + 1, reported.get(i));
+        }
+    }
+
+    @Test
+    void runtimeExceptionFromTheSourceEndsTheRun() {
+        Pipeline pipeline = new Pipeline(2).stage(stage("noop", submission -> { }), 2);
+        IOException error = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(IOException.class,
+                () -> pipeline.run(source(5, new IllegalStateException("source broke")), submission -> { })));
+        assertTrue(error.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    void errorInAStageWorkerEndsTheRun() {
+        Pipeline pipeline = new Pipeline(2)
+                .stage(stage("first", submission -> {
+                    if (submission.lineNumber == 3) {
+                        throw new Error("stage broke");
+                    }
+                }), 1)
+                .stage(stage("second", submission -> { }), 2);
+        List<Submission> reported = new ArrayList<>();
+        IOException error = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(IOException.class,
+                () -> pipeline.run(source(50, null), reported::add)));
+        assertEquals(Error.class, error.getCause().getClass());
+        assertEquals(Submission.Status.FAILED, reported.get(2).getStatus());
+    }
+}
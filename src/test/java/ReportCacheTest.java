@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ReportCacheTest {
+
+    @TempDir
+    Path dir;
+
+    private Path write(String name, String text) throws IOException {
+        return Files.write(dir.resolve(name), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static void writeReport(Path written, String text) throws IOException {
+        Files.write(written, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    @Test
+    void writingOverAnOutputLeavesTheEntryAndOtherOutputsAlone() throws IOException {
+        ReportCache cache = new ReportCache(dir.resolve("cache"), 1 << 20);
+        Path input = write("input.txt", "line\n");
+        String key = ReportCache.key(input, "Ada", "Lovelace");
+        Path first = dir.resolve("cached.txt");
+        Path second = dir.resolve("cached2.txt");
+
+        Path written = cache.newTemporaryFile();
+        writeReport(written, "report for Ada\n");
+        cache.store(key, input, ReportCache.stamp(input), written, first);
+        assertTrue(cache.serve(key, second));
+
+        // What an uncached run does to its output
+        Files.write(first, "report for someone else\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        assertEquals("report for Ada\n", read(second));
+        assertEquals("report for Ada\n", read(dir.resolve("cache").resolve("objects").resolve(key)));
+        Path third = dir.resolve("cached3.txt");
+        assertTrue(cache.serve(key, third));
+        assertEquals("report for Ada\n", read(third));
+    }
+
+    @Test
+    void outputsHaveTheModeOfANewFile() throws IOException {
+        if (!FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            return;
+        }
+        ReportCache cache = new ReportCache(dir.resolve("cache"), 1 << 20);
+        Path input = write("input.txt", "line\n");
+        String key = ReportCache.key(input, "Ada");
+        Path output = dir.resolve("out.txt");
+        Path written = cache.newTemporaryFile();
+        writeReport(written, "report\n");
+        cache.store(key, input, ReportCache.stamp(input), written, output);
+
+        Path plain = write("plain.txt", "report\n");
+        assertEquals(Files.getPosixFilePermissions(plain), Files.getPosixFilePermissions(output));
+    }
+
+    @Test
+    void reportIsNotCachedWhenTheInputChangedAfterTheKey() throws IOException {
+        ReportCache cache = new ReportCache(dir.resolve("cache"), 1 << 20);
+        Path input = write("input.txt", "old content\n");
+        String stamp = ReportCache.stamp(input);
+        String key = ReportCache.key(input, "Ada");
+
+        // The input changes between the key and the report's read of it
+        write("input.txt", "new content, longer\n");
+        Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 2000));
+        assertNotEquals(stamp, ReportCache.stamp(input));
+        Path written = cache.newTemporaryFile();
+        writeReport(written, "report of the new content\n");
+        Path output = dir.resolve("out.txt");
+        cache.store(key, input, stamp, written, output);
+
+        assertEquals("report of the new content\n", read(output));
+        assertFalse(Files.exists(written));
+        assertFalse(cache.serve(key, dir.resolve("other.txt")));
+    }
+}
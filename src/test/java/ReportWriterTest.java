@@ -0,0 +1,46 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class ReportWriterTest {
+
+    // Escaped JSON characters, multi-byte characters and a line longer than the writer's buffer
+    private static String[] lines() {
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            longLine.append("\"é\\\u0001");
+        }
+        return new String[] {"", "plain", "tab\tquote\"back\\slash\u001f", "é 中 😀", longLine.toString()};
+    }
+
+    private static byte[] write(ProcessingOptions.OutputFormat format, Charset charset, boolean asBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ReportWriter writer = ReportWriter.open(out, format, false, charset, "\n")) {
+            writer.writeHeader("Ada", "Lovelace", 1, 2, "input.txt");
+            for (String line : lines()) {
+                if (asBytes) {
+                    // Surrounded by other bytes, so the slice bounds are honoured
+                    byte[] utf8 = ("<" + line + ">").getBytes(StandardCharsets.UTF_8);
+                    writer.writeLine(utf8, 1, utf8.length - 1);
+                } else {
+                    writer.writeLine(line);
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void utf8BytesAreWrittenLikeTheDecodedLine() throws IOException {
+        for (ProcessingOptions.OutputFormat format : ProcessingOptions.OutputFormat.values()) {
+            for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1}) {
+                assertArrayEquals(write(format, charset, false), write(format, charset, true), format + " " + charset);
+            }
+        }
+    }
+}